@@ -3,18 +3,54 @@ package com.lnikkila.oidcsample;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AccountManagerFuture;
+import android.accounts.OnAccountsUpdateListener;
 import android.content.Context;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 
 import com.github.kevinsawicki.http.HttpRequest;
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.google.api.client.json.gson.GsonFactory;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.lnikkila.oidcsample.oidc.BlockingCallGuard;
+import com.lnikkila.oidcsample.oidc.DPoPProofs;
+import com.lnikkila.oidcsample.oidc.GenerationalTokenCache;
 import com.lnikkila.oidcsample.oidc.OIDCUtils;
+import com.lnikkila.oidcsample.oidc.RateLimiter;
 import com.lnikkila.oidcsample.oidc.authenticator.Authenticator;
+import com.lnikkila.oidcsample.oidc.authenticator.Providers;
+import com.lnikkila.oidcsample.oidc.authenticator.TokenEvents;
+import com.lnikkila.oidcsample.oidc.authenticator.TokenStore;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static java.net.HttpURLConnection.HTTP_FORBIDDEN;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
 import static java.net.HttpURLConnection.HTTP_UNAUTHORIZED;
 
 /**
@@ -24,13 +60,40 @@ import static java.net.HttpURLConnection.HTTP_UNAUTHORIZED;
  */
 public class APIUtility {
 
+    // Limits how fast we hit each API host. When the app resumes, background sync and the visible
+    // screens all start making requests at once, and the gateway would throttle us otherwise.
+    private static final RateLimiter rateLimiter = new RateLimiter(Config.apiRequestsPerSecond,
+            Config.apiRequestBurst);
+
+    // Account name -> the ID Token currently used for requests. Entries are added under the lock.
+    private static final ConcurrentMap<String, GenerationalTokenCache> idTokens =
+            new ConcurrentHashMap<>();
+
+    // Delivers token events to the caches above, created with the first one
+    private static Handler tokenEventHandler;
+    private static String accountType;
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    // How much to transfer into a file before reporting progress
+    private static final long TRANSFER_CHUNK_BYTES = 64 * 1024;
+
     /**
      * Makes a GET request and parses the received JSON string as a Map.
      */
     public static Map getJson(Context context, String url, Account account)
             throws IOException {
 
-        String jsonString = makeRequest(context, HttpRequest.METHOD_GET, url, account);
+        return getJson(context, url, account, RateLimiter.Priority.FOREGROUND);
+    }
+
+    /**
+     * Makes a GET request with the given priority and parses the received JSON string as a Map.
+     */
+    public static Map getJson(Context context, String url, Account account,
+                              RateLimiter.Priority priority) throws IOException {
+
+        String jsonString = makeRequest(context, HttpRequest.METHOD_GET, url, account, priority);
         return new Gson().fromJson(jsonString, Map.class);
     }
 
@@ -43,48 +106,727 @@ public class APIUtility {
     public static String makeRequest(Context context, String method, String url, Account account)
             throws IOException {
 
-        return makeRequest(context, method, url, account, true);
+        return makeRequest(context, method, url, account, RateLimiter.Priority.FOREGROUND);
+    }
+
+    /**
+     * Makes an arbitrary HTTP request using the provided account. Requests are rate limited per
+     * host, and requests with a higher priority jump ahead of the ones with lower priority when
+     * they have to wait.
+     */
+    public static String makeRequest(Context context, String method, String url, Account account,
+                                     RateLimiter.Priority priority) throws IOException {
+
+        return executeRequest(context, method, url, account, null, null, priority, true).body();
+    }
+
+    /**
+     * Makes an HTTP request with the given headers and body, e.g. a POST with a JSON body. Tokens
+     * are handled like in the other makeRequest() methods.
+     *
+     * Mutating requests that should survive being offline can be queued with
+     * {@link OutboundQueue} instead.
+     *
+     * @param headers extra request headers, e.g. Content-Type, may be null
+     * @param body    the request body, or null for none
+     */
+    public static String makeRequest(Context context, String method, String url, Account account,
+                                     Map<String, String> headers, byte[] body,
+                                     RateLimiter.Priority priority) throws IOException {
+
+        return executeRequest(context, method, url, account, headers, body, priority, true)
+                .body();
+    }
+
+    /**
+     * Thrown when the server responds to an API request with an error status. Unlike other
+     * IOExceptions, this means the request did reach the server.
+     */
+    public static class HttpStatusException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+
+        public HttpStatusException(int statusCode, String message) {
+            super(statusCode + " " + message);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+    }
+
+    /**
+     * Makes an HTTP request with an Access Token that is only valid for the given scopes and
+     * resource server, instead of the ID Token. This keeps a token for one API from being usable
+     * with another one.
+     *
+     * Tokens are cached per account, scopes and audience, and requested with the account's Refresh
+     * Token when needed. If the server denies access, the token is dropped and the request is
+     * retried once with a new one.
+     *
+     * @param scopes   a subset of the scopes the account was authorised for
+     * @param audience the URI of the resource server, or null for the provider's default
+     */
+    public static String makeRequest(Context context, String method, String url, Account account,
+                                     String[] scopes, String audience) throws IOException {
+
+        return executeScopedRequest(context, method, url, account, scopes, audience,
+                RateLimiter.Priority.FOREGROUND, true).body();
+    }
+
+    /**
+     * Iterates over a paginated collection, starting from the given URL. The next page is fetched
+     * in the background while the current one is being consumed, so at most two pages are held in
+     * memory at a time.
+     *
+     * Pages are either JSON arrays with the next page in a `Link: <...>; rel="next"` header, or
+     * JSON objects with the items in `items` (or `data`) and either a `next` URL or a
+     * `next_cursor`. A cursor is sent back as the `cursor` query parameter of the first URL.
+     *
+     * Every page is requested like makeRequest() does, so if the token expires in the middle of
+     * the iteration it's renewed and the page is retried. Close the iterator if you stop early.
+     */
+    public static PagedJsonIterator iterateJson(Context context, String url, Account account,
+                                                RateLimiter.Priority priority) {
+
+        return new PagedJsonIterator(new PageFetcher(context, url, account, priority), url);
+    }
+
+    /**
+     * Returns the current queue depth and wait times of the rate limiter, per host.
+     */
+    public static Map<String, RateLimiter.Metrics> getRateLimiterMetrics() {
+        return rateLimiter.getMetrics();
+    }
+
+    /**
+     * Executes a request and returns it once it has succeeded, with the body still unread.
+     */
+    private static HttpRequest executeRequest(Context context, String method, String url,
+                                              Account account, Map<String, String> headers,
+                                              byte[] body, RateLimiter.Priority priority,
+                                              boolean doRetry) throws IOException {
+
+        GenerationalTokenCache.Token idToken = getIdTokens(context, account).current();
+
+        // Wait for our turn. The token has already been acquired at this point, so a slow refresh
+        // doesn't hold up a slot.
+        acquirePermit(url, priority);
+
+        // Prepare an API request using the token
+        HttpRequest request = new HttpRequest(url, method);
+        request = OIDCUtils.prepareApiRequest(request, idToken.getValue());
+
+        if (headers != null) {
+            request.headers(headers);
+        }
+
+        BlockingCallGuard.Call call = BlockingCallGuard.enter("APIUtility.makeRequest");
+        boolean ok;
+
+        try {
+            if (body != null) {
+                request.send(body);
+            }
+
+            ok = request.ok();
+        } finally {
+            call.exit();
+        }
+
+        if (ok) {
+            return request;
+        } else {
+            int code = request.code();
+
+            if (doRetry && (code == HTTP_UNAUTHORIZED || code == HTTP_FORBIDDEN)) {
+                // We're being denied access on the first try, let's renew the token and retry.
+                // If other requests failed with the same token, only the first one renews it.
+                getIdTokens(context, account).renew(idToken);
+
+                return executeRequest(context, method, url, account, headers, body, priority,
+                        false);
+            } else {
+                // An unrecoverable error or the renewed token didn't work either
+                throw new HttpStatusException(code, request.message());
+            }
+        }
+    }
+
+    /**
+     * Like executeRequest(), but with a down-scoped Access Token.
+     */
+    private static HttpRequest executeScopedRequest(Context context, String method, String url,
+                                                    Account account, String[] scopes,
+                                                    String audience,
+                                                    RateLimiter.Priority priority,
+                                                    boolean doRetry) throws IOException {
+
+        String accessToken = TokenStore.getScopedAccessToken(context, account, scopes, audience);
+        DPoPProofs dpop = Providers.forAccount(AccountManager.get(context), account).getDPoP();
+
+        acquirePermit(url, priority);
+
+        HttpRequest request = new HttpRequest(url, method);
+
+        // Access Tokens are bound to the DPoP key if there is one. ID Tokens never are, so the
+        // other requests stay Bearer.
+        if (dpop != null) {
+            request = OIDCUtils.prepareApiRequest(request, accessToken, dpop);
+        } else {
+            request = OIDCUtils.prepareApiRequest(request, accessToken);
+        }
+
+        BlockingCallGuard.Call call = BlockingCallGuard.enter("APIUtility.makeRequest");
+        boolean ok;
+
+        try {
+            ok = request.ok();
+        } finally {
+            call.exit();
+        }
+
+        if (ok) {
+            return request;
+        } else {
+            int code = request.code();
+
+            if (doRetry && (code == HTTP_UNAUTHORIZED || code == HTTP_FORBIDDEN)) {
+                TokenStore.invalidateScopedAccessToken(accessToken);
+
+                return executeScopedRequest(context, method, url, account, scopes, audience,
+                        priority, false);
+            } else {
+                throw new HttpStatusException(code, request.message());
+            }
+        }
+    }
+
+    /**
+     * Downloads a file with the provided account, streaming the response into the file.
+     *
+     * Only a small buffer's worth of the body is in memory at a time, never all of it as a String
+     * or a byte array, so large files don't fill the heap. The data is still copied from the
+     * connection into that buffer and from there into the file; a socket stream can't be handed to
+     * the kernel to write directly.
+     *
+     * If a previous download of the same file was interrupted, only the rest of it is requested.
+     * The partial file is kept next to the destination with a `.part` suffix, along with the
+     * response's validator (ETag or Last-Modified). If the file has changed on the server since,
+     * the server sends all of it again and we start over.
+     *
+     * Tokens are handled like in makeRequest(): if the server denies access, the token is renewed
+     * and the download is retried once.
+     *
+     * @param listener notified of progress on the calling thread, may be null
+     */
+    public static void download(Context context, String url, Account account, File destination,
+                                RateLimiter.Priority priority, ProgressListener listener)
+                                throws IOException {
+
+        download(context, url, account, destination, priority, listener, true);
     }
 
-    private static String makeRequest(Context context, String method, String url, Account account,
-                                     boolean doRetry) throws IOException {
+    /**
+     * Receives progress updates from {@link #download}.
+     */
+    public interface ProgressListener {
+        /**
+         * @param totalBytes the size of the whole file, or -1 if the server didn't tell us
+         */
+        void onProgress(long downloadedBytes, long totalBytes);
+    }
+
+    private static void download(Context context, String url, Account account, File destination,
+                                 RateLimiter.Priority priority, ProgressListener listener,
+                                 boolean doRetry) throws IOException {
+
+        GenerationalTokenCache.Token idToken = getIdTokens(context, account).current();
+
+        File partFile = new File(destination.getPath() + ".part");
+        File validatorFile = new File(destination.getPath() + ".part.validator");
+
+        // We can only resume if we know which version of the file the partial download is from
+        String validator = validatorFile.exists() ? readString(validatorFile) : null;
+        long resumeFrom = validator != null && partFile.exists() ? partFile.length() : 0;
+
+        acquirePermit(url, priority);
+
+        HttpRequest request = new HttpRequest(url, HttpRequest.METHOD_GET);
+        request = OIDCUtils.prepareApiRequest(request, idToken.getValue()).accept("*/*");
+
+        if (resumeFrom > 0) {
+            request.header("Range", "bytes=" + resumeFrom + "-");
+
+            // If the file has changed, the server ignores the range and sends a plain 200
+            request.header("If-Range", validator);
+        }
+
+        // Only the headers are covered here, the body is checked separately below
+        BlockingCallGuard.Call call = BlockingCallGuard.enter("APIUtility.download");
+        int code;
+
+        try {
+            code = request.code();
+        } finally {
+            call.exit();
+        }
+
+        if (doRetry && (code == HTTP_UNAUTHORIZED || code == HTTP_FORBIDDEN)) {
+            request.disconnect();
+            getIdTokens(context, account).renew(idToken);
+            download(context, url, account, destination, priority, listener, false);
+            return;
+        }
+
+        long start;
+        long total;
+
+        if (code == HTTP_PARTIAL && resumeFrom > 0
+                && parseRangeStart(request.header("Content-Range")) == resumeFrom) {
+            start = resumeFrom;
+            total = parseRangeTotal(request.header("Content-Range"));
+        } else if (code == HTTP_OK) {
+            start = 0;
+            total = parseLength(request.header(HttpRequest.HEADER_CONTENT_LENGTH));
+            validator = getValidator(request);
+
+            // Start a fresh partial download
+            if (validator != null) {
+                writeString(validatorFile, validator);
+            } else {
+                validatorFile.delete();
+            }
+        } else if (code == HTTP_RANGE_NOT_SATISFIABLE && resumeFrom > 0
+                && parseRangeTotal(request.header("Content-Range")) == resumeFrom) {
+            // We had already received everything, we just didn't get to finish up
+            finishDownload(partFile, validatorFile, destination);
+            return;
+        } else {
+            request.disconnect();
+
+            if (code == HTTP_PARTIAL || code == HTTP_RANGE_NOT_SATISFIABLE) {
+                // The server didn't like our range, so the partial file is no good either
+                partFile.delete();
+                validatorFile.delete();
+            }
+
+            throw new HttpStatusException(code, request.message());
+        }
+
+        RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+        ReadableByteChannel source = Channels.newChannel(request.stream());
+        call = BlockingCallGuard.enter("APIUtility.download");
 
-        AccountManager accountManager = AccountManager.get(context);
-        String idToken;
+        try {
+            FileChannel target = file.getChannel();
+            target.truncate(start);
+
+            long position = start;
+
+            if (listener != null) {
+                listener.onProgress(position, total);
+            }
+
+            // The file channel reads from the connection through a small temporary buffer of its
+            // own, so there's no buffer to manage here
+            while (true) {
+                long transferred = target.transferFrom(source, position, TRANSFER_CHUNK_BYTES);
+
+                if (transferred <= 0) {
+                    break;
+                }
+
+                position += transferred;
+
+                if (listener != null) {
+                    listener.onProgress(position, total);
+                }
+            }
+
+            if (total >= 0 && position != total) {
+                // Keep the partial file, the next attempt will pick up from here
+                throw new IOException(String.format("Download ended after %d of %d bytes.",
+                        position, total));
+            }
+        } finally {
+            call.exit();
+            source.close();
+            file.close();
+        }
+
+        finishDownload(partFile, validatorFile, destination);
+    }
+
+    private static void finishDownload(File partFile, File validatorFile, File destination)
+            throws IOException {
+
+        if (destination.exists() && !destination.delete()) {
+            throw new IOException("Could not replace " + destination);
+        }
+        if (!partFile.renameTo(destination)) {
+            throw new IOException("Could not move download to " + destination);
+        }
+
+        validatorFile.delete();
+    }
+
+    /**
+     * Returns a validator that can be used with If-Range, or null. Weak ETags aren't allowed there.
+     */
+    private static String getValidator(HttpRequest request) {
+        String eTag = request.eTag();
+
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+
+        return request.header(HttpRequest.HEADER_LAST_MODIFIED);
+    }
+
+    /**
+     * Parses the first byte position from `Content-Range: bytes first-last/total`.
+     */
+    private static long parseRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+
+        int dash = contentRange.indexOf('-');
+
+        try {
+            return dash < 0 ? -1 : Long.parseLong(contentRange.substring(6, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses the total length from `Content-Range: bytes first-last/total`, -1 if it's unknown.
+     */
+    private static long parseRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+
+        int slash = contentRange.lastIndexOf('/');
+
+        try {
+            return slash < 0 ? -1 : Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a length header without the int limit of HttpRequest.contentLength(), -1 if it's
+     * missing.
+     */
+    private static long parseLength(String header) {
+        try {
+            return header == null ? -1 : Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String readString(File file) throws IOException {
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+
+        try {
+            return input.readUTF();
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void writeString(File file, String value) throws IOException {
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(file));
+
+        try {
+            output.writeUTF(value);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Retrieves the ID token of the account from the account manager, refreshing it if needed.
+     */
+    private static String getIdToken(AccountManager accountManager, Account account)
+            throws IOException {
 
         // Try retrieving an ID token from the account manager. The boolean true in the invocation
         // tells Android to show a notification if the token can't be retrieved. When the
         // notification is selected, it will launch the intent for re-authorisation. You could
         // launch it automatically here if you wanted to by grabbing the intent from the bundle.
+        BlockingCallGuard.Call call = BlockingCallGuard.enter("AccountManager.getAuthToken");
+
         try {
             AccountManagerFuture<Bundle> futureManager = accountManager.getAuthToken(account,
                     Authenticator.TOKEN_TYPE_ID, null, true, null, null);
 
-            idToken = futureManager.getResult().getString(AccountManager.KEY_AUTHTOKEN);
+            return futureManager.getResult().getString(AccountManager.KEY_AUTHTOKEN);
         } catch (Exception e) {
             throw new IOException("Could not get ID token from account.", e);
+        } finally {
+            call.exit();
         }
+    }
 
-        // Prepare an API request using the token
-        HttpRequest request = new HttpRequest(url, method);
-        request = OIDCUtils.prepareApiRequest(request, idToken);
+    /**
+     * Returns the ID Tokens of the account, tracked by generation so that a burst of 401s only
+     * invalidates and renews the token once. The cache follows the account's token events, so
+     * tokens refreshed or invalidated elsewhere are picked up, and it's dropped when the account is
+     * removed.
+     */
+    private static GenerationalTokenCache getIdTokens(Context context, final Account account) {
+        GenerationalTokenCache tokens = idTokens.get(account.name);
 
-        if (request.ok()) {
-            return request.body();
-        } else {
-            int code = request.code();
+        if (tokens != null) {
+            return tokens;
+        }
 
-            if (doRetry && (code == HTTP_UNAUTHORIZED || code == HTTP_FORBIDDEN)) {
-                // We're being denied access on the first try, let's renew the token and retry
-                String accountType = context.getString(R.string.ACCOUNT_TYPE);
-                accountManager.invalidateAuthToken(accountType, idToken);
+        final Context appContext = context.getApplicationContext();
+        final AccountManager accountManager = AccountManager.get(appContext);
 
-                return makeRequest(context, method, url, account, false);
+        synchronized (idTokens) {
+            tokens = idTokens.get(account.name);
+
+            if (tokens != null) {
+                return tokens;
+            }
+
+            tokens = new GenerationalTokenCache(new GenerationalTokenCache.TokenSource() {
+                @Override
+                public String getToken() throws IOException {
+                    return getIdToken(accountManager, account);
+                }
+
+                @Override
+                public void invalidate(String token) {
+                    TokenStore.invalidateIdToken(appContext, account, token);
+                }
+            }, ID_TOKEN_EXPIRY);
+
+            if (tokenEventHandler == null) {
+                // Not the main thread, since a cache can be busy fetching a token for a while
+                HandlerThread thread = new HandlerThread("API token events");
+                thread.start();
+                tokenEventHandler = new Handler(thread.getLooper());
+
+                accountType = appContext.getString(R.string.ACCOUNT_TYPE);
+
+                accountManager.addOnAccountsUpdatedListener(accountListener, null, false);
+            }
+
+            idTokens.put(account.name, tokens);
+            TokenEvents.subscribe(account, tokenEventListener, tokenEventHandler);
+        }
+
+        return tokens;
+    }
+
+    // Reads the expiry of an ID Token from its claims
+    private static final GenerationalTokenCache.Expiry ID_TOKEN_EXPIRY =
+            new GenerationalTokenCache.Expiry() {
+                @Override
+                public long getExpiresAt(String token) {
+                    try {
+                        Long expiresAt = IdToken.parse(new GsonFactory(), token).getPayload()
+                                .getExpirationTimeSeconds();
+
+                        return expiresAt != null ? expiresAt * 1000 : 0;
+                    } catch (IOException | IllegalArgumentException e) {
+                        return 0;
+                    }
+                }
+            };
+
+    private static final TokenEvents.Listener tokenEventListener = new TokenEvents.Listener() {
+        @Override
+        public void onTokenEvent(Account account, TokenEvents.Type type, String idToken) {
+            GenerationalTokenCache tokens = idTokens.get(account.name);
+
+            if (tokens == null) {
+                return;
+            }
+
+            if (type == TokenEvents.Type.REFRESHED) {
+                tokens.replace(idToken);
             } else {
-                // An unrecoverable error or the renewed token didn't work either
-                throw new IOException(request.code() + " " + request.message());
+                tokens.clear();
             }
         }
+    };
+
+    private static final OnAccountsUpdateListener accountListener =
+            new OnAccountsUpdateListener() {
+                @Override
+                public void onAccountsUpdated(Account[] accounts) {
+                    Set<String> names = new HashSet<>();
+
+                    for (Account account : accounts) {
+                        if (account.type.equals(accountType)) {
+                            names.add(account.name);
+                        }
+                    }
+
+                    synchronized (idTokens) {
+                        Iterator<String> iterator = idTokens.keySet().iterator();
+
+                        while (iterator.hasNext()) {
+                            String name = iterator.next();
+
+                            if (!names.contains(name)) {
+                                iterator.remove();
+                                TokenEvents.unsubscribe(new Account(name, accountType),
+                                        tokenEventListener);
+                            }
+                        }
+                    }
+                }
+            };
+
+    private static void acquirePermit(String url, RateLimiter.Priority priority)
+            throws IOException {
+
+        String host;
+
+        try {
+            host = new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            throw new IOException("Invalid URL: " + url, e);
+        }
+
+        try {
+            rateLimiter.acquire(host, priority);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to make a request.");
+        }
+    }
+
+    /**
+     * Fetches and decodes single pages for a {@link PagedJsonIterator}.
+     */
+    private static class PageFetcher implements PagedJsonIterator.PageFetcher {
+
+        private final Context context;
+        private final String firstUrl;
+        private final Account account;
+        private final RateLimiter.Priority priority;
+
+        PageFetcher(Context context, String firstUrl, Account account,
+                    RateLimiter.Priority priority) {
+
+            this.context = context.getApplicationContext();
+            this.firstUrl = firstUrl;
+            this.account = account;
+            this.priority = priority;
+        }
+
+        @Override
+        public PagedJsonIterator.Page fetch(String url) throws IOException {
+            HttpRequest request = executeRequest(context, HttpRequest.METHOD_GET, url, account,
+                    null, null, priority, true);
+
+            List<Map> items = new ArrayList<>();
+            String nextUrl = parseNextLink(request.header("Link"));
+            String nextCursor = null;
+
+            // Decode the items straight from the stream instead of reading the page into a
+            // string first
+            Gson gson = new Gson();
+            JsonReader reader = new JsonReader(request.reader());
+
+            try {
+                if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    readItems(gson, reader, items);
+                } else {
+                    reader.beginObject();
+
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+
+                        if (reader.peek() == JsonToken.NULL) {
+                            reader.nextNull();
+                        } else if (name.equals("items") || name.equals("data")) {
+                            readItems(gson, reader, items);
+                        } else if (name.equals("next") && nextUrl == null) {
+                            nextUrl = reader.nextString();
+                        } else if (name.equals("next_cursor")) {
+                            nextCursor = reader.nextString();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+
+                    reader.endObject();
+                }
+            } finally {
+                reader.close();
+            }
+
+            if (nextUrl == null && nextCursor != null && !nextCursor.isEmpty()) {
+                nextUrl = Uri.parse(firstUrl).buildUpon()
+                        .appendQueryParameter("cursor", nextCursor)
+                        .build()
+                        .toString();
+            }
+
+            if (nextUrl != null) {
+                // Next links may be relative to the current page
+                nextUrl = new URL(new URL(url), nextUrl).toString();
+            }
+
+            return new PagedJsonIterator.Page(items, nextUrl);
+        }
+
+        private static void readItems(Gson gson, JsonReader reader, List<Map> items)
+                throws IOException {
+
+            reader.beginArray();
+
+            while (reader.hasNext()) {
+                items.add((Map) gson.fromJson(reader, Map.class));
+            }
+
+            reader.endArray();
+        }
+
+        /**
+         * Picks the `rel="next"` URL out of a Link header, see RFC 5988.
+         */
+        private static String parseNextLink(String header) {
+            if (header == null) {
+                return null;
+            }
+
+            for (String link : header.split(",")) {
+                String[] parts = link.split(";");
+                String target = parts[0].trim();
+
+                if (!target.startsWith("<") || !target.endsWith(">")) {
+                    continue;
+                }
+
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim().replace(" ", "");
+
+                    if (param.equals("rel=\"next\"") || param.equals("rel=next")) {
+                        return target.substring(1, target.length() - 1);
+                    }
+                }
+            }
+
+            return null;
+        }
+
     }
 
 }
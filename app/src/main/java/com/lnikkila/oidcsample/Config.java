@@ -15,10 +15,29 @@ public final class Config {
     public static final String clientId = "foobar";
     public static final String clientSecret = "xyzzy";
 
+    // If your provider wants `private_key_jwt` client authentication, put the client's private key
+    // here as base64-encoded PKCS #8 (RSA or P-256) and it's used instead of the secret. Set
+    // `reuseClientAssertions` to false if the provider rejects an assertion it has already seen.
+    public static final String clientPrivateKey = null;
+    public static final String clientKeyId = null;
+    public static final boolean reuseClientAssertions = true;
+
+    // Identifies the provider. Accounts remember the issuer they were created with, so more
+    // providers can be registered in Providers later on without breaking existing accounts.
+    public static final String issuer = "https://www.example.com";
+
     public static final String authorizationServerUrl = "https://www.example.com/oauth2/authorize";
     public static final String tokenServerUrl = "https://www.example.com/oauth2/token";
     public static final String userInfoUrl = "https://www.example.com/oauth2/userinfo";
 
+    // The provider's signing keys. Without them, the Hybrid Flow can't use the front-channel ID
+    // Token before the back-channel one has confirmed it, and silent reauthentication can't work.
+    public static final String jwksUrl = "https://www.example.com/oauth2/jwks";
+
+    // Only needed for the DeviceAuthorization flow
+    public static final String deviceAuthorizationUrl =
+            "https://www.example.com/oauth2/device_authorization";
+
     // This URL doesn't really have a use with native apps and basically just signifies the end
     // of the authorisation process. It doesn't have to be a real URL, but it does have to be the
     // same URL that is registered with your provider.
@@ -30,16 +49,52 @@ public final class Config {
     // app, try changing it to `offline`.
     public static final String[] scopes = {"openid", "profile", "offline_access"};
 
+    // Hedges slow Refresh Token requests with a duplicate request once they take longer than 95 %
+    // of recent ones. Only takes effect if the provider doesn't rotate Refresh Tokens, so set
+    // `refreshTokenRotation` to false if yours doesn't.
+    public static final boolean hedgeTokenRequests = false;
+    public static final boolean refreshTokenRotation = true;
+
+    // Binds the Access Tokens to a key held by the app with DPoP (RFC 9449), so a leaked token
+    // can't be used without the key. Only turn this on if your provider supports DPoP.
+    public static final boolean useDPoP = false;
+
     public enum Flows
     {
         AuthorizationCode,  //http://openid.net/specs/openid-connect-core-1_0.html#CodeFlowAuth
         Implicit,           //http://openid.net/specs/openid-connect-core-1_0.html#ImplicitFlowAuth
-        Hybrid              //http://openid.net/specs/openid-connect-core-1_0.html#HybridFlowAuth
+        Hybrid,             //http://openid.net/specs/openid-connect-core-1_0.html#HybridFlowAuth
+        DeviceAuthorization //https://tools.ietf.org/html/rfc8628
     }
 
     // The authorization flow type that determine the response_type authorization request should use.
     // One of the supported flows AuthorizationCode, Implicit or Hybrid.
+    // DeviceAuthorization doesn't show the provider's page at all, but a code that the user enters
+    // on another device, e.g. their phone. It's meant for devices that are awkward to log in on.
     // For more info see http://openid.net/specs/openid-connect-core-1_0.html#Authentication
     public static final Flows flowType = Flows.Hybrid;
 
+    // When the tokens can't be refreshed anymore, first try to get new ones with the user's
+    // existing session at the provider (`prompt=none`) in a hidden WebView, and only show the login
+    // page if that doesn't work within the timeout.
+    public static final boolean silentReauthentication = true;
+    public static final long silentReauthenticationTimeoutMillis = 5 * 1000;
+    // After a silent attempt finds no session or times out, go straight to the login page for this
+    // long instead of making the user wait for the same outcome again.
+    public static final long silentReauthenticationFailureMillis = 2 * 60 * 1000;
+
+    // Keeps the stylesheets, scripts, fonts and images of the login page in the app's cache, so
+    // logging in again doesn't download them all again. Only assets from these hosts are cached.
+    public static final boolean cacheLoginPageAssets = false;
+    public static final String[] loginPageAssetHosts = {"www.example.com"};
+
+    // How many API requests per second are made to each host, and how many can go at once after a
+    // quiet period. Match these to the API gateway's limits.
+    public static final double apiRequestsPerSecond = 10;
+    public static final int apiRequestBurst = 20;
+
+    // Token and API requests made on the main thread are always logged with their call site. Turn
+    // this on to have debug builds crash on them instead, like StrictMode's penaltyDeath().
+    public static final boolean crashOnBlockingCalls = false;
+
 }
@@ -14,10 +14,15 @@ import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ProgressBar;
 
+import com.lnikkila.oidcsample.oidc.authenticator.AccountIndex;
 import com.lnikkila.oidcsample.oidc.authenticator.Authenticator;
+import com.lnikkila.oidcsample.oidc.authenticator.Providers;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Initiates the login procedures and contains all UI stuff related to the main activity.
@@ -47,13 +52,15 @@ public class HomeActivity extends Activity {
      * Called when the user taps the big yellow button.
      */
     public void doLogin(final View view) {
-        // Grab all our accounts
-        String accountType = getString(R.string.ACCOUNT_TYPE);
-        final Account availableAccounts[] = accountManager.getAccountsByType(accountType);
+        // Grab all our accounts. The index is kept up to date in the background, so this doesn't
+        // have to ask the AccountManager.
+        final List<AccountIndex.Entry> availableAccounts = AccountIndex.get(this).getEntries();
 
-        switch (availableAccounts.length) {
+        switch (availableAccounts.size()) {
             // No account has been created, let's create one now
             case 0:
+                String accountType = getString(R.string.ACCOUNT_TYPE);
+
                 accountManager.addAccount(accountType, Authenticator.TOKEN_TYPE_ID, null, null,
                         this, new AccountManagerCallback<Bundle>() {
                             @Override
@@ -68,15 +75,27 @@ public class HomeActivity extends Activity {
 
             // There's just one account, let's use that
             case 1:
-                new ApiTask().execute(availableAccounts[0]);
+                new ApiTask().execute(availableAccounts.get(0).getAccount());
                 break;
 
             // Multiple accounts, let the user pick one
             default:
-                String name[] = new String[availableAccounts.length];
+                String name[] = new String[availableAccounts.size()];
+
+                // Display names aren't unique, e.g. the same username at two providers
+                Set<String> displayNames = new HashSet<>();
+                Set<String> duplicateDisplayNames = new HashSet<>();
 
-                for (int i = 0; i < availableAccounts.length; i++) {
-                    name[i] = availableAccounts[i].name;
+                for (AccountIndex.Entry entry : availableAccounts) {
+                    if (!displayNames.add(entry.getDisplayName())) {
+                        duplicateDisplayNames.add(entry.getDisplayName());
+                    }
+                }
+
+                for (int i = 0; i < availableAccounts.size(); i++) {
+                    AccountIndex.Entry entry = availableAccounts.get(i);
+                    name[i] = getChooserLabel(entry,
+                            duplicateDisplayNames.contains(entry.getDisplayName()));
                 }
 
                 new AlertDialog.Builder(this)
@@ -86,7 +105,8 @@ public class HomeActivity extends Activity {
                                 new DialogInterface.OnClickListener() {
                                     @Override
                                     public void onClick(DialogInterface dialog, int selectedAccount) {
-                                        new ApiTask().execute(availableAccounts[selectedAccount]);
+                                        new ApiTask().execute(
+                                                availableAccounts.get(selectedAccount).getAccount());
                                     }
                                 })
                         .create()
@@ -94,6 +114,25 @@ public class HomeActivity extends Activity {
         }
     }
 
+    /**
+     * Tells the user whether picking the account will be instant or needs the network.
+     *
+     * @param ambiguous whether another account has the same display name, in which case the
+     *                  account name is shown instead since it's unique
+     */
+    private String getChooserLabel(AccountIndex.Entry entry, boolean ambiguous) {
+        String name = ambiguous ? entry.getAccount().name : entry.getDisplayName();
+
+        switch (entry.getFreshness()) {
+            case FRESH:
+                return getString(R.string.accountSignedIn, name);
+            case NEEDS_REFRESH:
+                return getString(R.string.accountWillRefresh, name);
+            default:
+                return getString(R.string.accountSignInRequired, name);
+        }
+    }
+
     private class ApiTask extends AsyncTask<Account, Void, Map> {
 
         @Override
@@ -111,7 +150,9 @@ public class HomeActivity extends Activity {
             Account account = args[0];
 
             try {
-                return APIUtility.getJson(HomeActivity.this, Config.userInfoUrl, account);
+                // Each account may belong to a different provider
+                String userInfoUrl = Providers.forAccount(accountManager, account).getUserInfoUrl();
+                return APIUtility.getJson(HomeActivity.this, userInfoUrl, account);
             } catch (IOException e) {
                 e.printStackTrace();
                 return null;
@@ -0,0 +1,360 @@
+package com.lnikkila.oidcsample;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.AuthenticatorException;
+import android.accounts.OperationCanceledException;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import com.lnikkila.oidcsample.oidc.RateLimiter;
+import com.lnikkila.oidcsample.oidc.authenticator.Authenticator;
+import com.lnikkila.oidcsample.oidc.authenticator.TokenEvents;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static java.net.HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+import static java.net.HttpURLConnection.HTTP_FORBIDDEN;
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_UNAUTHORIZED;
+
+/**
+ * A durable queue for mutating API requests that have to reach the server eventually, even if the
+ * device is offline or the tokens can't be renewed right now.
+ *
+ * Queued requests are written to a journal in the app's files directory before
+ * {@link #enqueue} returns, so they survive the process being killed. They're replayed in the
+ * order they were queued, a batch at a time, whenever the device is connected: when a request is
+ * queued, when the app starts, when connectivity returns, and on a backoff timer after a failure.
+ *
+ * Requests are only sent once the {@link Authenticator} has a valid ID Token for the account. If
+ * the user has to log in again, that account's requests wait until new tokens are stored, while
+ * the other accounts' requests go ahead. The order is kept within each account.
+ *
+ * A request can be given a deduplication key. While a request with the same key is pending,
+ * another one isn't queued. The key is also sent in an `Idempotency-Key` header, so a server that
+ * supports it can ignore a request that was sent but whose response was lost.
+ *
+ * Requests that the server rejects for good (4xx other than 401, 403, 408 and 429) are dropped
+ * and logged, since retrying them won't help. The journal takes at most {@link #MAX_BYTES}.
+ */
+public final class OutboundQueue {
+
+    private static final String TAG = "OutboundQueue";
+
+    public static final long MAX_BYTES = 1024 * 1024;
+
+    private static final String JOURNAL_NAME = "outbound-requests.journal";
+    private static final int BATCH_SIZE = 10;
+
+    private static final long INITIAL_RETRY_MILLIS = 30 * 1000;
+    private static final long MAX_RETRY_MILLIS = 15 * 60 * 1000;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static OutboundQueue instance;
+
+    private final Context context;
+    private final AccountManager accountManager;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Outbound queue");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // Guarded by this. Opened on first use, since loading it reads the whole file.
+    private RequestJournal journal;
+
+    // Only touched on the executor
+    private long retryDelayMillis;
+    private boolean retryScheduled;
+    private final Map<String, TokenEvents.Listener> waitingForTokens = new HashMap<>();
+
+    private OutboundQueue(Context context) {
+        this.context = context.getApplicationContext();
+        this.accountManager = AccountManager.get(this.context);
+    }
+
+    public static synchronized OutboundQueue get(Context context) {
+        if (instance == null) {
+            instance = new OutboundQueue(context);
+        }
+
+        return instance;
+    }
+
+    /**
+     * Queues a request and starts replaying the queue if possible. This writes to disk, so don't
+     * call it on the main thread.
+     *
+     * @param contentType the type of the body, or null if there's no body
+     * @param body        the request body, or null for none
+     * @param dedupKey    identifies the request for deduplication, or null
+     * @return false if a request with the same deduplication key is already pending
+     * @throws IOException if the queue is full or the request couldn't be written
+     */
+    public boolean enqueue(Account account, String method, String url, String contentType,
+                           byte[] body, String dedupKey) throws IOException {
+
+        RequestJournal.Entry entry;
+
+        synchronized (this) {
+            entry = getJournal().append(dedupKey, account.name, account.type, method, url,
+                    contentType, body);
+        }
+
+        if (entry == null) {
+            Log.d(TAG, "Request already queued, ignoring it.");
+            return false;
+        }
+
+        setReceiverEnabled(true);
+        replay();
+
+        return true;
+    }
+
+    /**
+     * Replays the pending requests in the background, unless the device is offline.
+     */
+    public void replay() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runReplay();
+            }
+        });
+    }
+
+    /**
+     * Returns the number of pending requests. Reads the journal if it hasn't been read yet.
+     */
+    public synchronized int size() throws IOException {
+        return getJournal().size();
+    }
+
+    private RequestJournal getJournal() throws IOException {
+        if (journal == null) {
+            journal = new RequestJournal(new File(context.getFilesDir(), JOURNAL_NAME),
+                    MAX_BYTES);
+        }
+
+        return journal;
+    }
+
+    private void runReplay() {
+        try {
+            replayBatches();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not replay the outbound queue.", e);
+        }
+    }
+
+    private void replayBatches() throws IOException {
+        // Accounts whose requests have to wait, either for tokens or for a retry
+        Set<String> blockedAccounts = new HashSet<>();
+
+        while (isConnected()) {
+            List<RequestJournal.Entry> batch;
+
+            synchronized (this) {
+                batch = getJournal().peek(BATCH_SIZE, blockedAccounts);
+
+                if (batch.isEmpty() && getJournal().size() == 0) {
+                    setReceiverEnabled(false);
+                }
+            }
+
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            List<RequestJournal.Entry> done = new ArrayList<>(batch.size());
+
+            try {
+                for (RequestJournal.Entry entry : batch) {
+                    if (!blockedAccounts.contains(entry.accountName)
+                            && send(entry, blockedAccounts)) {
+                        done.add(entry);
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    getJournal().remove(done);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends one request. Returns true if it can be removed from the queue, and false if the
+     * account's requests have to wait, in which case the account has been added to the blocked
+     * ones.
+     */
+    private boolean send(RequestJournal.Entry entry, Set<String> blockedAccounts) {
+        Account account = new Account(entry.accountName, entry.accountType);
+
+        if (!accountExists(account)) {
+            Log.w(TAG, String.format("Dropping a queued %s request to %s, the account was removed.",
+                    entry.method, entry.url));
+            return true;
+        }
+
+        try {
+            if (!hasValidToken(account)) {
+                blockedAccounts.add(account.name);
+                waitForTokens(account);
+                return false;
+            }
+
+            Map<String, String> headers = new HashMap<>();
+
+            if (entry.contentType != null) {
+                headers.put("Content-Type", entry.contentType);
+            }
+            if (entry.dedupKey != null) {
+                headers.put("Idempotency-Key", entry.dedupKey);
+            }
+
+            APIUtility.makeRequest(context, entry.method, entry.url, account, headers, entry.body,
+                    RateLimiter.Priority.BACKGROUND);
+
+            retryDelayMillis = 0;
+            return true;
+        } catch (APIUtility.HttpStatusException e) {
+            if (isRetryable(e.getStatusCode())) {
+                blockedAccounts.add(account.name);
+                scheduleRetry();
+                return false;
+            }
+
+            Log.w(TAG, String.format("Dropping a queued %s request to %s, the server rejected it.",
+                    entry.method, entry.url), e);
+            return true;
+        } catch (IOException e) {
+            // Probably lost the connection. If so, the loop stops before the next batch.
+            blockedAccounts.add(account.name);
+            scheduleRetry();
+            return false;
+        }
+    }
+
+    private static boolean isRetryable(int statusCode) {
+        return statusCode >= HTTP_INTERNAL_ERROR || statusCode == HTTP_UNAUTHORIZED
+                || statusCode == HTTP_FORBIDDEN || statusCode == HTTP_CLIENT_TIMEOUT
+                || statusCode == HTTP_TOO_MANY_REQUESTS;
+    }
+
+    private boolean accountExists(Account account) {
+        for (Account existing : accountManager.getAccountsByType(account.type)) {
+            if (existing.equals(account)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Asks the Authenticator for an ID Token without showing any UI. It refreshes the tokens if it
+     * can, so this is false only if the user has to log in again.
+     */
+    private boolean hasValidToken(Account account) throws IOException {
+        try {
+            return accountManager.blockingGetAuthToken(account, Authenticator.TOKEN_TYPE_ID,
+                    false) != null;
+        } catch (OperationCanceledException | AuthenticatorException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Replays the queue again once new tokens have been stored for the account.
+     */
+    private void waitForTokens(final Account account) {
+        if (waitingForTokens.containsKey(account.name)) {
+            return;
+        }
+
+        TokenEvents.Listener listener = new TokenEvents.Listener() {
+            @Override
+            public void onTokenEvent(Account eventAccount, TokenEvents.Type type, String idToken) {
+                if (type == TokenEvents.Type.REFRESHED) {
+                    TokenEvents.unsubscribe(account, this);
+
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            waitingForTokens.remove(account.name);
+                            runReplay();
+                        }
+                    });
+                }
+            }
+        };
+
+        waitingForTokens.put(account.name, listener);
+        TokenEvents.subscribe(account, listener);
+    }
+
+    private void scheduleRetry() {
+        if (retryScheduled) {
+            return;
+        }
+
+        retryDelayMillis = retryDelayMillis == 0
+                ? INITIAL_RETRY_MILLIS
+                : Math.min(MAX_RETRY_MILLIS, retryDelayMillis * 2);
+        retryScheduled = true;
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                retryScheduled = false;
+                runReplay();
+            }
+        }, retryDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean isConnected() {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    /**
+     * The connectivity receiver is only enabled while there are pending requests, so that the app
+     * isn't started for every connectivity change.
+     */
+    private void setReceiverEnabled(boolean enabled) {
+        context.getPackageManager().setComponentEnabledSetting(
+                new ComponentName(context, OutboundQueueReceiver.class),
+                enabled
+                        ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                        : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+    }
+
+}
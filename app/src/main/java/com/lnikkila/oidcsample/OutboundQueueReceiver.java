@@ -0,0 +1,21 @@
+package com.lnikkila.oidcsample;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+
+/**
+ * Replays the {@link OutboundQueue} when the device comes back online. Only enabled while the
+ * queue has pending requests.
+ */
+public class OutboundQueueReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+            OutboundQueue.get(context).replay();
+        }
+    }
+
+}
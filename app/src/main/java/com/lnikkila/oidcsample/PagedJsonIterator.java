@@ -0,0 +1,163 @@
+package com.lnikkila.oidcsample;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Iterates over the items of a paginated API collection. While the items of one page are being
+ * consumed, the next page is already being fetched in the background. Only the current page and
+ * the one after it are ever held in memory.
+ *
+ * Iterators can't throw checked exceptions, so a failed page fetch is thrown as a
+ * {@link PageFetchException} from hasNext() or next(), wrapping the original IOException.
+ *
+ * Not thread safe. Create these with {@link APIUtility#iterateJson}.
+ */
+public class PagedJsonIterator implements Iterator<Map>, Closeable {
+
+    /**
+     * Fetches and decodes one page.
+     */
+    interface PageFetcher {
+        Page fetch(String url) throws IOException;
+    }
+
+    static class Page {
+
+        final List<Map> items;
+        final String nextUrl;
+
+        Page(List<Map> items, String nextUrl) {
+            this.items = items;
+            this.nextUrl = nextUrl;
+        }
+
+    }
+
+    /**
+     * Thrown when a page couldn't be fetched.
+     */
+    public static class PageFetchException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        PageFetchException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+
+    }
+
+    // Shared by all iterators. Prefetching is just waiting on the network, so the threads are
+    // cheap, and daemon threads don't keep anything alive when the app is done with them.
+    private static final ExecutorService prefetchExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "API page prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final PageFetcher fetcher;
+
+    private Iterator<Map> currentItems = Collections.<Map>emptyList().iterator();
+    private Future<Page> nextPage;
+    private boolean closed;
+
+    PagedJsonIterator(PageFetcher fetcher, String firstUrl) {
+        this.fetcher = fetcher;
+        this.nextPage = prefetch(firstUrl);
+    }
+
+    @Override
+    public boolean hasNext() {
+        // Skip over empty pages until we find items or run out of pages
+        while (!currentItems.hasNext()) {
+            if (closed || nextPage == null) {
+                return false;
+            }
+
+            Page page = await(nextPage);
+
+            // Start fetching the page after this one before handing out any items
+            nextPage = page.nextUrl != null ? prefetch(page.nextUrl) : null;
+            currentItems = page.items.iterator();
+        }
+
+        return true;
+    }
+
+    @Override
+    public Map next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return currentItems.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops the iteration and cancels the prefetch of the next page, if there is one.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        currentItems = Collections.<Map>emptyList().iterator();
+
+        if (nextPage != null) {
+            nextPage.cancel(true);
+            nextPage = null;
+        }
+    }
+
+    private Future<Page> prefetch(final String url) {
+        return prefetchExecutor.submit(new Callable<Page>() {
+            @Override
+            public Page call() throws IOException {
+                return fetcher.fetch(url);
+            }
+        });
+    }
+
+    private static Page await(Future<Page> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PageFetchException(new IOException("Interrupted while fetching a page."));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw new PageFetchException((IOException) cause);
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new PageFetchException(new IOException(cause));
+            }
+        }
+    }
+
+}
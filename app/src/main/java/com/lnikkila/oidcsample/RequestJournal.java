@@ -0,0 +1,407 @@
+package com.lnikkila.oidcsample;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The on-disk part of {@link OutboundQueue}: an append-only journal of queued requests and of the
+ * requests that have since been sent.
+ *
+ * Every record is framed with its length and a CRC32, and synced to disk before the call returns.
+ * If the process dies in the middle of a write, the torn record at the end fails its check and is
+ * cut off when the journal is loaded again, so a request is either fully queued or not at all.
+ *
+ * Sent requests are only marked as such, so the file keeps growing until it's compacted: then
+ * only the pending requests are copied into a new file, which replaces the old one. The pending
+ * requests together may never take more than the given maximum.
+ *
+ * Not thread-safe on its own, {@link OutboundQueue} synchronises the access.
+ */
+final class RequestJournal {
+
+    private static final int MAGIC = 0x4f514a31;    // "OQJ1"
+    private static final int HEADER_BYTES = 4;
+    private static final int FRAME_BYTES = 8;       // Length and CRC32
+
+    private static final byte TYPE_QUEUED = 1;
+    private static final byte TYPE_SENT = 2;
+
+    // Don't bother compacting small files
+    private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+    static final class Entry {
+
+        final long id;
+        final String dedupKey;
+        final String accountName;
+        final String accountType;
+        final String method;
+        final String url;
+        final String contentType;
+        final byte[] body;
+
+        // The size of the framed record in the journal
+        int recordBytes;
+
+        Entry(long id, String dedupKey, String accountName, String accountType, String method,
+              String url, String contentType, byte[] body) {
+
+            this.id = id;
+            this.dedupKey = dedupKey;
+            this.accountName = accountName;
+            this.accountType = accountType;
+            this.method = method;
+            this.url = url;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+    }
+
+    private final File file;
+    private final long maxBytes;
+
+    // Pending requests by ID, in the order they were queued
+    private final Map<Long, Entry> pending = new LinkedHashMap<>();
+    private final Map<String, Entry> pendingByDedupKey = new HashMap<>();
+
+    private long nextId = 1;
+    private long fileBytes;
+    private long pendingBytes;
+
+    /**
+     * Opens the journal, creating it if needed, and loads the pending requests from it.
+     */
+    RequestJournal(File file, long maxBytes) throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+
+        if (file.exists()) {
+            load();
+        } else {
+            rewrite();
+        }
+    }
+
+    /**
+     * Queues a request. Returns null if a pending request already has the same deduplication key.
+     *
+     * @throws IOException if there's no room for the request or it couldn't be written
+     */
+    Entry append(String dedupKey, String accountName, String accountType, String method,
+                 String url, String contentType, byte[] body) throws IOException {
+
+        if (dedupKey != null && pendingByDedupKey.containsKey(dedupKey)) {
+            return null;
+        }
+
+        Entry entry = new Entry(nextId, dedupKey, accountName, accountType, method, url,
+                contentType, body);
+        byte[] record = frame(encodeQueued(entry));
+        entry.recordBytes = record.length;
+
+        if (HEADER_BYTES + pendingBytes + record.length > maxBytes) {
+            throw new IOException("The outbound queue is full.");
+        }
+
+        if (fileBytes + record.length > maxBytes) {
+            // There's room, it's just taken up by requests that have already been sent
+            rewrite();
+        }
+
+        write(record);
+
+        nextId++;
+        add(entry);
+
+        return entry;
+    }
+
+    /**
+     * Returns up to the given number of pending requests in the order they were queued, skipping
+     * the requests of the given accounts.
+     */
+    List<Entry> peek(int max, Collection<String> skippedAccountNames) {
+        List<Entry> entries = new ArrayList<>(Math.min(max, pending.size()));
+
+        for (Entry entry : pending.values()) {
+            if (entries.size() == max) {
+                break;
+            }
+
+            if (!skippedAccountNames.contains(entry.accountName)) {
+                entries.add(entry);
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * Marks requests as sent, with a single write for all of them.
+     */
+    void remove(List<Entry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream(entries.size() * 17);
+
+        for (Entry entry : entries) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(9);
+            DataOutputStream output = new DataOutputStream(payload);
+            output.writeByte(TYPE_SENT);
+            output.writeLong(entry.id);
+
+            records.write(frame(payload.toByteArray()));
+        }
+
+        for (Entry entry : entries) {
+            remove(entry);
+        }
+
+        if (fileBytes > MIN_COMPACTION_BYTES && fileBytes > 2 * (HEADER_BYTES + pendingBytes)) {
+            // Rewriting leaves out the sent requests, so the records above aren't needed
+            rewrite();
+        } else {
+            write(records.toByteArray());
+        }
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    long getFileBytes() {
+        return fileBytes;
+    }
+
+    private void add(Entry entry) {
+        pending.put(entry.id, entry);
+        pendingBytes += entry.recordBytes;
+
+        if (entry.dedupKey != null) {
+            pendingByDedupKey.put(entry.dedupKey, entry);
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (pending.remove(entry.id) == null) {
+            return;
+        }
+
+        pendingBytes -= entry.recordBytes;
+
+        if (entry.dedupKey != null) {
+            pendingByDedupKey.remove(entry.dedupKey);
+        }
+    }
+
+    private void load() throws IOException {
+        DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        long validBytes = 0;
+        boolean valid;
+
+        try {
+            valid = input.readInt() == MAGIC;
+            validBytes = HEADER_BYTES;
+
+            while (valid) {
+                int length = input.readInt();
+                int checksum = input.readInt();
+
+                if (length <= 0 || length > maxBytes) {
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+
+                if (checksum != crc(payload)) {
+                    break;
+                }
+
+                apply(payload);
+                validBytes += FRAME_BYTES + length;
+            }
+        } catch (EOFException e) {
+            // The end of the file, or of the last complete record
+            valid = validBytes >= HEADER_BYTES;
+        } finally {
+            input.close();
+        }
+
+        if (!valid) {
+            // Not a journal we can read, e.g. from a future version. Start over.
+            pending.clear();
+            pendingByDedupKey.clear();
+            pendingBytes = 0;
+            rewrite();
+            return;
+        }
+
+        fileBytes = validBytes;
+
+        if (validBytes < file.length()) {
+            // Cut off the torn write so the next record is appended after the last good one
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+            try {
+                randomAccessFile.setLength(validBytes);
+                randomAccessFile.getFD().sync();
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    private void apply(byte[] payload) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = input.readByte();
+        long id = input.readLong();
+
+        nextId = Math.max(nextId, id + 1);
+
+        if (type == TYPE_SENT) {
+            Entry entry = pending.get(id);
+
+            if (entry != null) {
+                remove(entry);
+            }
+        } else if (type == TYPE_QUEUED) {
+            String dedupKey = nullIfEmpty(input.readUTF());
+            String accountName = input.readUTF();
+            String accountType = input.readUTF();
+            String method = input.readUTF();
+            String url = input.readUTF();
+            String contentType = nullIfEmpty(input.readUTF());
+
+            int bodyLength = input.readInt();
+            byte[] body = null;
+
+            if (bodyLength >= 0) {
+                body = new byte[bodyLength];
+                input.readFully(body);
+            }
+
+            Entry entry = new Entry(id, dedupKey, accountName, accountType, method, url,
+                    contentType, body);
+            entry.recordBytes = FRAME_BYTES + payload.length;
+
+            add(entry);
+        }
+    }
+
+    /**
+     * Writes the pending requests into a new file and replaces the journal with it.
+     */
+    private void rewrite() throws IOException {
+        File newFile = new File(file.getPath() + ".new");
+        FileOutputStream output = new FileOutputStream(newFile);
+        long bytes = HEADER_BYTES;
+
+        try {
+            DataOutputStream dataOutput = new DataOutputStream(output);
+            dataOutput.writeInt(MAGIC);
+
+            for (Entry entry : pending.values()) {
+                byte[] record = frame(encodeQueued(entry));
+                dataOutput.write(record);
+                bytes += record.length;
+            }
+
+            dataOutput.flush();
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+
+        if (!newFile.renameTo(file)) {
+            newFile.delete();
+            throw new IOException("Could not replace " + file);
+        }
+
+        fileBytes = bytes;
+    }
+
+    private void write(byte[] records) throws IOException {
+        FileOutputStream output = new FileOutputStream(file, true);
+
+        try {
+            output.write(records);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+
+        fileBytes += records.length;
+    }
+
+    private static byte[] encodeQueued(Entry entry) throws IOException {
+        int bodyLength = entry.body != null ? entry.body.length : 0;
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(entry.url.length() + bodyLength
+                + 64);
+        DataOutputStream output = new DataOutputStream(payload);
+
+        output.writeByte(TYPE_QUEUED);
+        output.writeLong(entry.id);
+        output.writeUTF(emptyIfNull(entry.dedupKey));
+        output.writeUTF(entry.accountName);
+        output.writeUTF(entry.accountType);
+        output.writeUTF(entry.method);
+        output.writeUTF(entry.url);
+        output.writeUTF(emptyIfNull(entry.contentType));
+
+        if (entry.body != null) {
+            output.writeInt(entry.body.length);
+            output.write(entry.body);
+        } else {
+            output.writeInt(-1);
+        }
+
+        return payload.toByteArray();
+    }
+
+    private static byte[] frame(byte[] payload) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(FRAME_BYTES + payload.length);
+        DataOutputStream output = new DataOutputStream(record);
+
+        output.writeInt(payload.length);
+        output.writeInt(crc(payload));
+        output.write(payload);
+
+        return record.toByteArray();
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static String emptyIfNull(String string) {
+        return string != null ? string : "";
+    }
+
+    private static String nullIfEmpty(String string) {
+        return string.isEmpty() ? null : string;
+    }
+
+}
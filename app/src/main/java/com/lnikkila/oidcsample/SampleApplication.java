@@ -0,0 +1,58 @@
+package com.lnikkila.oidcsample;
+
+import android.app.Application;
+import android.os.Looper;
+import android.util.Log;
+
+import com.lnikkila.oidcsample.oidc.BlockingCallGuard;
+import com.lnikkila.oidcsample.oidc.OIDCWarmUp;
+import com.lnikkila.oidcsample.oidc.authenticator.AccountIndex;
+import com.lnikkila.oidcsample.oidc.authenticator.Providers;
+
+/**
+ * Starts warming up the OpenID Connect stack as soon as the process starts, so the first login or
+ * token refresh doesn't have to pay for class loading and reflection on the critical path. Also
+ * sets up the detection of blocking calls on the main thread, builds the account index and
+ * replays the outbound request queue.
+ *
+ * This is optional. Remove the `android:name` attribute from the application element in the
+ * manifest to opt out.
+ */
+public class SampleApplication extends Application {
+
+    private final String TAG = getClass().getSimpleName();
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Catch token and API requests that slip onto the UI thread. They're logged with the call
+        // site and how long the UI thread was blocked, and debug builds can opt in to crashing.
+        BlockingCallGuard.Penalty penalty = BuildConfig.DEBUG && Config.crashOnBlockingCalls
+                ? BlockingCallGuard.Penalty.THROW : BlockingCallGuard.Penalty.REPORT;
+
+        BlockingCallGuard.install(new BlockingCallGuard.ThreadPolicy() {
+            @Override
+            public boolean isBlockingForbidden() {
+                return Looper.getMainLooper().getThread() == Thread.currentThread();
+            }
+        }, penalty, new BlockingCallGuard.Reporter() {
+            @Override
+            public void onViolation(String callName, Throwable callSite, long durationMillis) {
+                Log.w(TAG, String.format("%s blocked the main thread for %d ms.", callName,
+                        durationMillis), callSite);
+            }
+        });
+
+        // Runs on a low priority daemon thread, so it doesn't compete with the UI
+        OIDCWarmUp.start(Providers.getRegistry());
+
+        // Reads the accounts' user data once in the background, so the account chooser can open
+        // without doing that
+        AccountIndex.get(this);
+
+        // Sends the API requests that were queued while offline, in the background
+        OutboundQueue.get(this).replay();
+    }
+
+}
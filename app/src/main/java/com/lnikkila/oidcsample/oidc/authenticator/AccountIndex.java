@@ -0,0 +1,222 @@
+package com.lnikkila.oidcsample.oidc.authenticator;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.OnAccountsUpdateListener;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.TextUtils;
+
+import com.lnikkila.oidcsample.R;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * An in-memory index of this app's accounts, with what's needed to show them in an account chooser:
+ * a display name and whether the account's tokens are fresh.
+ *
+ * The index is built once per process on a background thread, and kept current by an account
+ * update listener on that thread, and by {@link TokenStore} whenever tokens are stored or
+ * invalidated. Reading it doesn't touch the AccountManager at all, so the chooser can be shown
+ * right away.
+ *
+ * Token freshness is a hint for the UI. Tokens invalidated by someone else than {@link TokenStore}
+ * aren't noticed until the next update, and getAuthToken() still has the final say.
+ */
+public final class AccountIndex implements OnAccountsUpdateListener {
+
+    /**
+     * What logging in with an account will involve.
+     */
+    public enum Freshness {
+        /** The ID Token is still valid, logging in doesn't need the network. */
+        FRESH,
+        /** The ID Token has expired or been invalidated, but there's a Refresh Token. */
+        NEEDS_REFRESH,
+        /** There are no usable tokens, the user needs to log in again. */
+        NEEDS_LOGIN
+    }
+
+    public static final class Entry {
+
+        private final Account account;
+        private final String displayName;
+        private final long idTokenExpiresAt;
+        private final boolean hasIdToken;
+        private final boolean hasRefreshToken;
+
+        Entry(Account account, String displayName, long idTokenExpiresAt, boolean hasIdToken,
+              boolean hasRefreshToken) {
+
+            this.account = account;
+            this.displayName = displayName;
+            this.idTokenExpiresAt = idTokenExpiresAt;
+            this.hasIdToken = hasIdToken;
+            this.hasRefreshToken = hasRefreshToken;
+        }
+
+        public Account getAccount() {
+            return account;
+        }
+
+        /**
+         * The preferred username from the latest ID Token, or the account name if there wasn't one.
+         */
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        public Freshness getFreshness() {
+            if (hasIdToken && System.currentTimeMillis() < idTokenExpiresAt) {
+                return Freshness.FRESH;
+            } else if (hasRefreshToken) {
+                return Freshness.NEEDS_REFRESH;
+            } else {
+                return Freshness.NEEDS_LOGIN;
+            }
+        }
+
+    }
+
+    private static AccountIndex instance;
+
+    private final AccountManager accountManager;
+    private final String accountType;
+
+    // Account name -> entry, in the order the AccountManager returned them. Replaced, not modified.
+    private volatile Map<String, Entry> entries = Collections.emptyMap();
+
+    private final CountDownLatch built = new CountDownLatch(1);
+
+    private AccountIndex(Context context) {
+        accountManager = AccountManager.get(context);
+        accountType = context.getString(R.string.ACCOUNT_TYPE);
+    }
+
+    /**
+     * Returns the index, and starts building it in the background on the first call. Make the
+     * first call early, e.g. in Application.onCreate(), so that it's built by the time it's needed.
+     */
+    public static synchronized AccountIndex get(Context context) {
+        if (instance == null) {
+            instance = new AccountIndex(context.getApplicationContext());
+            instance.build();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Returns the accounts. Waits for the index to be built if it isn't yet, which only happens
+     * when it's asked for right after the process has started.
+     */
+    public List<Entry> getEntries() {
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                built.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        return Collections.unmodifiableList(new ArrayList<>(entries.values()));
+    }
+
+    /**
+     * Called with all accounts on the device whenever one is added or removed.
+     */
+    @Override
+    public synchronized void onAccountsUpdated(Account[] accounts) {
+        Map<String, Entry> updated = new LinkedHashMap<>();
+
+        for (Account account : accounts) {
+            if (accountType.equals(account.type)) {
+                updated.put(account.name, load(account));
+            }
+        }
+
+        entries = updated;
+    }
+
+    /**
+     * Reads every account's user data, and those of accounts added later, on a thread of its own.
+     */
+    private void build() {
+        HandlerThread thread = new HandlerThread("Account index",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+
+        Handler handler = new Handler(thread.getLooper());
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                onAccountsUpdated(accountManager.getAccountsByType(accountType));
+                built.countDown();
+            }
+        });
+
+        // The listener is never removed, the index lives as long as the process
+        accountManager.addOnAccountsUpdatedListener(this, handler, false);
+    }
+
+    synchronized void onTokensStored(Account account, long idTokenExpiresAt, String displayName) {
+        Map<String, Entry> updated = new LinkedHashMap<>(entries);
+        updated.put(account.name, new Entry(account, displayNameOf(account, displayName),
+                idTokenExpiresAt, true, !TextUtils.isEmpty(accountManager.peekAuthToken(account,
+                        Authenticator.TOKEN_TYPE_REFRESH))));
+        entries = updated;
+    }
+
+    synchronized void onIdTokenInvalidated(Account account) {
+        Entry entry = entries.get(account.name);
+
+        if (entry != null) {
+            Map<String, Entry> updated = new LinkedHashMap<>(entries);
+            updated.put(account.name, new Entry(account, entry.displayName,
+                    entry.idTokenExpiresAt, false, entry.hasRefreshToken));
+            entries = updated;
+        }
+    }
+
+    private Entry load(Account account) {
+        long expiresAt = 0;
+        String expiresAtString = accountManager.getUserData(account,
+                TokenStore.KEY_ID_TOKEN_EXPIRES_AT);
+
+        if (expiresAtString != null) {
+            try {
+                expiresAt = Long.parseLong(expiresAtString);
+            } catch (NumberFormatException ignored) {
+                // Treated as expired
+            }
+        }
+
+        String displayName = accountManager.getUserData(account, TokenStore.KEY_DISPLAY_NAME);
+
+        return new Entry(account, displayNameOf(account, displayName), expiresAt,
+                !TextUtils.isEmpty(accountManager.peekAuthToken(account,
+                        Authenticator.TOKEN_TYPE_ID)),
+                !TextUtils.isEmpty(accountManager.peekAuthToken(account,
+                        Authenticator.TOKEN_TYPE_REFRESH)));
+    }
+
+    private static String displayNameOf(Account account, String displayName) {
+        return TextUtils.isEmpty(displayName) ? account.name : displayName;
+    }
+
+}
@@ -0,0 +1,180 @@
+package com.lnikkila.oidcsample.oidc.authenticator;
+
+import android.util.Log;
+
+import com.lnikkila.oidcsample.BuildConfig;
+
+import java.util.regex.Pattern;
+
+/**
+ * Logging for the authenticator paths, which handle tokens on every call.
+ *
+ * Messages use `{}` placeholders and are only formatted if the level is enabled, so a disabled log
+ * call doesn't allocate anything. There are fixed-arity overloads instead of varargs for the same
+ * reason, including ones for long arguments to avoid boxing.
+ *
+ * Debug and info messages are enabled in debug builds, and in release builds only when turned on
+ * for the tag with `adb shell setprop log.tag.<TAG> DEBUG`. Warnings and errors are always logged.
+ *
+ * Whatever is logged is redacted first: JWTs, token-like arguments and the values of token and
+ * code parameters in URLs and JSON never reach logcat in full. That includes the messages of
+ * throwables, which can be anything, e.g. a Token Endpoint response. Debug builds log their
+ * redacted stack trace, release builds only their classes and redacted messages.
+ */
+final class AuthLog {
+
+    private static final String REDACTED = "[redacted]";
+
+    // Three base64url segments separated by dots. The header is JSON, so it starts with `{"`.
+    private static final Pattern JWT = Pattern.compile(
+            "eyJ[A-Za-z0-9_-]*\\.[A-Za-z0-9_-]+\\.[A-Za-z0-9_-]*");
+
+    // Sensitive query and fragment parameters
+    private static final Pattern SECRET_PARAMETER = Pattern.compile(
+            "\\b(code|device_code|id_token|access_token|refresh_token|client_secret"
+                    + "|client_assertion)=[^&#\\s']+");
+
+    // The same as members of a JSON object, e.g. in a Token Endpoint response
+    private static final Pattern SECRET_MEMBER = Pattern.compile(
+            "\"(code|device_code|id_token|access_token|refresh_token|client_secret"
+                    + "|client_assertion)\"\\s*:\\s*\"[^\"]*\"");
+
+    // How many causes of a throwable are described in release builds
+    private static final int MAX_CAUSES = 4;
+
+    // An argument that is one long run of token characters. URLs contain ':' and token type names
+    // contain '.', so they don't match. JWTs are caught above.
+    private static final Pattern TOKEN_LIKE = Pattern.compile("[A-Za-z0-9_~+/=-]{16,}");
+
+    private AuthLog() {}
+
+    static boolean isLoggable(String tag, int level) {
+        // BuildConfig.DEBUG is a constant, so the debug check compiles away in release builds
+        return level >= Log.WARN || BuildConfig.DEBUG || Log.isLoggable(tag, level);
+    }
+
+    static void d(String tag, String message) {
+        if (isLoggable(tag, Log.DEBUG)) {
+            Log.d(tag, redact(message));
+        }
+    }
+
+    static void d(String tag, String format, Object arg) {
+        if (isLoggable(tag, Log.DEBUG)) {
+            Log.d(tag, format(format, arg, null, null));
+        }
+    }
+
+    static void d(String tag, String format, long arg) {
+        if (isLoggable(tag, Log.DEBUG)) {
+            Log.d(tag, format(format, Long.toString(arg), null, null));
+        }
+    }
+
+    static void d(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(tag, Log.DEBUG)) {
+            Log.d(tag, format(format, arg1, arg2, null));
+        }
+    }
+
+    static void d(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(tag, Log.DEBUG)) {
+            Log.d(tag, format(format, arg1, arg2, arg3));
+        }
+    }
+
+    static void i(String tag, String format, Object arg) {
+        if (isLoggable(tag, Log.INFO)) {
+            Log.i(tag, format(format, arg, null, null));
+        }
+    }
+
+    static void w(String tag, String message, Throwable throwable) {
+        Log.w(tag, redact(message) + describe(throwable));
+    }
+
+    static void w(String tag, String format, Object arg, Throwable throwable) {
+        Log.w(tag, format(format, arg, null, null) + describe(throwable));
+    }
+
+    static void e(String tag, String message) {
+        Log.e(tag, redact(message));
+    }
+
+    static void e(String tag, String message, Throwable throwable) {
+        Log.e(tag, redact(message) + describe(throwable));
+    }
+
+    static void e(String tag, String format, Object arg) {
+        Log.e(tag, format(format, arg, null, null));
+    }
+
+    static void e(String tag, String format, Object arg1, Object arg2) {
+        Log.e(tag, format(format, arg1, arg2, null));
+    }
+
+    /**
+     * Replaces up to three `{}` placeholders with the arguments and redacts the result.
+     */
+    static String format(String format, Object arg1, Object arg2, Object arg3) {
+        StringBuilder builder = new StringBuilder(format.length() + 32);
+        Object[] args = {arg1, arg2, arg3};
+        int argIndex = 0;
+        int start = 0;
+        int placeholder;
+
+        while (argIndex < args.length && (placeholder = format.indexOf("{}", start)) != -1) {
+            builder.append(format, start, placeholder).append(redactArgument(args[argIndex++]));
+            start = placeholder + 2;
+        }
+
+        builder.append(format, start, format.length());
+
+        return redact(builder.toString());
+    }
+
+    static String redact(String message) {
+        message = JWT.matcher(message).replaceAll(REDACTED);
+        message = SECRET_MEMBER.matcher(message).replaceAll("\"$1\":\"" + REDACTED + "\"");
+        return SECRET_PARAMETER.matcher(message).replaceAll("$1=" + REDACTED);
+    }
+
+    /**
+     * The throwable as it's appended to a message, redacted. Release builds leave out the stack
+     * trace and only name the classes of the throwable and its causes, with their messages.
+     */
+    static String describe(Throwable throwable) {
+        if (throwable == null) {
+            return "";
+        }
+
+        if (BuildConfig.DEBUG) {
+            return "\n" + redact(Log.getStackTraceString(throwable));
+        }
+
+        StringBuilder summary = new StringBuilder();
+        Throwable cause = throwable;
+
+        for (int i = 0; cause != null && i <= MAX_CAUSES; i++, cause = cause.getCause()) {
+            summary.append(i == 0 ? "\n" : "\nCaused by: ").append(cause.getClass().getName());
+
+            if (cause.getMessage() != null) {
+                summary.append(": ").append(cause.getMessage());
+            }
+        }
+
+        return redact(summary.toString());
+    }
+
+    private static String redactArgument(Object arg) {
+        String string = String.valueOf(arg);
+
+        if (TOKEN_LIKE.matcher(string).matches()) {
+            // Keep the start so that different tokens can still be told apart
+            return string.substring(0, 4) + "..." + REDACTED;
+        }
+
+        return string;
+    }
+
+}
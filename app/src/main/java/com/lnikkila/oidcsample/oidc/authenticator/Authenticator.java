@@ -9,12 +9,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.text.TextUtils;
-import android.util.Log;
 
-import com.google.api.client.auth.oauth2.TokenResponseException;
-import com.google.api.client.auth.openidconnect.IdTokenResponse;
 import com.lnikkila.oidcsample.Config;
-import com.lnikkila.oidcsample.oidc.OIDCUtils;
+import com.lnikkila.oidcsample.oidc.GenerationalTokenCache;
+import com.lnikkila.oidcsample.oidc.OIDCClient;
+import com.lnikkila.oidcsample.oidc.RefreshBackoff;
+import com.lnikkila.oidcsample.oidc.TokenRequestException;
+import com.lnikkila.oidcsample.oidc.TokenResult;
 
 import java.io.IOException;
 
@@ -43,13 +44,30 @@ public class Authenticator extends AbstractAccountAuthenticator {
     public static final String TOKEN_TYPE_ACCESS = "com.lnikkila.oidcsample.TOKEN_TYPE_ACCESS";
     public static final String TOKEN_TYPE_REFRESH = "com.lnikkila.oidcsample.TOKEN_TYPE_REFRESH";
 
+    /**
+     * The issuer of the provider an account belongs to. Stored in the account's user data, and can
+     * be passed in the options of addAccount() to pick a provider other than the default one.
+     */
+    public static final String KEY_ISSUER = "com.lnikkila.oidcsample.KEY_ISSUER";
+
+    /**
+     * Included in the error result of getAuthToken() when a refresh has failed recently and we're
+     * not trying again yet. Holds the number of milliseconds until the next attempt is allowed.
+     */
+    public static final String KEY_RETRY_AFTER_MILLIS =
+            "com.lnikkila.oidcsample.KEY_RETRY_AFTER_MILLIS";
+
+    // Android creates a new Authenticator every time the service is bound, so the failure state
+    // has to outlive the instances.
+    private static final RefreshBackoff refreshBackoff = new RefreshBackoff();
+
     public Authenticator(Context context) {
         super(context);
         this.context = context;
 
         accountManager = AccountManager.get(context);
 
-        Log.d(TAG, "Authenticator created.");
+        AuthLog.d(TAG, "Authenticator created.");
     }
 
     /**
@@ -58,14 +76,24 @@ public class Authenticator extends AbstractAccountAuthenticator {
      */
     @Override
     public Bundle addAccount(AccountAuthenticatorResponse response, String accountType,
-                             String authTokenType, String[] requiredFeatures, Bundle options) {
+                             String authTokenType, String[] requiredFeatures, Bundle options)
+                             throws NetworkErrorException {
 
-        Log.d(TAG, String.format("addAccount called with accountType %s, authTokenType %s.",
-                accountType, authTokenType));
+        AuthLog.d(TAG, "addAccount called with accountType {}, authTokenType {}.", accountType,
+                authTokenType);
 
         Bundle result = new Bundle();
 
-        Intent intent = createIntentForAuthorization(response);
+        String issuer = options != null ? options.getString(KEY_ISSUER) : null;
+        OIDCClient client;
+
+        try {
+            client = Providers.forIssuer(issuer);
+        } catch (IOException e) {
+            throw new NetworkErrorException("Couldn't set up provider.", e);
+        }
+
+        Intent intent = createIntentForAuthorization(response, client);
 
         // We're creating a new account, not just renewing our authorisation
         intent.putExtra(AuthenticatorActivity.KEY_IS_NEW_ACCOUNT, true);
@@ -81,85 +109,113 @@ public class Authenticator extends AbstractAccountAuthenticator {
      */
     @Override
     public Bundle getAuthToken(AccountAuthenticatorResponse response, Account account,
-                               String authTokenType, Bundle options) {
+                               String authTokenType, Bundle options)
+                               throws NetworkErrorException {
 
-        Log.d(TAG, String.format("getAuthToken called with account.type '%s', account.name '%s', " +
-                "authTokenType '%s'.", account.type, account.name, authTokenType));
+        AuthLog.d(TAG, "getAuthToken called with account.type '{}', account.name '{}', " +
+                "authTokenType '{}'.", account.type, account.name, authTokenType);
 
         // Try to retrieve a stored token
-        String token = accountManager.peekAuthToken(account, authTokenType);
+        String token = peekValidToken(account, authTokenType);
 
         if (TextUtils.isEmpty(token)) {
+            OIDCClient client;
+
+            try {
+                client = Providers.forAccount(accountManager, account);
+            } catch (IOException e) {
+                throw new NetworkErrorException("Couldn't set up provider.", e);
+            }
+
             // If we don't have one or the token has been invalidated, we need to check if we have
             // a refresh token
-            Log.d(TAG, "Token empty, checking for refresh token.");
+            AuthLog.d(TAG, "Token empty, checking for refresh token.");
             String refreshToken = accountManager.peekAuthToken(account, TOKEN_TYPE_REFRESH);
 
             if (TextUtils.isEmpty(refreshToken)) {
                 // If we don't even have a refresh token, we need to launch an intent for the user
                 // to get us a new set of tokens by authorising us again.
 
-                Log.d(TAG, "Refresh token empty, launching intent for renewing authorisation.");
-
-                Bundle result = new Bundle();
-                Intent intent = createIntentForAuthorization(response);
-
-                // Provide the account that we need re-authorised
-                intent.putExtra(AuthenticatorActivity.KEY_ACCOUNT_OBJECT, account);
-
-                result.putParcelable(AccountManager.KEY_INTENT, intent);
-                return result;
+                AuthLog.d(TAG, "Refresh token empty, launching intent for renewing authorisation.");
+                return requestAuthorization(response, client, account, authTokenType);
             } else {
-                // Got a refresh token, let's use it to get a fresh set of tokens
-                Log.d(TAG, "Got refresh token, getting new tokens.");
+                // If refreshing failed just a moment ago, don't hammer the Token Server again
+                long retryAfter = refreshBackoff.getRemainingMillis(account.name);
 
-                IdTokenResponse tokenResponse;
+                if (retryAfter > 0) {
+                    AuthLog.d(TAG, "Refresh failed recently, not retrying for {} ms.", retryAfter);
 
-                try {
-                    tokenResponse = OIDCUtils.refreshTokens(Config.tokenServerUrl,
-                                                            Config.clientId,
-                                                            Config.clientSecret,
-                                                            Config.scopes,
-                                                            refreshToken);
-
-                    Log.d(TAG, "Got new tokens.");
+                    return createRefreshFailedResult(retryAfter);
+                }
 
-                    accountManager.setAuthToken(account, TOKEN_TYPE_ID, tokenResponse.getIdToken());
-                    accountManager.setAuthToken(account, TOKEN_TYPE_ACCESS, tokenResponse.getAccessToken());
-                    accountManager.setAuthToken(account, TOKEN_TYPE_REFRESH, tokenResponse.getRefreshToken());
-                }catch (TokenResponseException e) {
-                    if(e.getStatusCode() == HTTP_BAD_REQUEST && e.getContent().contains("invalid_grant")) {
-                        // If the refresh token has expired, we need to launch an intent for the user
-                        // to get us a new set of tokens by authorising us again.
+                // Got a refresh token, let's use it to get a fresh set of tokens
+                AuthLog.d(TAG, "Got refresh token, getting new tokens.");
 
-                        Log.d(TAG, "Refresh token expired, launching intent for renewing authorisation.");
+                // Down-scoped token requests use the same Refresh Token
+                synchronized (TokenStore.getRefreshLock(account)) {
+                    // The refresh of a caller we waited for may have just failed, in which case we
+                    // fail fast too instead of making the same request again. Failures are
+                    // recorded before the lock is released, so this always sees them.
+                    retryAfter = refreshBackoff.getRemainingMillis(account.name);
 
-                        Bundle result = new Bundle();
-                        Intent intent = createIntentForAuthorization(response);
+                    if (retryAfter > 0) {
+                        AuthLog.d(TAG, "Refresh failed while waiting, not retrying for {} ms.",
+                                retryAfter);
 
-                        // Provide the account that we need re-authorised
-                        intent.putExtra(AuthenticatorActivity.KEY_ACCOUNT_OBJECT, account);
+                        return createRefreshFailedResult(retryAfter);
+                    }
 
-                        result.putParcelable(AccountManager.KEY_INTENT, intent);
-                        return result;
+                    try {
+                        // Concurrent callers that waited for the lock can use the tokens the
+                        // first one got, instead of refreshing again
+                        String existing = peekValidToken(account, authTokenType);
+
+                        if (TextUtils.isEmpty(existing)) {
+                            refreshToken = accountManager.peekAuthToken(account,
+                                    TOKEN_TYPE_REFRESH);
+                            TokenResult tokenResponse = client.refreshTokens(refreshToken);
+
+                            AuthLog.d(TAG, "Got new tokens.");
+                            refreshBackoff.reset(account.name);
+
+                            TokenStore.storeTokens(context, account, tokenResponse);
+                        }
+                    }catch (TokenRequestException e) {
+                        if(e.getStatusCode() == HTTP_BAD_REQUEST
+                                && "invalid_grant".equals(e.getError())) {
+                            // If the refresh token has expired, we need to launch an intent for the
+                            // user to get us a new set of tokens by authorising us again.
+
+                            AuthLog.d(TAG, "Refresh token expired, launching intent for "
+                                    + "renewing authorisation.");
+                            refreshBackoff.reset(account.name);
+                            TokenStore.invalidateScopedAccessTokens(account);
+
+                            return requestAuthorization(response, client, account, authTokenType);
+                        }
+                        else {
+                            // There's not much we can do if we get here, except not trying again
+                            // right away
+                            AuthLog.e(TAG, "Couldn't get new tokens.", e);
+                            return createRefreshFailedResult(
+                                    refreshBackoff.recordFailure(account.name));
+                        }
                     }
-                    else {
-                        // There's not much we can do if we get here
-                        Log.e(TAG, "Couldn't get new tokens.", e);
+                    catch (IOException e) {
+                        // There's not much we can do if we get here, except not trying again
+                        // right away
+                        AuthLog.e(TAG, "Couldn't get new tokens.", e);
+                        return createRefreshFailedResult(
+                                refreshBackoff.recordFailure(account.name));
                     }
                 }
-                catch (IOException e) {
-                    // There's not much we can do if we get here
-                    Log.e(TAG, "Couldn't get new tokens.", e);
-
-                }
 
                 // Now, let's return the token that was requested
                 token = accountManager.peekAuthToken(account, authTokenType);
             }
         }
 
-        Log.d(TAG, String.format("Returning token '%s' of type '%s'.", token, authTokenType));
+        AuthLog.d(TAG, "Returning token '{}' of type '{}'.", token, authTokenType);
 
         Bundle result = new Bundle();
 
@@ -170,38 +226,125 @@ public class Authenticator extends AbstractAccountAuthenticator {
         return result;
     }
 
+    /**
+     * Returns the stored token of the given type, or null if there isn't one. An ID Token that has
+     * expired, or is about to, counts as missing so that it gets refreshed instead of handed out.
+     * This only works because authenticator.xml declares customTokens, otherwise the AccountManager
+     * would return the stored token without asking us.
+     */
+    private String peekValidToken(Account account, String authTokenType) {
+        String token = accountManager.peekAuthToken(account, authTokenType);
+
+        if (TextUtils.isEmpty(token) || !TOKEN_TYPE_ID.equals(authTokenType)) {
+            return token;
+        }
+
+        long expiresAt;
+
+        try {
+            expiresAt = Long.parseLong(accountManager.getUserData(account,
+                    TokenStore.KEY_ID_TOKEN_EXPIRES_AT));
+        } catch (NumberFormatException e) {
+            // Don't know when it expires, so keep using it until it's invalidated
+            return token;
+        }
+
+        // Same margin as the API's cache, so the two agree on when a token is too old
+        if (expiresAt > 0 && System.currentTimeMillis()
+                >= expiresAt - GenerationalTokenCache.EXPIRY_MARGIN_MILLIS) {
+            AuthLog.d(TAG, "ID Token has expired, refreshing.");
+            return null;
+        }
+
+        return token;
+    }
+
+    /**
+     * Creates the result for a failed refresh. AccountManager turns this into an
+     * AuthenticatorException for the caller, so they fail fast instead of getting a null token.
+     */
+    private Bundle createRefreshFailedResult(long retryAfterMillis) {
+        Bundle result = new Bundle();
+
+        result.putInt(AccountManager.KEY_ERROR_CODE, AccountManager.ERROR_CODE_NETWORK_ERROR);
+        result.putString(AccountManager.KEY_ERROR_MESSAGE, String.format(
+                "Couldn't refresh tokens, retrying in %d ms.", retryAfterMillis));
+        result.putLong(KEY_RETRY_AFTER_MILLIS, retryAfterMillis);
+
+        return result;
+    }
+
+    /**
+     * Returns the result that sends the user to authorise the app again. If the user might still
+     * have a session with the provider, that's tried silently first, unless that just failed. The
+     * result is then delivered to the response later and this returns null, which tells
+     * AccountManager to wait for it.
+     */
+    private Bundle requestAuthorization(AccountAuthenticatorResponse response, OIDCClient client,
+                                        Account account, String authTokenType) {
+
+        Intent intent = createIntentForAuthorization(response, client);
+
+        // Provide the account that we need re-authorised
+        intent.putExtra(AuthenticatorActivity.KEY_ACCOUNT_OBJECT, account);
+
+        // Without the subject we couldn't tell whether the session is this account's user
+        String subject = TokenStore.getSubject(accountManager, account);
+
+        // After a device authorization the WebView has no session with the provider to use
+        boolean canTrySilently = Config.silentReauthentication && subject != null
+                && Config.flowType != Config.Flows.DeviceAuthorization;
+
+        if (canTrySilently && SilentAuthenticator.failedRecently(account)) {
+            AuthLog.d(TAG, "Silent authentication failed recently, showing the login page.");
+        } else if (canTrySilently) {
+            SilentAuthenticator.start(context, client, account, authTokenType, subject, response,
+                    intent);
+            return null;
+        }
+
+        TokenEvents.publish(account, TokenEvents.Type.REAUTH_REQUIRED, null);
+
+        Bundle result = new Bundle();
+        result.putParcelable(AccountManager.KEY_INTENT, intent);
+        return result;
+    }
+
     /**
      * Create an intent for showing the authorisation web page.
      */
-    private Intent createIntentForAuthorization(AccountAuthenticatorResponse response) {
+    private Intent createIntentForAuthorization(AccountAuthenticatorResponse response,
+                                                OIDCClient client) {
+
         Intent intent = new Intent(context, AuthenticatorActivity.class);
 
-        // Generate a new authorisation URL
+        // The authorisation URLs are generated once when the client is built
         String authUrl;
 
         switch (Config.flowType) {
             case AuthorizationCode :
-                authUrl = OIDCUtils.codeFlowAuthenticationUrl(Config.authorizationServerUrl,
-                        Config.clientId, Config.redirectUrl, Config.scopes);
+                authUrl = client.getCodeFlowAuthenticationUrl();
                 break;
             case Implicit:
-                authUrl = OIDCUtils.implicitFlowAuthenticationUrl(Config.authorizationServerUrl,
-                        Config.clientId, Config.redirectUrl, Config.scopes);
+                authUrl = client.getImplicitFlowAuthenticationUrl();
                 break;
             case Hybrid:
-                authUrl = OIDCUtils.hybridFlowAuthenticationUrl(Config.authorizationServerUrl,
-                        Config.clientId, Config.redirectUrl, Config.scopes);
+                authUrl = client.getHybridFlowAuthenticationUrl();
+                break;
+            case DeviceAuthorization:
+                // The activity starts the device authorization itself
+                authUrl = null;
                 break;
             default:
-                Log.d(TAG, "Requesting unsupported flowType! Using CodeFlow instead");
-                authUrl = OIDCUtils.codeFlowAuthenticationUrl(Config.authorizationServerUrl,
-                        Config.clientId, Config.redirectUrl, Config.scopes);
+                AuthLog.d(TAG, "Requesting unsupported flowType! Using CodeFlow instead");
+                authUrl = client.getCodeFlowAuthenticationUrl();
                 break;
         }
 
-        Log.d(TAG, String.format("Created new intent with authorisation URL '%s'.", authUrl));
+        AuthLog.d(TAG, "Created new intent with authorisation URL '{}'.", authUrl);
 
         intent.putExtra(AuthenticatorActivity.KEY_AUTH_URL, authUrl);
+        intent.putExtra(KEY_ISSUER, client.getIssuer());
 
         intent.putExtra(AccountManager.KEY_ACCOUNT_AUTHENTICATOR_RESPONSE, response);
         return intent;
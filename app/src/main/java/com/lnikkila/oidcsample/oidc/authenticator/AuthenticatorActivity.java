@@ -10,21 +10,31 @@ import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.text.TextUtils;
-import android.util.Log;
+import android.view.View;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
+import android.widget.TextView;
 
-import com.google.api.client.auth.openidconnect.IdTokenResponse;
+import com.google.api.client.auth.openidconnect.IdToken;
 import com.google.api.client.json.gson.GsonFactory;
 import com.lnikkila.oidcsample.Config;
-import com.lnikkila.oidcsample.oidc.OIDCUtils;
+import com.lnikkila.oidcsample.oidc.DeviceAuthorizationResponse;
+import com.lnikkila.oidcsample.oidc.DevicePoller;
+import com.lnikkila.oidcsample.oidc.OIDCClient;
+import com.lnikkila.oidcsample.oidc.TokenResult;
 import com.lnikkila.oidcsample.R;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * An Activity that is launched by the Authenticator for requesting authorisation from the user and
@@ -38,6 +48,19 @@ import java.util.Set;
  * fetch an ID Token, an Access Token and a Refresh Token. We create an Account and persist these
  * tokens.
  *
+ * With the Device Authorization flow there's no WebView. The activity shows a code for the user to
+ * enter on another device instead, and polls for the tokens until they do.
+ *
+ * The login is checkpointed in the saved instance state once the provider has redirected back, or
+ * once a device code has been issued. If Android kills the process before the tokens are stored,
+ * the recreated activity picks up the token request from there, as long as the code can still be
+ * valid, instead of sending the user through the login again. Everything else the activity needs,
+ * e.g. whether it's creating a new account, comes from the intent, which Android restores anyway.
+ *
+ * A configuration change doesn't kill the process, so the token request that is already running
+ * is handed over to the new activity instead. Resuming from the checkpoint then would redeem the
+ * same code twice.
+ *
  * @author Leo Nikkilä
  * @author Camilo Montes
  */
@@ -49,9 +72,38 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
     public static final String KEY_IS_NEW_ACCOUNT = "com.lnikkila.oidcsample.KEY_IS_NEW_ACCOUNT";
     public static final String KEY_ACCOUNT_OBJECT = "com.lnikkila.oidcsample.KEY_ACCOUNT_OBJECT";
 
+    private static final String KEY_REDIRECT_URL = "com.lnikkila.oidcsample.KEY_REDIRECT_URL";
+    private static final String KEY_REDIRECT_FLOW = "com.lnikkila.oidcsample.KEY_REDIRECT_FLOW";
+    private static final String KEY_REDIRECTED_AT = "com.lnikkila.oidcsample.KEY_REDIRECTED_AT";
+    private static final String KEY_DEVICE_CODE = "com.lnikkila.oidcsample.KEY_DEVICE_CODE";
+    private static final String KEY_USER_CODE = "com.lnikkila.oidcsample.KEY_USER_CODE";
+    private static final String KEY_VERIFICATION_URI =
+            "com.lnikkila.oidcsample.KEY_VERIFICATION_URI";
+    private static final String KEY_DEVICE_INTERVAL = "com.lnikkila.oidcsample.KEY_DEVICE_INTERVAL";
+    private static final String KEY_DEVICE_EXPIRES_AT =
+            "com.lnikkila.oidcsample.KEY_DEVICE_EXPIRES_AT";
+
+    // RFC 6749 recommends that Authorization Codes live for ten minutes at most. If the provider's
+    // codes are shorter-lived, the resumed request fails and the login page is shown again.
+    private static final long MAX_CODE_AGE_MILLIS = 10 * 60 * 1000;
+
     private AccountManager accountManager;
     private Account account;
     private boolean isNewAccount;
+    private OIDCClient client;
+
+    private String authUrl;
+
+    // The redirect being handled, until the tokens have been stored
+    private String redirectUrl;
+    private long redirectedAt;
+    private boolean resumed;
+    private RedirectTask redirectTask;
+
+    // Only set during a device authorization
+    private DeviceAuthorizationResponse deviceAuthorization;
+    private long deviceExpiresAt;
+    private DevicePoller.Handle devicePoll;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -70,10 +122,22 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
         account = extras.getParcelable(KEY_ACCOUNT_OBJECT);
 
         // Fetch the authentication URL that was given to us by the calling activity
-        String authUrl = extras.getString(KEY_AUTH_URL);
+        authUrl = extras.getString(KEY_AUTH_URL);
 
-        Log.d(TAG, String.format("Initiated activity for getting authorisation with URL '%s'.",
-                authUrl));
+        // The Authenticator has already built the client for this provider, so this is just a
+        // lookup and won't hit the network.
+        try {
+            client = Providers.forIssuer(extras.getString(Authenticator.KEY_ISSUER));
+        } catch (IOException e) {
+            AuthLog.e(TAG, "Could not set up provider.", e);
+            showErrorDialog("Could not set up provider.");
+            return;
+        }
+
+        if (Config.flowType == Config.Flows.DeviceAuthorization) {
+            startDeviceAuthorization(savedInstanceState);
+            return;
+        }
 
         // Initialise the WebView
         WebView webView = (WebView) findViewById(R.id.WebView);
@@ -81,16 +145,31 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
         // TODO: Enable this if your authorisation page requires JavaScript
         // webView.getSettings().setJavaScriptEnabled(true);
 
-        webView.loadUrl(authUrl);
+        RedirectTask retainedTask = (RedirectTask) getLastNonConfigurationInstance();
+
+        if (retainedTask != null) {
+            adoptRedirectTask(retainedTask);
+        } else if (!resumeRedirect(savedInstanceState)) {
+            AuthLog.d(TAG, "Initiated activity for getting authorisation with URL '{}'.", authUrl);
+            webView.loadUrl(authUrl);
+        }
+
+        final LoginAssetCache assetCache = Config.cacheLoginPageAssets
+                ? LoginAssetCache.get(this, Config.loginPageAssetHosts) : null;
 
         webView.setWebViewClient(new WebViewClient() {
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+                // Called on a background thread, so the cache can hit the disk and network here
+                return assetCache != null ? assetCache.intercept(url) : null;
+            }
+
             @Override
             public void onPageStarted(WebView view, String urlString, Bitmap favicon) {
                 super.onPageStarted(view, urlString, favicon);
 
                 Uri url = Uri.parse(urlString);
                 Set<String> parameterNames = url.getQueryParameterNames();
-                String extractedFragment = url.getEncodedFragment();
 
                 if (parameterNames.contains("error")) {
                     view.stopLoading();
@@ -111,62 +190,344 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
                         showErrorDialog(String.format("Error code: %s\n\n%s", error,
                                 errorDescription));
                     }
-                } else if(urlString.startsWith(Config.redirectUrl)){
+                } else if(urlString.startsWith(client.getRedirectUrl())){
                     // We won't need to keep loading anymore. This also prevents errors when using
                     // redirect URLs that don't have real protocols (like app://) that are just
                     // used for identification purposes in native apps.
                     view.stopLoading();
 
-                    switch (Config.flowType) {
-                        case Implicit: {
-                            if (!TextUtils.isEmpty(extractedFragment)) {
-                                CreateIdTokenFromFragmentPartTask task = new CreateIdTokenFromFragmentPartTask();
-                                task.execute(extractedFragment);
+                    // Checkpoint the redirect until the tokens are stored
+                    redirectUrl = urlString;
+                    redirectedAt = SystemClock.elapsedRealtime();
 
-                            } else {
-                                Log.e(TAG, String.format(
-                                        "urlString '%1$s' doesn't contain fragment part; can't extract tokens",
-                                        urlString));
-                            }
-                            break;
-                        }
-                        case Hybrid: {
-                            if (!TextUtils.isEmpty(extractedFragment)) {
-                                RequestIdTokenFromFragmentPartTask task = new RequestIdTokenFromFragmentPartTask();
-                                task.execute(extractedFragment);
-
-                            } else {
-                                Log.e(TAG, String.format(
-                                        "urlString '%1$s' doesn't contain fragment part; can't request tokens",
-                                        urlString));
-                            }
-                            break;
-                        }
-                        case AuthorizationCode:
-                        default: {
-                            // The URL will contain a `code` parameter when the user has been authenticated
-                            if (parameterNames.contains("code")) {
-                                String authToken = url.getQueryParameter("code");
-
-                                // Request the ID token
-                                RequestIdTokenTask task = new RequestIdTokenTask();
-                                task.execute(authToken);
-                            }
-                            else {
-                                Log.e(TAG, String.format(
-                                        "urlString '%1$s' doesn't contain code param; can't extract authCode",
-                                        urlString));
-                            }
-                            break;
-                        }
-                    }
+                    handleRedirect(urlString);
                 }
                 // else : should be an intermediate url, load it and keep going
             }
         });
     }
 
-    private class CreateIdTokenFromFragmentPartTask extends AsyncTask<String, Void, Boolean> {
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+
+        // On a configuration change the running request is retained instead
+        if (redirectUrl != null && !isChangingConfigurations()) {
+            outState.putString(KEY_REDIRECT_URL, redirectUrl);
+            outState.putString(KEY_REDIRECT_FLOW, Config.flowType.name());
+            outState.putLong(KEY_REDIRECTED_AT, redirectedAt);
+        }
+
+        if (devicePoll != null && !devicePoll.isFinished()) {
+            outState.putString(KEY_DEVICE_CODE, deviceAuthorization.getDeviceCode());
+            outState.putString(KEY_USER_CODE, deviceAuthorization.getUserCode());
+            outState.putString(KEY_VERIFICATION_URI, deviceAuthorization.getVerificationUri());
+            outState.putLong(KEY_DEVICE_INTERVAL, deviceAuthorization.getIntervalSeconds());
+            outState.putLong(KEY_DEVICE_EXPIRES_AT, deviceExpiresAt);
+        }
+    }
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        if (redirectTask != null && redirectTask.getStatus() != AsyncTask.Status.FINISHED) {
+            return redirectTask;
+        }
+
+        return null;
+    }
+
+    /**
+     * Takes over the token request that the activity before a configuration change started, along
+     * with its checkpoint. The request reports to this activity once it's done.
+     */
+    private void adoptRedirectTask(RedirectTask task) {
+        AuthenticatorActivity previous = task.activity;
+
+        redirectUrl = previous.redirectUrl;
+        redirectedAt = previous.redirectedAt;
+        resumed = previous.resumed;
+
+        redirectTask = task;
+        task.activity = this;
+
+        AuthLog.d(TAG, "Continuing the token request after a configuration change.");
+    }
+
+    /**
+     * Continues handling a redirect that was checkpointed before the process died. Returns false
+     * if there's none that is still worth trying.
+     */
+    private boolean resumeRedirect(Bundle savedInstanceState) {
+        if (savedInstanceState == null || !savedInstanceState.containsKey(KEY_REDIRECT_URL)) {
+            return false;
+        }
+
+        long age = SystemClock.elapsedRealtime() - savedInstanceState.getLong(KEY_REDIRECTED_AT);
+
+        // The URL was parsed for the flow it was received with
+        if (!Config.flowType.name().equals(savedInstanceState.getString(KEY_REDIRECT_FLOW))
+                || age < 0 || age > MAX_CODE_AGE_MILLIS) {
+
+            AuthLog.d(TAG, "Discarding the checkpointed redirect.");
+            return false;
+        }
+
+        AuthLog.d(TAG, "Resuming the token request from {} ms ago.", age);
+
+        redirectUrl = savedInstanceState.getString(KEY_REDIRECT_URL);
+        redirectedAt = savedInstanceState.getLong(KEY_REDIRECTED_AT);
+        resumed = true;
+
+        handleRedirect(redirectUrl);
+        return true;
+    }
+
+    /**
+     * Gets the tokens out of the redirect back from the provider, in the way of the current flow.
+     */
+    private void handleRedirect(String urlString) {
+        Uri url = Uri.parse(urlString);
+        Set<String> parameterNames = url.getQueryParameterNames();
+        String extractedFragment = url.getEncodedFragment();
+
+        switch (Config.flowType) {
+            case Implicit: {
+                if (!TextUtils.isEmpty(extractedFragment)) {
+                    redirectTask = new CreateIdTokenFromFragmentPartTask();
+                    redirectTask.execute(extractedFragment);
+
+                } else {
+                    AuthLog.e(TAG, "urlString '{}' doesn't contain fragment part; can't extract tokens",
+                            urlString);
+                }
+                break;
+            }
+            case Hybrid: {
+                if (!TextUtils.isEmpty(extractedFragment)) {
+                    redirectTask = new RequestIdTokenFromFragmentPartTask();
+                    redirectTask.execute(extractedFragment);
+
+                } else {
+                    AuthLog.e(TAG, "urlString '{}' doesn't contain fragment part; can't request tokens",
+                            urlString);
+                }
+                break;
+            }
+            case AuthorizationCode:
+            default: {
+                // The URL will contain a `code` parameter when the user has been authenticated
+                if (parameterNames.contains("code")) {
+                    String authToken = url.getQueryParameter("code");
+
+                    // Request the ID token
+                    redirectTask = new RequestIdTokenTask();
+                    redirectTask.execute(authToken);
+                }
+                else {
+                    AuthLog.e(TAG, "urlString '{}' doesn't contain code param; can't extract authCode",
+                            urlString);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Called once the token request for the redirect is done. Either way the code has been used,
+     * so the checkpoint is cleared.
+     */
+    private void onRedirectHandled(boolean wasSuccess, Account account) {
+        redirectTask = null;
+        redirectUrl = null;
+
+        if (wasSuccess) {
+            this.account = account;
+
+            // The account manager still wants the following information back
+            Intent intent = new Intent();
+
+            intent.putExtra(AccountManager.KEY_ACCOUNT_NAME, account.name);
+            intent.putExtra(AccountManager.KEY_ACCOUNT_TYPE, account.type);
+
+            setAccountAuthenticatorResult(intent.getExtras());
+            setResult(RESULT_OK, intent);
+            finish();
+        } else {
+            onRedirectFailed();
+        }
+    }
+
+    /**
+     * Called when the tokens couldn't be had from the redirect. If it was a resumed one, its code
+     * has probably expired or been used already, so the user is sent through the login again.
+     */
+    private void onRedirectFailed() {
+        if (resumed) {
+            resumed = false;
+
+            AuthLog.d(TAG, "Resumed token request failed, starting the login over.");
+            ((WebView) findViewById(R.id.WebView)).loadUrl(authUrl);
+        } else {
+            showErrorDialog("Could not get ID Token.");
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        if (devicePoll != null) {
+            devicePoll.cancel();
+        }
+    }
+
+    private void startDeviceAuthorization(Bundle savedInstanceState) {
+        findViewById(R.id.WebView).setVisibility(View.GONE);
+        findViewById(R.id.deviceCodeText).setVisibility(View.VISIBLE);
+
+        if (savedInstanceState != null && savedInstanceState.containsKey(KEY_DEVICE_CODE)) {
+            long expiresAt = savedInstanceState.getLong(KEY_DEVICE_EXPIRES_AT);
+            long remainingSeconds = (expiresAt - SystemClock.elapsedRealtime()) / 1000;
+
+            if (remainingSeconds > 0) {
+                AuthLog.d(TAG, "Resuming the device authorization, {} s left.", remainingSeconds);
+
+                DeviceAuthorizationResponse authorization = new DeviceAuthorizationResponse();
+                authorization.set("device_code", savedInstanceState.getString(KEY_DEVICE_CODE));
+                authorization.set("user_code", savedInstanceState.getString(KEY_USER_CODE));
+                authorization.set("verification_uri",
+                        savedInstanceState.getString(KEY_VERIFICATION_URI));
+                authorization.set("interval", savedInstanceState.getLong(KEY_DEVICE_INTERVAL));
+                authorization.set("expires_in", remainingSeconds);
+
+                showDeviceAuthorization(authorization);
+                return;
+            }
+        }
+
+        new RequestDeviceAuthorizationTask().execute();
+    }
+
+    /**
+     * Shows the user code and starts polling for the tokens. The polls run on the poller's own
+     * thread, so nothing is blocked while the user enters the code.
+     */
+    private void showDeviceAuthorization(DeviceAuthorizationResponse authorization) {
+        deviceAuthorization = authorization;
+        deviceExpiresAt = SystemClock.elapsedRealtime()
+                + authorization.getExpiresInSeconds() * 1000;
+
+        TextView codeText = (TextView) findViewById(R.id.deviceCodeText);
+        codeText.setText(String.format("Go to %s and enter the code\n\n%s",
+                authorization.getVerificationUri(), authorization.getUserCode()));
+
+        devicePoll = DevicePoller.poll(client, authorization, new DevicePoller.Callback() {
+            @Override
+            public void onTokens(final TokenResult response) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        new FinishDeviceAuthorizationTask().execute(response);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(final IOException e) {
+                AuthLog.e(TAG, "Device authorization failed.", e);
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isFinishing()) {
+                            showErrorDialog("The code wasn't entered in time, or access was "
+                                    + "denied.");
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Device Authorization flow
+     *
+     * Gets a user code from the provider.
+     */
+    private class RequestDeviceAuthorizationTask
+            extends AsyncTask<Void, Void, DeviceAuthorizationResponse> {
+
+        @Override
+        protected DeviceAuthorizationResponse doInBackground(Void... args) {
+            try {
+                return client.requestDeviceAuthorization();
+            } catch (IOException e) {
+                AuthLog.e(TAG, "Could not start device authorization.", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(DeviceAuthorizationResponse authorization) {
+            if (isFinishing()) {
+                return;
+            }
+            if (authorization == null) {
+                showErrorDialog("Could not start device authorization.");
+                return;
+            }
+
+            showDeviceAuthorization(authorization);
+        }
+    }
+
+    /**
+     * Creates or updates the account with the tokens from a device authorization, which needs the
+     * network for the account name.
+     */
+    private class FinishDeviceAuthorizationTask extends AsyncTask<TokenResult, Void, Void> {
+
+        @Override
+        protected Void doInBackground(TokenResult... args) {
+            if (isNewAccount) {
+                createAccount(args[0]);
+            } else {
+                setTokens(args[0]);
+            }
+
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            // The account manager still wants the following information back
+            Intent intent = new Intent();
+
+            intent.putExtra(AccountManager.KEY_ACCOUNT_NAME, account.name);
+            intent.putExtra(AccountManager.KEY_ACCOUNT_TYPE, account.type);
+
+            setAccountAuthenticatorResult(intent.getExtras());
+            setResult(RESULT_OK, intent);
+            finish();
+        }
+    }
+
+    /**
+     * A token request for a redirect. It reports to whichever activity is current when it's done,
+     * since a configuration change can replace the one that started it.
+     */
+    private abstract class RedirectTask extends AsyncTask<String, Void, Boolean> {
+
+        AuthenticatorActivity activity = AuthenticatorActivity.this;
+
+        @Override
+        protected void onPostExecute(Boolean wasSuccess) {
+            // The account was set up by the activity that started the task
+            activity.onRedirectHandled(wasSuccess, account);
+        }
+    }
+
+    private class CreateIdTokenFromFragmentPartTask extends RedirectTask {
 
         @Override
         protected Boolean doInBackground(String... args) {
@@ -185,15 +546,16 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
                 return false;
             }
             else {
-                Log.i(TAG, "AuthToken : " + accessToken);
+                AuthLog.i(TAG, "AuthToken : {}", accessToken);
 
-                IdTokenResponse response = new IdTokenResponse();
-                response.setAccessToken(accessToken);
-                response.setIdToken(idToken);
-                response.setTokenType(tokenType);
-                response.setExpiresInSeconds(expiresIn);
-                response.setScope(scope);
-                response.setFactory(new GsonFactory());
+                Map<String, Object> parameters = new HashMap<>();
+                parameters.put("access_token", accessToken);
+                parameters.put("id_token", idToken);
+                parameters.put("token_type", tokenType);
+                parameters.put("expires_in", expiresIn);
+                parameters.put("scope", scope);
+
+                TokenResult response = new TokenResult(parameters);
 
                 if (isNewAccount) {
                     createAccount(response);
@@ -204,59 +566,102 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
 
             return true;
         }
-
-        @Override
-        protected void onPostExecute(Boolean wasSuccess) {
-            if (wasSuccess) {
-                // The account manager still wants the following information back
-                Intent intent = new Intent();
-
-                intent.putExtra(AccountManager.KEY_ACCOUNT_NAME, account.name);
-                intent.putExtra(AccountManager.KEY_ACCOUNT_TYPE, account.type);
-
-                setAccountAuthenticatorResult(intent.getExtras());
-                setResult(RESULT_OK, intent);
-                finish();
-            } else {
-                showErrorDialog("Could not get ID Token.");
-            }
-        }
     }
 
     /**
      * Hybrid flow
+     *
+     * The fragment already contains an ID Token, so we don't need to wait for the Token Endpoint
+     * before doing anything. The code exchange is started first, and while it's in flight we verify
+     * the front-channel ID Token (including its `c_hash`) and start setting up the account from it.
+     * The exchange result is joined at the end.
      */
-    private class RequestIdTokenFromFragmentPartTask extends AsyncTask<String, Void, Boolean> {
+    private class RequestIdTokenFromFragmentPartTask extends RedirectTask {
         @Override
         protected Boolean doInBackground(String... args) {
             String fragmentPart = args[0];
 
             Uri tokenExtrationUrl = new Uri.Builder().encodedQuery(fragmentPart).build();
             String idToken = tokenExtrationUrl.getQueryParameter("id_token");
-            String authCode = tokenExtrationUrl.getQueryParameter("code");
+            final String authCode = tokenExtrationUrl.getQueryParameter("code");
 
             if (TextUtils.isEmpty(idToken) || TextUtils.isEmpty(authCode)) {
                 return false;
             }
             else {
-                IdTokenResponse response;
+                AuthLog.i(TAG, "Requesting access_token with AuthCode : {}", authCode);
+
+                // Start the back-channel exchange right away
+                FutureTask<TokenResult> exchange = new FutureTask<>(
+                        new Callable<TokenResult>() {
+                            @Override
+                            public TokenResult call() throws IOException {
+                                return client.requestTokens(authCode);
+                            }
+                        });
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(exchange);
 
-                Log.i(TAG, "Requesting access_token with AuthCode : " + authCode);
+                TokenResult response;
+                String accountName = null;
 
                 try {
-                    response = OIDCUtils.requestTokens(Config.tokenServerUrl,
-                            Config.redirectUrl,
-                            Config.clientId,
-                            Config.clientSecret,
-                            authCode);
+                    // Meanwhile, make sure the front-channel ID Token belongs to this code. The
+                    // code hash only means something once the signature has been checked, since
+                    // anyone can compute it for a forged token.
+                    if (!client.isValidIdToken(idToken)
+                            || !client.isValidCodeHash(idToken, authCode)) {
+
+                        AuthLog.e(TAG, "Invalid ID token in the authorisation response.");
+                        exchange.cancel(true);
+                        return false;
+                    }
+
+                    boolean verified = client.canVerifySignature(idToken);
+
+                    if (verified && !client.isValidSignedIdToken(idToken)) {
+                        AuthLog.e(TAG, "The ID token in the authorisation response isn't signed "
+                                + "by the provider.");
+                        exchange.cancel(true);
+                        return false;
+                    }
+
+                    // Only a verified token can be used before the back channel has confirmed it
+                    if (isNewAccount && verified) {
+                        accountName = resolveAccountName(idToken);
+                    }
+
+                    response = exchange.get();
+
+                    // Both ID Tokens have to be about the same user
+                    String frontChannelSubject = IdToken.parse(new GsonFactory(), idToken)
+                            .getPayload().getSubject();
+                    String backChannelSubject = IdToken.parse(new GsonFactory(),
+                            response.getIdToken()).getPayload().getSubject();
+
+                    if (frontChannelSubject == null
+                            || !frontChannelSubject.equals(backChannelSubject)) {
+                        AuthLog.e(TAG, "ID token subjects don't match.");
+                        return false;
+                    }
+
+                    if (isNewAccount && accountName == null) {
+                        // The Token Endpoint's ID Token is trusted, unlike an unverified one
+                        accountName = resolveAccountName(response.getIdToken());
+                    }
                 } catch (IOException e) {
-                    Log.e(TAG, "Could not get response.");
-                    e.printStackTrace();
+                    AuthLog.e(TAG, "Could not verify ID token.", e);
+                    exchange.cancel(true);
+                    return false;
+                } catch (InterruptedException e) {
+                    exchange.cancel(true);
+                    return false;
+                } catch (ExecutionException e) {
+                    AuthLog.e(TAG, "Could not get response.", e.getCause());
                     return false;
                 }
 
                 if (isNewAccount) {
-                    createAccount(response);
+                    addAccount(accountName, response);
                 } else {
                     setTokens(response);
                 }
@@ -264,45 +669,23 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
 
             return true;
         }
-
-        @Override
-        protected void onPostExecute(Boolean wasSuccess) {
-            if (wasSuccess) {
-                // The account manager still wants the following information back
-                Intent intent = new Intent();
-
-                intent.putExtra(AccountManager.KEY_ACCOUNT_NAME, account.name);
-                intent.putExtra(AccountManager.KEY_ACCOUNT_TYPE, account.type);
-
-                setAccountAuthenticatorResult(intent.getExtras());
-                setResult(RESULT_OK, intent);
-                finish();
-            } else {
-                showErrorDialog("Could not get ID Token.");
-            }
-        }
     }
 
     /**
      * Requests the ID Token asynchronously.
      */
-    private class RequestIdTokenTask extends AsyncTask<String, Void, Boolean> {
+    private class RequestIdTokenTask extends RedirectTask {
         @Override
         protected Boolean doInBackground(String... args) {
             String authToken = args[0];
-            IdTokenResponse response;
+            TokenResult response;
 
-            Log.d(TAG, "Requesting ID token.");
+            AuthLog.d(TAG, "Requesting ID token.");
 
             try {
-                response = OIDCUtils.requestTokens(Config.tokenServerUrl,
-                        Config.redirectUrl,
-                        Config.clientId,
-                        Config.clientSecret,
-                        authToken);
+                response = client.requestTokens(authToken);
             } catch (IOException e) {
-                Log.e(TAG, "Could not get response.");
-                e.printStackTrace();
+                AuthLog.e(TAG, "Could not get response.", e);
                 return false;
             }
 
@@ -314,30 +697,16 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
 
             return true;
         }
-
-        @Override
-        protected void onPostExecute(Boolean wasSuccess) {
-            if (wasSuccess) {
-                // The account manager still wants the following information back
-                Intent intent = new Intent();
-
-                intent.putExtra(AccountManager.KEY_ACCOUNT_NAME, account.name);
-                intent.putExtra(AccountManager.KEY_ACCOUNT_TYPE, account.type);
-
-                setAccountAuthenticatorResult(intent.getExtras());
-                setResult(RESULT_OK, intent);
-                finish();
-            } else {
-                showErrorDialog("Could not get ID Token.");
-            }
-        }
     }
 
-    private void createAccount(IdTokenResponse response) {
-        Log.d(TAG, "Creating account.");
-
-        String accountType = getString(R.string.ACCOUNT_TYPE);
+    private void createAccount(TokenResult response) {
+        addAccount(resolveAccountName(response.getIdToken()), response);
+    }
 
+    /**
+     * Comes up with a name for a new account, based on the ID Token and the user information.
+     */
+    private String resolveAccountName(String idToken) {
         // AccountManager expects that each account has a unique username. If a new account has the
         // same username as a previously created one, it will overwrite the older account.
         //
@@ -355,39 +724,51 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
         String accountId = null;
 
         try {
-            accountId = response.parseIdToken().getPayload().getSubject();
+            accountId = IdToken.parse(new GsonFactory(), idToken).getPayload().getSubject();
         } catch (IOException e) {
-            Log.e(TAG, "Could not get ID Token subject.");
-            e.printStackTrace();
+            AuthLog.e(TAG, "Could not get ID Token subject.", e);
         }
 
         // Get the user information so we can grab the `preferred_username`
         Map userInfo = Collections.emptyMap();
 
         try {
-            userInfo = OIDCUtils.getUserInfo(Config.userInfoUrl, response.getIdToken());
+            userInfo = client.getUserInfo(idToken);
         } catch (IOException e) {
-            Log.e(TAG, "Could not get UserInfo.");
-            e.printStackTrace();
+            AuthLog.e(TAG, "Could not get UserInfo.", e);
         }
 
         if (userInfo.containsKey("preferred_username")) {
             accountName = (String) userInfo.get("preferred_username");
         }
 
-        account = new Account(String.format("%s (%s)", accountName, accountId), accountType);
-        accountManager.addAccountExplicitly(account, null, null);
+        return String.format("%s (%s)", accountName, accountId);
+    }
+
+    private void addAccount(String accountName, TokenResult response) {
+        AuthLog.d(TAG, "Creating account.");
+
+        String accountType = getString(R.string.ACCOUNT_TYPE);
+        account = new Account(accountName, accountType);
+
+        // Remember which provider the account belongs to
+        Bundle userData = new Bundle();
+        userData.putString(Authenticator.KEY_ISSUER, client.getIssuer());
+
+        accountManager.addAccountExplicitly(account, null, userData);
+        Providers.rememberIssuer(account, client.getIssuer());
 
         // Store the tokens in the account
         setTokens(response);
 
-        Log.d(TAG, "Account created.");
+        AuthLog.d(TAG, "Account created.");
     }
 
-    private void setTokens(IdTokenResponse response) {
-        accountManager.setAuthToken(account, Authenticator.TOKEN_TYPE_ID, response.getIdToken());
-        accountManager.setAuthToken(account, Authenticator.TOKEN_TYPE_ACCESS, response.getAccessToken());
-        accountManager.setAuthToken(account, Authenticator.TOKEN_TYPE_REFRESH, response.getRefreshToken());
+    private void setTokens(TokenResult response) {
+        TokenStore.storeTokens(this, account, response);
+
+        // The user has a session with the provider again, so silent attempts are worth a try
+        SilentAuthenticator.clearFailure(account);
     }
 
     /**
@@ -3,7 +3,6 @@ package com.lnikkila.oidcsample.oidc.authenticator;
 import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
-import android.util.Log;
 
 /**
  * The service that lets Android know about the custom Authenticator.
@@ -16,7 +15,7 @@ public class AuthenticatorService extends Service {
 
     @Override
     public IBinder onBind(Intent intent) {
-        Log.d(TAG, "Binding Authenticator.");
+        AuthLog.d(TAG, "Binding Authenticator.");
 
         Authenticator authenticator = new Authenticator(this);
         return authenticator.getIBinder();
@@ -0,0 +1,491 @@
+package com.lnikkila.oidcsample.oidc.authenticator;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.webkit.WebResourceResponse;
+
+import com.github.kevinsawicki.http.HttpRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
+import static java.net.HttpURLConnection.HTTP_OK;
+
+/**
+ * Serves the static assets of the provider's login page (stylesheets, scripts, fonts and images)
+ * from local storage, so a repeat login doesn't have to download them all again.
+ *
+ * Only GET requests over HTTPS to allow-listed hosts, for files with one of the known extensions,
+ * are cached. Everything else, including the page itself, goes to the network as usual. Responses
+ * with `Cache-Control: no-store` or `private` are passed on to the WebView without being kept, and
+ * the content type is taken from the response, with the extension only as a fallback.
+ *
+ * A cached asset is served right away. If it was last checked a while ago, it's revalidated in the
+ * background with its ETag or Last-Modified date, so a changed asset shows up on the next login.
+ * An asset that isn't cached yet is downloaded into the cache on the WebView's loading thread and
+ * served from there.
+ *
+ * The cache lives in its own versioned directory under the app's cache directory, so Android can
+ * clear it when it runs low on space, and bumping {@link #VERSION} drops the old entries. When it
+ * grows over {@link #MAX_BYTES}, the least recently used assets are removed.
+ */
+final class LoginAssetCache {
+
+    private static final String TAG = "LoginAssetCache";
+
+    // Bump this if the file format changes
+    static final int VERSION = 2;
+
+    static final long MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final long REVALIDATE_AFTER_MILLIS = 60 * 60 * 1000;
+
+    private static final Map<String, String> MIME_TYPES = new HashMap<>();
+
+    static {
+        MIME_TYPES.put("css", "text/css");
+        MIME_TYPES.put("js", "application/javascript");
+        MIME_TYPES.put("woff", "font/woff");
+        MIME_TYPES.put("woff2", "font/woff2");
+        MIME_TYPES.put("ttf", "font/ttf");
+        MIME_TYPES.put("otf", "font/otf");
+        MIME_TYPES.put("png", "image/png");
+        MIME_TYPES.put("jpg", "image/jpeg");
+        MIME_TYPES.put("jpeg", "image/jpeg");
+        MIME_TYPES.put("gif", "image/gif");
+        MIME_TYPES.put("svg", "image/svg+xml");
+        MIME_TYPES.put("webp", "image/webp");
+        MIME_TYPES.put("ico", "image/x-icon");
+    }
+
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+
+    private static LoginAssetCache instance;
+
+    private final File directory;
+    private final Set<String> hosts;
+
+    // URLs being revalidated, so a page that uses an asset twice only revalidates it once
+    private final Set<String> revalidating = Collections.synchronizedSet(new HashSet<String>());
+
+    private final ExecutorService revalidator = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Login asset revalidation");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static class Metadata {
+
+        String mimeType;
+        String encoding;
+        String etag;
+        String lastModified;
+        long checkedAt;
+
+    }
+
+    private LoginAssetCache(File cacheDirectory, String[] hosts) {
+        this.directory = new File(cacheDirectory, "login-assets-v" + VERSION);
+        this.hosts = new HashSet<>(Arrays.asList(hosts));
+    }
+
+    /**
+     * Returns the cache for the hosts in the given list. The hosts are only read the first time.
+     */
+    static synchronized LoginAssetCache get(Context context, String[] hosts) {
+        if (instance == null) {
+            instance = new LoginAssetCache(context.getCacheDir(), hosts);
+            instance.revalidator.execute(new Runnable() {
+                @Override
+                public void run() {
+                    instance.deleteOldVersions();
+                }
+            });
+        }
+
+        return instance;
+    }
+
+    /**
+     * Call from WebViewClient.shouldInterceptRequest(). Returns the cached response for the URL,
+     * or null if the WebView should load it itself.
+     */
+    WebResourceResponse intercept(String urlString) {
+        Uri url = Uri.parse(urlString);
+        String fallbackMimeType = getMimeType(url);
+
+        if (fallbackMimeType == null) {
+            return null;
+        }
+
+        String key = keyOf(urlString);
+        File body = new File(directory, key + BODY_SUFFIX);
+        File meta = new File(directory, key + META_SUFFIX);
+
+        try {
+            Metadata metadata = body.exists() ? readMetadata(meta) : null;
+
+            if (metadata == null) {
+                HttpRequest request = HttpRequest.get(urlString);
+
+                if (request.code() != HTTP_OK) {
+                    // Returning null would make the WebView request it all over again
+                    return errorResponse(request, fallbackMimeType);
+                }
+
+                metadata = metadataOf(request, fallbackMimeType);
+
+                if (!isStorable(request)) {
+                    // Hand the response over as is, without keeping a copy
+                    return new WebResourceResponse(metadata.mimeType, metadata.encoding,
+                            request.stream());
+                }
+
+                store(request, metadata, body, meta);
+                evict();
+            } else if (System.currentTimeMillis() - metadata.checkedAt > REVALIDATE_AFTER_MILLIS) {
+                revalidate(urlString, metadata, body, meta);
+            }
+
+            // Keep track of when the asset was last used, for evicting the least used ones
+            body.setLastModified(System.currentTimeMillis());
+
+            return new WebResourceResponse(metadata.mimeType, metadata.encoding,
+                    new FileInputStream(body));
+        } catch (IOException | HttpRequest.HttpRequestException e) {
+            AuthLog.w(TAG, "Could not serve {} from the cache.", urlString, e);
+            return null;
+        }
+    }
+
+    /**
+     * Hands a response that isn't cached, e.g. a 404, over to the WebView. Before Lollipop a
+     * WebResourceResponse can't carry a status, so the WebView gets the error body with a 200.
+     * For a stylesheet, script or image that's about as good as the error, since the page can't use
+     * either.
+     */
+    private static WebResourceResponse errorResponse(HttpRequest request,
+                                                     String fallbackMimeType) {
+
+        Metadata metadata = metadataOf(request, fallbackMimeType);
+        InputStream data;
+
+        try {
+            data = request.stream();
+        } catch (HttpRequest.HttpRequestException e) {
+            // No body at all
+            data = new ByteArrayInputStream(new byte[0]);
+        }
+
+        int code = request.code();
+
+        // Redirects can't be passed on
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && (code < 300 || code >= 400)) {
+            String reason = request.message();
+
+            return new WebResourceResponse(metadata.mimeType, metadata.encoding, code,
+                    reason != null && !reason.isEmpty() ? reason : "Error",
+                    Collections.<String, String>emptyMap(), data);
+        }
+
+        return new WebResourceResponse(metadata.mimeType, metadata.encoding, data);
+    }
+
+    /**
+     * The content type that the extension of a cacheable URL implies, or null if the URL isn't
+     * cacheable at all.
+     */
+    private String getMimeType(Uri url) {
+        if (!"https".equals(url.getScheme()) || !hosts.contains(url.getHost())) {
+            return null;
+        }
+
+        String path = url.getPath();
+
+        if (path == null) {
+            return null;
+        }
+
+        int dot = path.lastIndexOf('.');
+
+        if (dot == -1 || dot < path.lastIndexOf('/')) {
+            return null;
+        }
+
+        return MIME_TYPES.get(path.substring(dot + 1).toLowerCase(Locale.US));
+    }
+
+    /**
+     * Describes a 200 response. The content type comes from the response, or from the URL if the
+     * server didn't send one.
+     */
+    private static Metadata metadataOf(HttpRequest request, String fallbackMimeType) {
+        Metadata metadata = new Metadata();
+        String contentType = request.contentType();
+
+        if (contentType != null) {
+            contentType = contentType.split(";", 2)[0].trim().toLowerCase(Locale.US);
+        }
+
+        metadata.mimeType = contentType != null && !contentType.isEmpty()
+                ? contentType
+                : fallbackMimeType;
+        metadata.encoding = request.charset();
+        metadata.etag = request.eTag();
+        metadata.lastModified = request.header(HttpRequest.HEADER_LAST_MODIFIED);
+        metadata.checkedAt = System.currentTimeMillis();
+
+        return metadata;
+    }
+
+    /**
+     * Whether the server lets us keep the response. `no-store` forbids it outright, and `private`
+     * responses could be about the user, which this cache doesn't want to hold on to.
+     */
+    private static boolean isStorable(HttpRequest request) {
+        for (String cacheControl : request.headers("Cache-Control")) {
+            for (String directive : cacheControl.split(",")) {
+                String name = directive.split("=", 2)[0].trim().toLowerCase(Locale.US);
+
+                if (name.equals("no-store") || name.equals("private")) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private void revalidate(final String url, final Metadata metadata, final File body,
+                            final File meta) {
+
+        if (!revalidating.add(url)) {
+            return;
+        }
+
+        revalidator.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    HttpRequest request = HttpRequest.get(url);
+
+                    if (metadata.etag != null) {
+                        request.ifNoneMatch(metadata.etag);
+                    }
+                    if (metadata.lastModified != null) {
+                        request.header("If-Modified-Since", metadata.lastModified);
+                    }
+
+                    int code = request.code();
+
+                    if ((code == HTTP_NOT_MODIFIED || code == HTTP_OK) && !isStorable(request)) {
+                        // Not to be kept anymore, the WebView loads it itself next time
+                        body.delete();
+                        meta.delete();
+                    } else if (code == HTTP_NOT_MODIFIED) {
+                        metadata.checkedAt = System.currentTimeMillis();
+                        writeMetadata(meta, metadata);
+                    } else if (code == HTTP_OK) {
+                        store(request, metadataOf(request, metadata.mimeType), body, meta);
+                        evict();
+                    } else {
+                        // Gone or broken, let the WebView deal with it next time
+                        body.delete();
+                        meta.delete();
+                    }
+                } catch (IOException | HttpRequest.HttpRequestException e) {
+                    AuthLog.w(TAG, "Could not revalidate {}.", url, e);
+                } finally {
+                    revalidating.remove(url);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the response into the cache. The body is written into a temporary file first, so a
+     * WebView that is reading the old version, or a crash, never sees a half-written file.
+     */
+    private void store(HttpRequest request, Metadata metadata, File body, File meta)
+            throws IOException {
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        File temporaryBody = File.createTempFile("asset", ".tmp", directory);
+
+        try {
+            request.receive(temporaryBody);
+
+            if (!temporaryBody.renameTo(body)) {
+                throw new IOException("Could not move asset to " + body);
+            }
+
+            writeMetadata(meta, metadata);
+        } finally {
+            temporaryBody.delete();
+        }
+    }
+
+    /**
+     * Removes the least recently used assets until the cache fits its limit.
+     */
+    private synchronized void evict() {
+        File[] bodies = directory.listFiles();
+
+        if (bodies == null) {
+            return;
+        }
+
+        List<File> files = new ArrayList<>();
+        long totalBytes = 0;
+
+        for (File file : bodies) {
+            totalBytes += file.length();
+
+            if (file.getName().endsWith(BODY_SUFFIX)) {
+                files.add(file);
+            }
+        }
+
+        if (totalBytes <= MAX_BYTES) {
+            return;
+        }
+
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+
+        for (File file : files) {
+            if (totalBytes <= MAX_BYTES) {
+                break;
+            }
+
+            String name = file.getName();
+            File meta = new File(directory,
+                    name.substring(0, name.length() - BODY_SUFFIX.length()) + META_SUFFIX);
+
+            totalBytes -= file.length() + meta.length();
+            file.delete();
+            meta.delete();
+        }
+    }
+
+    private void deleteOldVersions() {
+        File[] directories = directory.getParentFile().listFiles();
+
+        if (directories == null) {
+            return;
+        }
+
+        for (File oldDirectory : directories) {
+            if (oldDirectory.getName().startsWith("login-assets-v")
+                    && !oldDirectory.equals(directory)) {
+
+                File[] files = oldDirectory.listFiles();
+
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+
+                oldDirectory.delete();
+            }
+        }
+    }
+
+    private static Metadata readMetadata(File file) throws IOException {
+        DataInputStream input;
+
+        try {
+            input = new DataInputStream(new FileInputStream(file));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        try {
+            Metadata metadata = new Metadata();
+            metadata.mimeType = input.readUTF();
+            metadata.encoding = nullIfEmpty(input.readUTF());
+            metadata.etag = nullIfEmpty(input.readUTF());
+            metadata.lastModified = nullIfEmpty(input.readUTF());
+            metadata.checkedAt = input.readLong();
+            return metadata;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void writeMetadata(File file, Metadata metadata) throws IOException {
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(file));
+
+        try {
+            output.writeUTF(metadata.mimeType);
+            output.writeUTF(metadata.encoding != null ? metadata.encoding : "");
+            output.writeUTF(metadata.etag != null ? metadata.etag : "");
+            output.writeUTF(metadata.lastModified != null ? metadata.lastModified : "");
+            output.writeLong(metadata.checkedAt);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static String nullIfEmpty(String string) {
+        return string.isEmpty() ? null : string;
+    }
+
+    /**
+     * A file name for the URL, which can be anything.
+     */
+    private static String keyOf(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+
+            for (byte b : digest) {
+                key.append(String.format("%02x", b));
+            }
+
+            return key.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Every Android device has SHA-1 and UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.lnikkila.oidcsample.oidc.authenticator;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.util.Base64;
+
+import com.lnikkila.oidcsample.BuildConfig;
+import com.lnikkila.oidcsample.Config;
+import com.lnikkila.oidcsample.oidc.DPoPProofs;
+import com.lnikkila.oidcsample.oidc.GoogleClientEngine;
+import com.lnikkila.oidcsample.oidc.OIDCClient;
+import com.lnikkila.oidcsample.oidc.OIDCProviderRegistry;
+import com.lnikkila.oidcsample.oidc.URLConnectionEngine;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The OpenID Connect providers this app can log in with.
+ *
+ * Every account is tied to the issuer it was created with. That issuer is stored in the account's
+ * user data and cached here, so looking up the client for an account doesn't need to go through
+ * the AccountManager more than once.
+ *
+ * To add a provider, register it in the static block below. Clients are only built when they're
+ * first needed.
+ */
+public final class Providers {
+
+    private static final OIDCProviderRegistry registry = new OIDCProviderRegistry();
+
+    // Account name -> issuer
+    private static final Map<String, String> accountIssuers = new ConcurrentHashMap<>();
+
+    static {
+        // The provider from Config is the default one, used for accounts that were created before
+        // accounts remembered their issuer.
+        registry.register(Config.issuer, new OIDCProviderRegistry.ClientFactory() {
+            @Override
+            public OIDCClient create() throws IOException {
+                OIDCClient.Builder builder = new OIDCClient.Builder(Config.clientId)
+                        .setIssuer(Config.issuer)
+                        .setClientSecret(Config.clientSecret)
+                        .setRedirectUrl(Config.redirectUrl)
+                        .setScopes(Config.scopes)
+                        .setAuthorizationServerUrl(Config.authorizationServerUrl)
+                        .setTokenServerUrl(Config.tokenServerUrl)
+                        .setUserInfoUrl(Config.userInfoUrl)
+                        .setJwksUrl(Config.jwksUrl)
+                        .setDeviceAuthorizationUrl(Config.deviceAuthorizationUrl)
+                        .setRefreshTokenRotation(Config.refreshTokenRotation)
+                        .setEngine("urlconnection".equals(BuildConfig.OIDC_ENGINE)
+                                ? new URLConnectionEngine()
+                                : GoogleClientEngine.INSTANCE);
+
+                if (Config.clientPrivateKey != null) {
+                    builder.setPrivateKeyJwt(decodePrivateKey(Config.clientPrivateKey),
+                            Config.clientKeyId, Config.reuseClientAssertions);
+                }
+
+                if (Config.hedgeTokenRequests) {
+                    builder.setHedging(0.95);
+                }
+
+                if (Config.useDPoP) {
+                    try {
+                        // The key only lives as long as the process. That's fine for a confidential
+                        // client, since its Refresh Tokens aren't bound to the key, and the scoped
+                        // Access Tokens are only cached in memory anyway.
+                        builder.setDPoP(DPoPProofs.generate());
+                    } catch (GeneralSecurityException e) {
+                        throw new IOException("Couldn't generate a DPoP key", e);
+                    }
+                }
+
+                return builder.build();
+            }
+        });
+    }
+
+    private Providers() {}
+
+    public static OIDCProviderRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Returns the client for the given issuer, or the default client if there's no issuer at all.
+     *
+     * @throws IOException if the issuer isn't registered, or its client couldn't be built
+     */
+    public static OIDCClient forIssuer(String issuer) throws IOException {
+        if (issuer == null) {
+            // Nothing was stored or picked, e.g. for an account from before accounts remembered
+            // their issuer, or one added from the system settings. Those use the default.
+            return registry.getDefault();
+        }
+
+        // Falling back to the default here would hand another provider's tokens to it
+        if (!registry.contains(issuer)) {
+            throw new IOException("Unknown provider: " + issuer);
+        }
+
+        return registry.get(issuer);
+    }
+
+    /**
+     * Returns the client for the provider the account was created with.
+     */
+    public static OIDCClient forAccount(AccountManager accountManager, Account account)
+            throws IOException {
+
+        String issuer = accountIssuers.get(account.name);
+
+        if (issuer == null) {
+            issuer = accountManager.getUserData(account, Authenticator.KEY_ISSUER);
+
+            if (issuer == null) {
+                // A legacy account, created with the provider that is now the default
+                issuer = registry.getDefaultIssuer();
+            }
+
+            accountIssuers.put(account.name, issuer);
+        }
+
+        return forIssuer(issuer);
+    }
+
+    /**
+     * Decodes a base64-encoded PKCS #8 private key, which can be either an RSA or an EC key.
+     */
+    private static PrivateKey decodePrivateKey(String encodedKey) throws IOException {
+        PKCS8EncodedKeySpec keySpec =
+                new PKCS8EncodedKeySpec(Base64.decode(encodedKey, Base64.DEFAULT));
+
+        for (String algorithm : new String[] {"RSA", "EC"}) {
+            try {
+                return KeyFactory.getInstance(algorithm).generatePrivate(keySpec);
+            } catch (GeneralSecurityException e) {
+                // Try the next one
+            }
+        }
+
+        throw new IOException("The client private key isn't a PKCS #8 RSA or EC key.");
+    }
+
+    /**
+     * Remembers which provider a newly created account belongs to.
+     */
+    static void rememberIssuer(Account account, String issuer) {
+        accountIssuers.put(account.name, issuer);
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.lnikkila.oidcsample.oidc.authenticator;
+
+import android.accounts.Account;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps down-scoped Access Tokens in memory, keyed by the account plus the set of scopes and the
+ * audience they were requested for. Tokens are reused until shortly before they expire.
+ *
+ * The cache is bounded: when it's full, the least recently used token is evicted. Evicted tokens
+ * are simply requested again with the Refresh Token the next time they're needed.
+ *
+ * Used through {@link TokenStore#getScopedAccessToken}.
+ */
+class ScopedTokenCache {
+
+    // Tokens this close to expiring aren't handed out anymore
+    private static final long EXPIRY_MARGIN_MILLIS = 30 * 1000;
+
+    // How long to keep tokens that came without `expires_in`
+    static final long DEFAULT_LIFETIME_MILLIS = 5 * 60 * 1000;
+
+    private static class CachedToken {
+
+        final String accountName;
+        final String token;
+        final long expiresAt;
+
+        CachedToken(String accountName, String token, long expiresAt) {
+            this.accountName = accountName;
+            this.token = token;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+    private final Map<String, CachedToken> tokens;
+
+    ScopedTokenCache(final int maxEntries) {
+        // An access-ordered map evicts the least recently used entry first
+        tokens = new LinkedHashMap<String, CachedToken>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedToken> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns a cached token that's still valid, or null.
+     */
+    synchronized String get(Account account, String[] scopes, String audience) {
+        String key = keyOf(account, scopes, audience);
+        CachedToken cached = tokens.get(key);
+
+        if (cached == null) {
+            return null;
+        }
+
+        if (System.currentTimeMillis() + EXPIRY_MARGIN_MILLIS >= cached.expiresAt) {
+            tokens.remove(key);
+            return null;
+        }
+
+        return cached.token;
+    }
+
+    synchronized void put(Account account, String[] scopes, String audience, String token,
+                          long expiresAt) {
+
+        tokens.put(keyOf(account, scopes, audience),
+                new CachedToken(account.name, token, expiresAt));
+    }
+
+    /**
+     * Removes a token that was rejected by the server.
+     */
+    synchronized void invalidate(String token) {
+        Iterator<CachedToken> iterator = tokens.values().iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().token.equals(token)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all tokens of an account, e.g. when its Refresh Token is no longer valid.
+     */
+    synchronized void invalidateAll(Account account) {
+        Iterator<CachedToken> iterator = tokens.values().iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().accountName.equals(account.name)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Scopes are a set, so their order doesn't matter.
+     */
+    private static String keyOf(Account account, String[] scopes, String audience) {
+        String[] sortedScopes = scopes.clone();
+        Arrays.sort(sortedScopes);
+
+        StringBuilder key = new StringBuilder(account.name).append('\n');
+
+        for (String scope : sortedScopes) {
+            key.append(scope).append(' ');
+        }
+
+        return key.append('\n').append(audience == null ? "" : audience).toString();
+    }
+
+}
@@ -0,0 +1,334 @@
+package com.lnikkila.oidcsample.oidc.authenticator;
+
+import android.accounts.Account;
+import android.accounts.AccountAuthenticatorResponse;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.google.api.client.json.gson.GsonFactory;
+import com.lnikkila.oidcsample.Config;
+import com.lnikkila.oidcsample.oidc.OIDCClient;
+import com.lnikkila.oidcsample.oidc.OIDCUtils;
+import com.lnikkila.oidcsample.oidc.TokenResult;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renews the authorisation of an account without showing anything, if the user still has a
+ * session with the provider.
+ *
+ * The Authentication Request is made with `prompt=none` in a WebView that is never shown. It
+ * shares its cookies with the one in {@link AuthenticatorActivity}, so the provider sees the same
+ * session the user logged in with. If the provider redirects back with a code, it's exchanged for
+ * tokens and the waiting getAuthToken() calls get their token after one round trip. If it redirects
+ * back with an error, e.g. `login_required`, or doesn't answer in time, they get the intent for the
+ * interactive login instead, like they would have without this.
+ *
+ * The silent request always uses the Code Flow, whichever flow the interactive login uses. The new
+ * ID Token has to be signed by the provider and about the same user as before, so a session of
+ * another user isn't picked up. Checking the signature needs {@link Config#jwksUrl}.
+ *
+ * When the provider says the user has to log in, or doesn't answer in time, that's remembered for
+ * {@link Config#silentReauthenticationFailureMillis}. Until then {@link #failedRecently(Account)}
+ * tells the Authenticator to show the login page straight away, since trying again would most
+ * likely just make the user wait for the same result.
+ */
+final class SilentAuthenticator {
+
+    private static final String TAG = "SilentAuthenticator";
+
+    // Account name -> the attempt in progress, so concurrent getAuthToken() calls share one
+    private static final Map<String, SilentAuthenticator> attempts = new HashMap<>();
+
+    // Account name -> when its last attempt failed, in SystemClock.elapsedRealtime(). Guarded by
+    // the attempts map.
+    private static final Map<String, Long> failures = new HashMap<>();
+
+    private static class Request {
+
+        final AccountAuthenticatorResponse response;
+        final String authTokenType;
+
+        Request(AccountAuthenticatorResponse response, String authTokenType) {
+            this.response = response;
+            this.authTokenType = authTokenType;
+        }
+
+    }
+
+    private final Context context;
+    private final AccountManager accountManager;
+    private final OIDCClient client;
+    private final Account account;
+    private final String expectedSubject;
+    private final Intent interactiveIntent;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Guarded by the attempts map
+    private final List<Request> requests = new ArrayList<>();
+
+    // Only touched on the main thread
+    private WebView webView;
+    private boolean redirected;
+
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            AuthLog.d(TAG, "Silent authentication timed out.");
+            rememberFailure();
+            fail();
+        }
+    };
+
+    private SilentAuthenticator(Context context, OIDCClient client, Account account,
+                                String expectedSubject, Intent interactiveIntent) {
+
+        this.context = context.getApplicationContext();
+        this.accountManager = AccountManager.get(this.context);
+        this.client = client;
+        this.account = account;
+        this.expectedSubject = expectedSubject;
+        this.interactiveIntent = interactiveIntent;
+    }
+
+    /**
+     * Starts renewing the account's tokens, or joins the attempt that is already in progress. The
+     * result is delivered to the response later: a bundle with the token of the given type if it
+     * worked, or one with the interactive intent if it didn't.
+     *
+     * @param expectedSubject the ID Token subject of the account
+     * @param interactiveIntent the intent to return if the user has to log in
+     */
+    static void start(Context context, OIDCClient client, Account account, String authTokenType,
+                      String expectedSubject, AccountAuthenticatorResponse response,
+                      Intent interactiveIntent) {
+
+        final SilentAuthenticator attempt;
+
+        synchronized (attempts) {
+            SilentAuthenticator existing = attempts.get(account.name);
+
+            if (existing != null) {
+                existing.requests.add(new Request(response, authTokenType));
+                return;
+            }
+
+            attempt = new SilentAuthenticator(context, client, account, expectedSubject,
+                    interactiveIntent);
+            attempt.requests.add(new Request(response, authTokenType));
+            attempts.put(account.name, attempt);
+        }
+
+        // getAuthToken() runs on a binder thread, but WebViews live on the main thread
+        attempt.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                attempt.load();
+            }
+        });
+    }
+
+    /**
+     * Whether a silent attempt for the account needed the user or timed out a moment ago.
+     */
+    static boolean failedRecently(Account account) {
+        synchronized (attempts) {
+            Long failedAt = failures.get(account.name);
+
+            if (failedAt == null) {
+                return false;
+            }
+
+            if (SystemClock.elapsedRealtime() - failedAt
+                    < Config.silentReauthenticationFailureMillis) {
+                return true;
+            }
+
+            failures.remove(account.name);
+            return false;
+        }
+    }
+
+    /**
+     * Forgets a failed attempt, e.g. because the user has just logged in and has a session now.
+     */
+    static void clearFailure(Account account) {
+        synchronized (attempts) {
+            failures.remove(account.name);
+        }
+    }
+
+    private void load() {
+        webView = new WebView(context);
+
+        webView.setWebViewClient(new WebViewClient() {
+            @Override
+            public void onPageStarted(WebView view, String urlString, Bitmap favicon) {
+                super.onPageStarted(view, urlString, favicon);
+
+                if (!redirected && urlString.startsWith(client.getRedirectUrl())) {
+                    redirected = true;
+                    view.stopLoading();
+                    onRedirect(Uri.parse(urlString));
+                }
+            }
+
+            @Override
+            public void onReceivedError(WebView view, int errorCode, String description,
+                                        String failingUrl) {
+
+                // The redirect URL doesn't have to be loadable, so errors for it are expected
+                if (!redirected && !failingUrl.startsWith(client.getRedirectUrl())) {
+                    AuthLog.d(TAG, "Silent authentication failed to load: {}", description);
+                    fail();
+                }
+            }
+        });
+
+        handler.postDelayed(timeout, Config.silentReauthenticationTimeoutMillis);
+
+        AuthLog.d(TAG, "Trying silent authentication for account '{}'.", account.name);
+        webView.loadUrl(client.getSilentAuthenticationUrl());
+    }
+
+    private void onRedirect(Uri url) {
+        String error = url.getQueryParameter("error");
+        final String code = url.getQueryParameter("code");
+
+        if (error != null || code == null) {
+            if (OIDCUtils.isInteractionRequired(error)) {
+                AuthLog.d(TAG, "Silent authentication needs the user: {}", error);
+                rememberFailure();
+            } else {
+                AuthLog.e(TAG, "Silent authentication failed: {}", error);
+            }
+
+            fail();
+            return;
+        }
+
+        // The token request has its own timeouts
+        closeWebView();
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                exchange(code);
+            }
+        });
+    }
+
+    private void exchange(String code) {
+        boolean succeeded = false;
+
+        // Whatever goes wrong, the waiting requests get an answer in the finally block
+        try {
+            TokenResult response = client.requestTokens(code);
+
+            // The tokens replace the account's, so the ID Token has to be the provider's own
+            if (!client.isValidSignedIdToken(response.getIdToken())) {
+                AuthLog.e(TAG, "Silent authentication returned an invalid ID token.");
+                return;
+            }
+
+            String subject = IdToken.parse(new GsonFactory(), response.getIdToken()).getPayload()
+                    .getSubject();
+
+            if (!expectedSubject.equals(subject)) {
+                AuthLog.e(TAG, "Silent authentication returned another user, ignoring it.");
+                return;
+            }
+
+            synchronized (TokenStore.getRefreshLock(account)) {
+                TokenStore.storeTokens(context, account, response);
+            }
+
+            AuthLog.d(TAG, "Silent authentication succeeded.");
+            succeeded = true;
+        } catch (IOException | RuntimeException e) {
+            // Parsing a malformed ID Token throws an IllegalArgumentException
+            AuthLog.e(TAG, "Could not exchange the code from silent authentication.", e);
+        } finally {
+            finish(succeeded);
+        }
+    }
+
+    /**
+     * Called on the main thread while the WebView is still up.
+     */
+    private void fail() {
+        closeWebView();
+        finish(false);
+    }
+
+    private void rememberFailure() {
+        synchronized (attempts) {
+            failures.put(account.name, SystemClock.elapsedRealtime());
+        }
+    }
+
+    private void closeWebView() {
+        handler.removeCallbacks(timeout);
+
+        if (webView != null) {
+            webView.stopLoading();
+            webView.destroy();
+            webView = null;
+        }
+    }
+
+    private void finish(boolean succeeded) {
+        List<Request> finishedRequests;
+
+        synchronized (attempts) {
+            if (attempts.get(account.name) != this) {
+                // Already finished
+                return;
+            }
+
+            attempts.remove(account.name);
+            finishedRequests = new ArrayList<>(requests);
+        }
+
+        if (!succeeded) {
+            TokenEvents.publish(account, TokenEvents.Type.REAUTH_REQUIRED, null);
+        }
+
+        for (Request request : finishedRequests) {
+            Bundle result = new Bundle();
+
+            if (succeeded) {
+                result.putString(AccountManager.KEY_ACCOUNT_NAME, account.name);
+                result.putString(AccountManager.KEY_ACCOUNT_TYPE, account.type);
+                result.putString(AccountManager.KEY_AUTHTOKEN,
+                        accountManager.peekAuthToken(account, request.authTokenType));
+            } else {
+                Intent intent = new Intent(interactiveIntent);
+
+                // The activity has to answer the request that is actually waiting for it
+                intent.putExtra(AccountManager.KEY_ACCOUNT_AUTHENTICATOR_RESPONSE,
+                        request.response);
+                result.putParcelable(AccountManager.KEY_INTENT, intent);
+            }
+
+            request.response.onResult(result);
+        }
+    }
+
+}
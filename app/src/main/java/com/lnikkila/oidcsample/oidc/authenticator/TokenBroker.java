@@ -0,0 +1,132 @@
+package com.lnikkila.oidcsample.oidc.authenticator;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.lnikkila.oidcsample.oidc.BlockingCallGuard;
+
+import java.io.IOException;
+
+/**
+ * Gets tokens from the {@link TokenBrokerProvider} in the app's main process, for code that runs
+ * in another process or in a companion app signed with the same key.
+ *
+ * Going through the broker instead of AccountManager.getAuthToken() means one binder call to a
+ * process that usually has the token in memory already. When it doesn't, the broker fetches it once
+ * and every process that asked meanwhile gets the same token, so an expired token is refreshed once
+ * per device instead of once per process. Down-scoped Access Tokens are cached in the broker too.
+ *
+ * Refresh Tokens never leave the main process. Everything here blocks, so don't call it on the main
+ * thread.
+ */
+public final class TokenBroker {
+
+    public static final String AUTHORITY = "com.lnikkila.oidcsample.tokens";
+    public static final String PERMISSION = "com.lnikkila.oidcsample.permission.TOKEN_BROKER";
+
+    static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+
+    static final String METHOD_GET_TOKEN = "getToken";
+    static final String METHOD_GET_SCOPED_TOKEN = "getScopedToken";
+    static final String METHOD_INVALIDATE_TOKEN = "invalidateToken";
+    static final String METHOD_INVALIDATE_SCOPED_TOKEN = "invalidateScopedToken";
+
+    static final String KEY_ACCOUNT = "com.lnikkila.oidcsample.KEY_ACCOUNT";
+    static final String KEY_TOKEN_TYPE = "com.lnikkila.oidcsample.KEY_TOKEN_TYPE";
+    static final String KEY_TOKEN = "com.lnikkila.oidcsample.KEY_TOKEN";
+    static final String KEY_SCOPES = "com.lnikkila.oidcsample.KEY_SCOPES";
+    static final String KEY_AUDIENCE = "com.lnikkila.oidcsample.KEY_AUDIENCE";
+
+    private TokenBroker() {}
+
+    /**
+     * Returns the account's token of the given type, refreshing it if needed.
+     *
+     * @param authTokenType {@link Authenticator#TOKEN_TYPE_ID} or
+     *                      {@link Authenticator#TOKEN_TYPE_ACCESS}
+     * @return the token, or null if the user has to log in again
+     * @throws IOException if the broker couldn't be reached or the refresh failed
+     */
+    public static String getAuthToken(Context context, Account account, String authTokenType)
+            throws IOException {
+
+        Bundle extras = newExtras(account);
+        extras.putString(KEY_TOKEN_TYPE, authTokenType);
+
+        return call(context, METHOD_GET_TOKEN, extras).getString(AccountManager.KEY_AUTHTOKEN);
+    }
+
+    /**
+     * @see TokenStore#getScopedAccessToken(Context, Account, String[], String)
+     */
+    public static String getScopedAccessToken(Context context, Account account, String[] scopes,
+                                              String audience) throws IOException {
+
+        Bundle extras = newExtras(account);
+        extras.putStringArray(KEY_SCOPES, scopes);
+        extras.putString(KEY_AUDIENCE, audience);
+
+        return call(context, METHOD_GET_SCOPED_TOKEN, extras)
+                .getString(AccountManager.KEY_AUTHTOKEN);
+    }
+
+    /**
+     * Invalidates a token that the server didn't accept, so the next call refreshes it.
+     */
+    public static void invalidateAuthToken(Context context, Account account, String authTokenType,
+                                           String token) throws IOException {
+
+        Bundle extras = newExtras(account);
+        extras.putString(KEY_TOKEN_TYPE, authTokenType);
+        extras.putString(KEY_TOKEN, token);
+
+        call(context, METHOD_INVALIDATE_TOKEN, extras);
+    }
+
+    /**
+     * Invalidates a down-scoped Access Token that the server didn't accept.
+     */
+    public static void invalidateScopedAccessToken(Context context, Account account,
+                                                   String accessToken) throws IOException {
+
+        Bundle extras = newExtras(account);
+        extras.putString(KEY_TOKEN, accessToken);
+
+        call(context, METHOD_INVALIDATE_SCOPED_TOKEN, extras);
+    }
+
+    private static Bundle newExtras(Account account) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(KEY_ACCOUNT, account);
+        return extras;
+    }
+
+    private static Bundle call(Context context, String method, Bundle extras)
+            throws IOException {
+
+        Bundle result;
+        BlockingCallGuard.Call call = BlockingCallGuard.enter("TokenBroker." + method);
+
+        try {
+            result = context.getContentResolver().call(CONTENT_URI, method, null, extras);
+        } catch (IllegalArgumentException | SecurityException e) {
+            // The provider isn't installed, or this app isn't allowed to use it
+            throw new IOException("Could not reach the token broker.", e);
+        } finally {
+            call.exit();
+        }
+
+        if (result == null) {
+            throw new IOException("Could not reach the token broker.");
+        }
+        if (result.containsKey(AccountManager.KEY_ERROR_MESSAGE)) {
+            throw new IOException(result.getString(AccountManager.KEY_ERROR_MESSAGE));
+        }
+
+        return result;
+    }
+
+}
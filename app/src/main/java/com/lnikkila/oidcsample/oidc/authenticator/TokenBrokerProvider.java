@@ -0,0 +1,193 @@
+package com.lnikkila.oidcsample.oidc.authenticator;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.AuthenticatorException;
+import android.accounts.OnAccountsUpdateListener;
+import android.accounts.OperationCanceledException;
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.lnikkila.oidcsample.R;
+import com.lnikkila.oidcsample.oidc.SharedTokenCache;
+
+import java.io.IOException;
+
+/**
+ * Serves the accounts' tokens to other processes and companion apps, see {@link TokenBroker}.
+ *
+ * The tokens are cached in this process, and {@link TokenStore} drops an account's entries whenever
+ * it stores or invalidates its tokens, so a read never sees a token that this app has replaced. A
+ * cached ID Token is also dropped when it's about to expire. On a miss, the token is fetched with
+ * AccountManager.getAuthToken(), which refreshes it if needed. Misses are serialised per account,
+ * so when several processes ask for an expired token at once, one of them refreshes it and the
+ * others get the result.
+ *
+ * Only the `call()` interface is used; the provider has no tables. It's protected by a signature
+ * permission, which `call()` has to check itself.
+ */
+public class TokenBrokerProvider extends ContentProvider {
+
+    private static final String TAG = "TokenBrokerProvider";
+
+    // Its locks can't be the refresh locks of TokenStore, since the Authenticator takes those on
+    // another thread while we wait for it
+    private static final SharedTokenCache tokens = new SharedTokenCache();
+
+    private AccountManager accountManager;
+    private String accountType;
+
+    @Override
+    public boolean onCreate() {
+        accountManager = AccountManager.get(getContext());
+        accountType = getContext().getString(R.string.ACCOUNT_TYPE);
+
+        // Tokens of removed accounts mustn't be served. The listener lives as long as the process.
+        accountManager.addOnAccountsUpdatedListener(new OnAccountsUpdateListener() {
+            @Override
+            public void onAccountsUpdated(Account[] accounts) {
+                tokens.clear();
+            }
+        }, null, false);
+
+        return true;
+    }
+
+    /**
+     * Called by {@link TokenStore} when an account's tokens change.
+     */
+    static void forget(Account account) {
+        tokens.forget(account.name);
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        getContext().enforceCallingOrSelfPermission(TokenBroker.PERMISSION,
+                "Not allowed to use the token broker.");
+
+        Account account = extras != null
+                ? (Account) extras.getParcelable(TokenBroker.KEY_ACCOUNT) : null;
+
+        if (account == null || !accountType.equals(account.type)) {
+            return errorResult("Not an account of this app.");
+        }
+
+        Bundle result = new Bundle();
+
+        try {
+            switch (method) {
+                case TokenBroker.METHOD_GET_TOKEN:
+                    result.putString(AccountManager.KEY_AUTHTOKEN,
+                            getToken(account, extras.getString(TokenBroker.KEY_TOKEN_TYPE)));
+                    break;
+                case TokenBroker.METHOD_GET_SCOPED_TOKEN:
+                    result.putString(AccountManager.KEY_AUTHTOKEN,
+                            TokenStore.getScopedAccessToken(getContext(), account,
+                                    extras.getStringArray(TokenBroker.KEY_SCOPES),
+                                    extras.getString(TokenBroker.KEY_AUDIENCE)));
+                    break;
+                case TokenBroker.METHOD_INVALIDATE_TOKEN:
+                    invalidateToken(account, extras.getString(TokenBroker.KEY_TOKEN_TYPE),
+                            extras.getString(TokenBroker.KEY_TOKEN));
+                    break;
+                case TokenBroker.METHOD_INVALIDATE_SCOPED_TOKEN:
+                    TokenStore.invalidateScopedAccessToken(extras.getString(TokenBroker.KEY_TOKEN));
+                    break;
+                default:
+                    return errorResult("Unknown method " + method);
+            }
+        } catch (IOException e) {
+            AuthLog.e(TAG, "Could not get a token for another process.", e);
+            return errorResult(e.getMessage());
+        }
+
+        return result;
+    }
+
+    private String getToken(final Account account, final String authTokenType)
+            throws IOException {
+
+        // The Refresh Token stays in this process
+        if (!Authenticator.TOKEN_TYPE_ID.equals(authTokenType)
+                && !Authenticator.TOKEN_TYPE_ACCESS.equals(authTokenType)) {
+            throw new IOException("Token type not available: " + authTokenType);
+        }
+
+        return tokens.get(account.name, authTokenType, new SharedTokenCache.Loader() {
+            @Override
+            public String load() throws IOException {
+                try {
+                    // Refreshes the tokens if needed, and returns null if the user has to log in
+                    return accountManager.blockingGetAuthToken(account, authTokenType, false);
+                } catch (OperationCanceledException | AuthenticatorException e) {
+                    throw new IOException("Could not get a token from the Authenticator.", e);
+                }
+            }
+
+            @Override
+            public long getExpiresAt(String token) {
+                // Only the ID Token's expiry is stored
+                if (!Authenticator.TOKEN_TYPE_ID.equals(authTokenType)) {
+                    return 0;
+                }
+
+                try {
+                    return Long.parseLong(accountManager.getUserData(account,
+                            TokenStore.KEY_ID_TOKEN_EXPIRES_AT));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        });
+    }
+
+    private void invalidateToken(Account account, String authTokenType, String token) {
+        if (token == null) {
+            return;
+        }
+
+        if (Authenticator.TOKEN_TYPE_ID.equals(authTokenType)) {
+            // Also updates the account index and notifies the subscribers, and forgets it here
+            TokenStore.invalidateIdToken(getContext(), account, token);
+        } else {
+            accountManager.invalidateAuthToken(account.type, token);
+            forget(account);
+        }
+    }
+
+    private static Bundle errorResult(String message) {
+        Bundle result = new Bundle();
+        result.putString(AccountManager.KEY_ERROR_MESSAGE, message);
+        return result;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+}
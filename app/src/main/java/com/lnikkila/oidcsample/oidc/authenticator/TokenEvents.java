@@ -0,0 +1,118 @@
+package com.lnikkila.oidcsample.oidc.authenticator;
+
+import android.accounts.Account;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Lets components subscribe to the token changes of an account, instead of polling the
+ * AccountManager. A long-lived component can hold on to the current ID Token and swap it when it's
+ * refreshed, and find out right away when the user needs to log in again.
+ *
+ * Events are published by {@link TokenStore} and the {@link Authenticator}, which run in the app's
+ * own process, so only subscribers in that process are notified. Tokens changed by other apps
+ * through the AccountManager aren't seen.
+ */
+public final class TokenEvents {
+
+    public enum Type {
+        /** New tokens were stored, after a refresh or a login. */
+        REFRESHED,
+        /** The ID Token was rejected and invalidated. The next getAuthToken() will refresh it. */
+        INVALIDATED,
+        /** The tokens can't be refreshed anymore, the user has to authorise the app again. */
+        REAUTH_REQUIRED
+    }
+
+    public interface Listener {
+        /**
+         * @param idToken the new ID Token for {@link Type#REFRESHED} events, otherwise null
+         */
+        void onTokenEvent(Account account, Type type, String idToken);
+    }
+
+    private static class Subscription {
+
+        final Listener listener;
+        final Handler handler;
+
+        Subscription(Listener listener, Handler handler) {
+            this.listener = listener;
+            this.handler = handler;
+        }
+
+    }
+
+    // Account name -> subscriptions
+    private static final ConcurrentMap<String, List<Subscription>> subscriptions =
+            new ConcurrentHashMap<>();
+
+    private TokenEvents() {}
+
+    /**
+     * Subscribes to the events of an account on the main thread.
+     */
+    public static void subscribe(Account account, Listener listener) {
+        subscribe(account, listener, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * Subscribes to the events of an account. Events are delivered on the given handler's thread,
+     * in the order they were published. Remember to unsubscribe, since the listener is held
+     * strongly.
+     */
+    public static void subscribe(Account account, Listener listener, Handler handler) {
+        List<Subscription> accountSubscriptions = subscriptions.get(account.name);
+
+        if (accountSubscriptions == null) {
+            List<Subscription> newSubscriptions = new CopyOnWriteArrayList<>();
+            accountSubscriptions = subscriptions.putIfAbsent(account.name, newSubscriptions);
+
+            if (accountSubscriptions == null) {
+                accountSubscriptions = newSubscriptions;
+            }
+        }
+
+        accountSubscriptions.add(new Subscription(listener, handler));
+    }
+
+    public static void unsubscribe(Account account, Listener listener) {
+        List<Subscription> accountSubscriptions = subscriptions.get(account.name);
+
+        if (accountSubscriptions == null) {
+            return;
+        }
+
+        for (Subscription subscription : accountSubscriptions) {
+            if (subscription.listener == listener) {
+                accountSubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    static void publish(final Account account, final Type type, final String idToken) {
+        final List<Subscription> accountSubscriptions = subscriptions.get(account.name);
+
+        if (accountSubscriptions == null) {
+            return;
+        }
+
+        for (final Subscription subscription : accountSubscriptions) {
+            subscription.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Don't deliver to listeners that unsubscribed in the meantime
+                    if (accountSubscriptions.contains(subscription)) {
+                        subscription.listener.onTokenEvent(account, type, idToken);
+                    }
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,248 @@
+package com.lnikkila.oidcsample.oidc.authenticator;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.text.TextUtils;
+
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.google.api.client.json.gson.GsonFactory;
+import com.lnikkila.oidcsample.oidc.OIDCClient;
+import com.lnikkila.oidcsample.oidc.TokenRequestException;
+import com.lnikkila.oidcsample.oidc.TokenResult;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
+
+/**
+ * The one place where tokens are written to and invalidated in the AccountManager. Along with the
+ * tokens it stores what the account chooser needs to know about them in the account's user data,
+ * and keeps the {@link AccountIndex} up to date. Subscribers of {@link TokenEvents} are notified of
+ * every change.
+ *
+ * Down-scoped Access Tokens for specific resource servers don't go into the AccountManager, which
+ * can only hold one token per type. They're kept in a {@link ScopedTokenCache} instead.
+ */
+public final class TokenStore {
+
+    private static final String TAG = "TokenStore";
+
+    /**
+     * When the account's ID Token expires, in milliseconds since the epoch. Stored in the account's
+     * user data as a string.
+     */
+    public static final String KEY_ID_TOKEN_EXPIRES_AT =
+            "com.lnikkila.oidcsample.KEY_ID_TOKEN_EXPIRES_AT";
+
+    /**
+     * A human-readable name for the account, taken from the ID Token's claims. Stored in the
+     * account's user data.
+     */
+    public static final String KEY_DISPLAY_NAME = "com.lnikkila.oidcsample.KEY_DISPLAY_NAME";
+
+    /**
+     * The ID Token subject, i.e. the user's ID at the provider. Stored in the account's user data.
+     */
+    public static final String KEY_SUBJECT = "com.lnikkila.oidcsample.KEY_SUBJECT";
+
+    // Enough for a handful of resource servers per account
+    private static final int MAX_SCOPED_TOKENS = 32;
+
+    private static final ScopedTokenCache scopedTokens = new ScopedTokenCache(MAX_SCOPED_TOKENS);
+
+    // Account name -> lock held while using its Refresh Token
+    private static final ConcurrentMap<String, Object> refreshLocks = new ConcurrentHashMap<>();
+
+    private TokenStore() {}
+
+    /**
+     * Returns the lock to hold while refreshing an account's tokens. If the provider rotates
+     * Refresh Tokens, two concurrent refreshes with the same token would make one of them fail.
+     */
+    static Object getRefreshLock(Account account) {
+        Object lock = refreshLocks.get(account.name);
+
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = refreshLocks.putIfAbsent(account.name, newLock);
+
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+
+        return lock;
+    }
+
+    /**
+     * Returns an Access Token for the given scopes and audience, which is requested with the
+     * account's Refresh Token if there's no valid one in the cache yet. Needs to be run on a
+     * separate thread.
+     *
+     * The scopes have to be a subset of the ones the account was authorised for.
+     *
+     * @param audience the URI of the resource server the token is for, or null for the default
+     * @throws IOException if the account has no Refresh Token or the refresh failed
+     */
+    public static String getScopedAccessToken(Context context, Account account, String[] scopes,
+                                              String audience) throws IOException {
+
+        String token = scopedTokens.get(account, scopes, audience);
+
+        if (token != null) {
+            return token;
+        }
+
+        AccountManager accountManager = AccountManager.get(context);
+        OIDCClient client = Providers.forAccount(accountManager, account);
+
+        synchronized (getRefreshLock(account)) {
+            // Someone else may have fetched the same token while we were waiting
+            token = scopedTokens.get(account, scopes, audience);
+
+            if (token != null) {
+                return token;
+            }
+
+            String refreshToken = accountManager.peekAuthToken(account,
+                    Authenticator.TOKEN_TYPE_REFRESH);
+
+            if (TextUtils.isEmpty(refreshToken)) {
+                throw new IOException("No Refresh Token, the account needs to be authorised again.");
+            }
+
+            TokenResult response;
+
+            try {
+                response = client.refreshTokens(refreshToken, scopes, audience);
+            } catch (TokenRequestException e) {
+                if (e.getStatusCode() == HTTP_BAD_REQUEST && "invalid_grant".equals(e.getError())) {
+                    scopedTokens.invalidateAll(account);
+                }
+
+                throw e;
+            }
+
+            // The old Refresh Token may not be valid anymore
+            if (response.getRefreshToken() != null
+                    && !response.getRefreshToken().equals(refreshToken)) {
+                accountManager.setAuthToken(account, Authenticator.TOKEN_TYPE_REFRESH,
+                        response.getRefreshToken());
+            }
+
+            Long expiresIn = response.getExpiresInSeconds();
+            long expiresAt = System.currentTimeMillis() + (expiresIn != null
+                    ? expiresIn * 1000 : ScopedTokenCache.DEFAULT_LIFETIME_MILLIS);
+
+            token = response.getAccessToken();
+            scopedTokens.put(account, scopes, audience, token, expiresAt);
+
+            return token;
+        }
+    }
+
+    /**
+     * Invalidates a down-scoped Access Token that the server didn't accept.
+     */
+    public static void invalidateScopedAccessToken(String accessToken) {
+        scopedTokens.invalidate(accessToken);
+    }
+
+    /**
+     * Forgets all down-scoped tokens of an account whose Refresh Token is no longer valid.
+     */
+    static void invalidateScopedAccessTokens(Account account) {
+        scopedTokens.invalidateAll(account);
+    }
+
+    /**
+     * Stores a fresh set of tokens in the account.
+     *
+     * Providers that don't rotate Refresh Tokens usually leave them out of refresh responses, in
+     * which case the current one stays valid and is kept.
+     */
+    public static void storeTokens(Context context, Account account, TokenResult response) {
+        AccountManager accountManager = AccountManager.get(context);
+
+        accountManager.setAuthToken(account, Authenticator.TOKEN_TYPE_ID, response.getIdToken());
+        accountManager.setAuthToken(account, Authenticator.TOKEN_TYPE_ACCESS, response.getAccessToken());
+
+        if (response.getRefreshToken() != null) {
+            accountManager.setAuthToken(account, Authenticator.TOKEN_TYPE_REFRESH, response.getRefreshToken());
+        }
+
+        long expiresAt = 0;
+
+        try {
+            IdToken.Payload payload = IdToken.parse(new GsonFactory(), response.getIdToken())
+                    .getPayload();
+
+            if (payload.getExpirationTimeSeconds() != null) {
+                expiresAt = payload.getExpirationTimeSeconds() * 1000;
+            }
+
+            if (payload.getSubject() != null) {
+                accountManager.setUserData(account, KEY_SUBJECT, payload.getSubject());
+            }
+
+            String displayName = displayNameOf(payload);
+
+            if (displayName != null) {
+                accountManager.setUserData(account, KEY_DISPLAY_NAME, displayName);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            AuthLog.w(TAG, "Could not parse ID Token.", e);
+        }
+
+        accountManager.setUserData(account, KEY_ID_TOKEN_EXPIRES_AT, Long.toString(expiresAt));
+
+        AccountIndex.get(context).onTokensStored(account, expiresAt,
+                accountManager.getUserData(account, KEY_DISPLAY_NAME));
+        TokenBrokerProvider.forget(account);
+
+        TokenEvents.publish(account, TokenEvents.Type.REFRESHED, response.getIdToken());
+    }
+
+    /**
+     * Invalidates an ID Token that the server didn't accept, so the next getAuthToken() call
+     * refreshes it.
+     */
+    public static void invalidateIdToken(Context context, Account account, String idToken) {
+        AccountManager.get(context).invalidateAuthToken(account.type, idToken);
+        AccountIndex.get(context).onIdTokenInvalidated(account);
+        TokenBrokerProvider.forget(account);
+        TokenEvents.publish(account, TokenEvents.Type.INVALIDATED, null);
+    }
+
+    /**
+     * Returns the ID Token subject of the account, or null if it isn't known.
+     */
+    static String getSubject(AccountManager accountManager, Account account) {
+        String subject = accountManager.getUserData(account, KEY_SUBJECT);
+
+        if (subject == null) {
+            // Accounts from before the subject was stored are named `preferred_username (ID)`
+            int start = account.name.lastIndexOf(" (");
+
+            if (start != -1 && account.name.endsWith(")")) {
+                subject = account.name.substring(start + 2, account.name.length() - 1);
+            }
+        }
+
+        return subject;
+    }
+
+    private static String displayNameOf(IdToken.Payload payload) {
+        Object name = payload.get("preferred_username");
+
+        if (name == null) {
+            name = payload.get("name");
+        }
+
+        return name instanceof String ? (String) name : null;
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.lnikkila.oidcsample.oidc;
+
+/**
+ * Detects blocking calls made on a thread that must not block, i.e. the main thread on Android.
+ *
+ * Network calls in {@link OIDCUtils} and {@link OIDCClient} are wrapped with {@link #enter(String)}
+ * and {@link Call#exit()}. Nothing is checked until a {@link ThreadPolicy} has been installed with
+ * {@link #install(ThreadPolicy, Penalty, Reporter)}, and when it hasn't, the check costs a single
+ * volatile read.
+ *
+ * This module doesn't know about Android, so the app installs a policy that recognises the main
+ * looper's thread.
+ */
+public final class BlockingCallGuard {
+
+    /**
+     * Decides whether the current thread is one that must not block.
+     */
+    public interface ThreadPolicy {
+        boolean isBlockingForbidden();
+    }
+
+    /**
+     * Receives violations. The call site is the stack trace of the given throwable.
+     */
+    public interface Reporter {
+        void onViolation(String callName, Throwable callSite, long durationMillis);
+    }
+
+    public enum Penalty {
+        /** Report the violation once the call has finished, with its duration. */
+        REPORT,
+        /** Throw a {@link BlockingCallException} before the call even starts. */
+        THROW
+    }
+
+    /**
+     * Thrown for violations when the penalty is {@link Penalty#THROW}.
+     */
+    public static class BlockingCallException extends IllegalStateException {
+
+        private static final long serialVersionUID = 1L;
+
+        BlockingCallException(String callName) {
+            super(callName + " is a blocking call and needs to be run on a separate thread.");
+        }
+
+    }
+
+    /**
+     * An ongoing call. Call {@link #exit()} in a finally block.
+     */
+    public static final class Call {
+
+        private static final Call UNCHECKED = new Call(null, null, 0);
+
+        private final String callName;
+        private final Throwable callSite;
+        private final long startNanos;
+
+        private Call(String callName, Throwable callSite, long startNanos) {
+            this.callName = callName;
+            this.callSite = callSite;
+            this.startNanos = startNanos;
+        }
+
+        public void exit() {
+            if (callSite == null) {
+                return;
+            }
+
+            Config config = BlockingCallGuard.config;
+
+            if (config != null) {
+                long durationMillis = (System.nanoTime() - startNanos) / 1000000;
+                config.reporter.onViolation(callName, callSite, durationMillis);
+            }
+        }
+
+    }
+
+    private static class Config {
+
+        final ThreadPolicy policy;
+        final Penalty penalty;
+        final Reporter reporter;
+
+        Config(ThreadPolicy policy, Penalty penalty, Reporter reporter) {
+            this.policy = policy;
+            this.penalty = penalty;
+            this.reporter = reporter;
+        }
+
+    }
+
+    private static volatile Config config;
+
+    private BlockingCallGuard() {}
+
+    public static void install(ThreadPolicy policy, Penalty penalty, Reporter reporter) {
+        if (policy == null || penalty == null || reporter == null) {
+            throw new IllegalArgumentException("Policy, penalty and reporter are required.");
+        }
+
+        config = new Config(policy, penalty, reporter);
+    }
+
+    public static void uninstall() {
+        config = null;
+    }
+
+    /**
+     * Marks the start of a blocking call.
+     *
+     * @throws BlockingCallException if the current thread must not block and the penalty is
+     *                               {@link Penalty#THROW}
+     */
+    public static Call enter(String callName) {
+        Config config = BlockingCallGuard.config;
+
+        if (config == null || !config.policy.isBlockingForbidden()) {
+            return Call.UNCHECKED;
+        }
+
+        Throwable callSite = new Throwable("Blocking call: " + callName);
+
+        if (config.penalty == Penalty.THROW) {
+            config.reporter.onViolation(callName, callSite, 0);
+            throw new BlockingCallException(callName);
+        }
+
+        return new Call(callName, callSite, System.nanoTime());
+    }
+
+}
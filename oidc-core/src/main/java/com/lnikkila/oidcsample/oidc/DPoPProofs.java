@@ -0,0 +1,464 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * Creates DPoP proofs (RFC 9449), which bind tokens to a key pair held by this device. Every
+ * request to the Token Endpoint and to a resource server needs a fresh proof, so this is built to
+ * be cheap:
+ *
+ * - The key pair and the encoded JWT header, which contains the public key, are prepared once.
+ * - Every thread keeps its own initialised Signature, digest, random generator and buffers, so
+ *   proofs are signed without locking and without setting anything up.
+ * - The payload is written and encoded straight into reused byte buffers. Apart from what the
+ *   Signature allocates, the only allocation per proof is the resulting string.
+ *
+ * Proofs are signed with ES256. Instances are thread-safe.
+ *
+ * The key pair isn't persisted. That's fine for confidential clients like this sample, whose
+ * Refresh Tokens aren't bound to the key, but public clients need to keep the key pair (e.g. in the
+ * Android Keystore) and pass it to {@link #DPoPProofs(KeyPair)} instead of generating a new one.
+ */
+public final class DPoPProofs {
+
+    public static final String HEADER = "DPoP";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] BASE64URL =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(ASCII);
+
+    // ES256 signatures are two 32-byte integers
+    private static final int COORDINATE_BYTES = 32;
+
+    private final PrivateKey privateKey;
+
+    // base64url(header) + "."
+    private final byte[] encodedHeader;
+
+    private final String thumbprint;
+
+    private final ThreadLocal<Signer> signers = new ThreadLocal<Signer>() {
+        @Override
+        protected Signer initialValue() {
+            try {
+                return new Signer();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not set up DPoP signing.", e);
+            }
+        }
+    };
+
+    /**
+     * Uses the given P-256 key pair.
+     */
+    public DPoPProofs(KeyPair keyPair) throws GeneralSecurityException {
+        if (!(keyPair.getPublic() instanceof ECPublicKey)
+                || ((ECPublicKey) keyPair.getPublic()).getParams().getCurve().getField()
+                        .getFieldSize() != 256) {
+            throw new GeneralSecurityException("DPoP needs a P-256 key pair.");
+        }
+
+        ECPublicKey publicKey = (ECPublicKey) keyPair.getPublic();
+        String x = base64Url(unsigned(publicKey.getW().getAffineX()));
+        String y = base64Url(unsigned(publicKey.getW().getAffineY()));
+
+        String header = "{\"typ\":\"dpop+jwt\",\"alg\":\"ES256\",\"jwk\":{\"kty\":\"EC\","
+                + "\"crv\":\"P-256\",\"x\":\"" + x + "\",\"y\":\"" + y + "\"}}";
+        encodedHeader = (base64Url(header.getBytes(UTF_8)) + ".").getBytes(ASCII);
+
+        // RFC 7638: the required members in lexicographic order, without whitespace
+        String jwk = "{\"crv\":\"P-256\",\"kty\":\"EC\",\"x\":\"" + x + "\",\"y\":\"" + y + "\"}";
+        thumbprint = base64Url(MessageDigest.getInstance("SHA-256").digest(jwk.getBytes(UTF_8)));
+
+        privateKey = keyPair.getPrivate();
+
+        // Fail early if the platform can't sign with this key
+        signers.get();
+    }
+
+    /**
+     * Generates a new P-256 key pair. This takes a few milliseconds, so do it off the main thread.
+     */
+    public static DPoPProofs generate() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+
+        return new DPoPProofs(generator.generateKeyPair());
+    }
+
+    /**
+     * The JWK SHA-256 thumbprint of the public key, for the `dpop_jkt` authorisation parameter.
+     */
+    public String getThumbprint() {
+        return thumbprint;
+    }
+
+    /**
+     * Creates a proof for a request to the Token Endpoint.
+     */
+    public String createProof(String method, String url) {
+        return createProof(method, url, null, null);
+    }
+
+    /**
+     * Creates a proof for a request.
+     *
+     * @param url         the request URL. The query and fragment are left out of the proof.
+     * @param accessToken the DPoP-bound Access Token sent with the request, or null
+     * @param nonce       the last `DPoP-Nonce` the server sent, or null
+     */
+    public String createProof(String method, String url, String accessToken, String nonce) {
+        return signers.get().sign(method, url, accessToken, nonce);
+    }
+
+    /**
+     * Returns an initializer that adds a proof to every request it initialises, e.g. for the
+     * token requests of google-oauth-client. The proof is created right before the request is sent,
+     * once its method and URL are final.
+     */
+    public HttpRequestInitializer asRequestInitializer() {
+        return new HttpRequestInitializer() {
+            @Override
+            public void initialize(HttpRequest request) {
+                final HttpExecuteInterceptor interceptor = request.getInterceptor();
+
+                request.setInterceptor(new HttpExecuteInterceptor() {
+                    @Override
+                    public void intercept(HttpRequest request) throws IOException {
+                        if (interceptor != null) {
+                            interceptor.intercept(request);
+                        }
+
+                        request.getHeaders().set(HEADER, createProof(request.getRequestMethod(),
+                                request.getUrl().build()));
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Per-thread signing state and scratch buffers.
+     */
+    private class Signer {
+
+        final Signature signature = Signature.getInstance("SHA256withECDSA");
+        final MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        final SecureRandom random = new SecureRandom();
+
+        final byte[] jti = new byte[16];
+        final byte[] tokenHash = new byte[32];
+        final byte[] joseSignature = new byte[2 * COORDINATE_BYTES];
+
+        // Access Tokens are ASCII, so they're copied in here for hashing instead of being encoded
+        byte[] tokenBytes = new byte[1024];
+
+        // The payload JSON, and the whole proof as it's being assembled
+        byte[] payload = new byte[256];
+        int payloadLength;
+        byte[] proof = new byte[512];
+        int proofLength;
+
+        Signer() throws GeneralSecurityException {
+            signature.initSign(privateKey);
+        }
+
+        String sign(String method, String url, String accessToken, String nonce) {
+            payloadLength = 0;
+
+            random.nextBytes(jti);
+            appendAscii("{\"jti\":\"");
+            appendBase64UrlToPayload(jti, jti.length);
+            appendAscii("\",\"htm\":\"");
+            appendString(method, method.length());
+            appendAscii("\",\"htu\":\"");
+            appendString(url, endOfPath(url));
+            appendAscii("\",\"iat\":");
+            appendLong(System.currentTimeMillis() / 1000);
+
+            if (accessToken != null) {
+                appendAscii(",\"ath\":\"");
+                hashAccessToken(accessToken);
+                appendBase64UrlToPayload(tokenHash, tokenHash.length);
+                appendAscii("\"");
+            }
+
+            if (nonce != null) {
+                appendAscii(",\"nonce\":\"");
+                appendString(nonce, nonce.length());
+                appendAscii("\"");
+            }
+
+            appendAscii("}");
+
+            // header.payload
+            proofLength = 0;
+            ensureProofCapacity(encodedHeader.length + encodedLength(payloadLength) + 1
+                    + encodedLength(joseSignature.length));
+            System.arraycopy(encodedHeader, 0, proof, 0, encodedHeader.length);
+            proofLength = encodedHeader.length;
+            proofLength = encode(payload, payloadLength, proof, proofLength);
+
+            try {
+                signature.update(proof, 0, proofLength);
+                derToJose(signature.sign(), joseSignature);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not sign DPoP proof.", e);
+            }
+
+            proof[proofLength++] = '.';
+            proofLength = encode(joseSignature, joseSignature.length, proof, proofLength);
+
+            return new String(proof, 0, proofLength, ASCII);
+        }
+
+        private void hashAccessToken(String accessToken) {
+            int length = accessToken.length();
+
+            if (length > tokenBytes.length) {
+                tokenBytes = new byte[length];
+            }
+            for (int i = 0; i < length; i++) {
+                tokenBytes[i] = (byte) accessToken.charAt(i);
+            }
+
+            sha256.update(tokenBytes, 0, length);
+
+            try {
+                sha256.digest(tokenHash, 0, tokenHash.length);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void appendAscii(String string) {
+            int length = string.length();
+            ensurePayloadCapacity(length);
+
+            for (int i = 0; i < length; i++) {
+                payload[payloadLength++] = (byte) string.charAt(i);
+            }
+        }
+
+        /**
+         * Appends the first characters of a string as the body of a JSON string, escaped.
+         */
+        private void appendString(String string, int end) {
+            for (int i = 0; i < end; i++) {
+                if (string.charAt(i) >= 0x80) {
+                    // Rare in URLs, not worth a fast path
+                    appendUtf8(string.substring(0, end).getBytes(UTF_8));
+                    return;
+                }
+            }
+
+            ensurePayloadCapacity(end);
+
+            for (int i = 0; i < end; i++) {
+                appendEscaped((byte) string.charAt(i));
+            }
+        }
+
+        private void appendUtf8(byte[] bytes) {
+            ensurePayloadCapacity(bytes.length);
+
+            for (byte b : bytes) {
+                appendEscaped(b);
+            }
+        }
+
+        private void appendEscaped(byte b) {
+            if (b == '"' || b == '\\') {
+                ensurePayloadCapacity(2);
+                payload[payloadLength++] = '\\';
+                payload[payloadLength++] = b;
+            } else if (b >= 0 && b < 0x20) {
+                appendAscii(String.format("\\u%04x", b));
+            } else {
+                ensurePayloadCapacity(1);
+                payload[payloadLength++] = b;
+            }
+        }
+
+        private void appendLong(long value) {
+            ensurePayloadCapacity(20);
+
+            if (value == 0) {
+                payload[payloadLength++] = '0';
+                return;
+            }
+
+            int start = payloadLength;
+
+            while (value > 0) {
+                payload[payloadLength++] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+
+            // The digits came out backwards
+            for (int i = start, j = payloadLength - 1; i < j; i++, j--) {
+                byte digit = payload[i];
+                payload[i] = payload[j];
+                payload[j] = digit;
+            }
+        }
+
+        private void appendBase64UrlToPayload(byte[] data, int length) {
+            ensurePayloadCapacity(encodedLength(length));
+            payloadLength = encode(data, length, payload, payloadLength);
+        }
+
+        private void ensurePayloadCapacity(int extra) {
+            if (payloadLength + extra > payload.length) {
+                byte[] larger = new byte[Math.max(payload.length * 2, payloadLength + extra)];
+                System.arraycopy(payload, 0, larger, 0, payloadLength);
+                payload = larger;
+            }
+        }
+
+        private void ensureProofCapacity(int length) {
+            if (length > proof.length) {
+                proof = new byte[length];
+            }
+        }
+
+    }
+
+    /**
+     * Where the query or fragment of a URL starts, neither of which belongs in a proof.
+     */
+    private static int endOfPath(String url) {
+        int end = url.length();
+        int query = url.indexOf('?');
+        int fragment = url.indexOf('#');
+
+        if (query != -1) {
+            end = query;
+        }
+        if (fragment != -1 && fragment < end) {
+            end = fragment;
+        }
+
+        return end;
+    }
+
+    private static int encodedLength(int length) {
+        return (length * 4 + 2) / 3;
+    }
+
+    /**
+     * Writes unpadded base64url into the target and returns the new end offset.
+     */
+    private static int encode(byte[] data, int length, byte[] target, int offset) {
+        int i = 0;
+
+        for (; i + 3 <= length; i += 3) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+            target[offset++] = BASE64URL[bits >>> 18];
+            target[offset++] = BASE64URL[(bits >>> 12) & 0x3f];
+            target[offset++] = BASE64URL[(bits >>> 6) & 0x3f];
+            target[offset++] = BASE64URL[bits & 0x3f];
+        }
+
+        int remaining = length - i;
+
+        if (remaining == 1) {
+            int bits = (data[i] & 0xff) << 16;
+            target[offset++] = BASE64URL[bits >>> 18];
+            target[offset++] = BASE64URL[(bits >>> 12) & 0x3f];
+        } else if (remaining == 2) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8;
+            target[offset++] = BASE64URL[bits >>> 18];
+            target[offset++] = BASE64URL[(bits >>> 12) & 0x3f];
+            target[offset++] = BASE64URL[(bits >>> 6) & 0x3f];
+        }
+
+        return offset;
+    }
+
+    private static String base64Url(byte[] data) {
+        byte[] target = new byte[encodedLength(data.length)];
+        encode(data, data.length, target, 0);
+        return new String(target, ASCII);
+    }
+
+    /**
+     * A coordinate as exactly 32 bytes, without BigInteger's sign byte.
+     */
+    private static byte[] unsigned(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        byte[] result = new byte[COORDINATE_BYTES];
+
+        int length = Math.min(bytes.length, COORDINATE_BYTES);
+        System.arraycopy(bytes, bytes.length - length, result, COORDINATE_BYTES - length, length);
+
+        return result;
+    }
+
+    /**
+     * Java signs ECDSA as a DER sequence of two integers, JWS wants them concatenated as fixed-size
+     * unsigned numbers.
+     */
+    static void derToJose(byte[] der, byte[] jose) throws GeneralSecurityException {
+        // SEQUENCE, with a one or two byte length
+        int offset = 2;
+
+        if (der[0] != 0x30) {
+            throw new GeneralSecurityException("Invalid ECDSA signature.");
+        }
+        if ((der[1] & 0xff) == 0x81) {
+            offset = 3;
+        }
+
+        offset = copyInteger(der, offset, jose, 0);
+        copyInteger(der, offset, jose, COORDINATE_BYTES);
+    }
+
+    private static int copyInteger(byte[] der, int offset, byte[] jose, int joseOffset)
+            throws GeneralSecurityException {
+
+        if (der[offset] != 0x02) {
+            throw new GeneralSecurityException("Invalid ECDSA signature.");
+        }
+
+        int length = der[offset + 1] & 0xff;
+        int start = offset + 2;
+        int end = start + length;
+
+        // Skip the sign byte, and pad short integers with zeros
+        while (length > COORDINATE_BYTES && der[start] == 0) {
+            start++;
+            length--;
+        }
+
+        if (length > COORDINATE_BYTES) {
+            throw new GeneralSecurityException("Invalid ECDSA signature.");
+        }
+
+        for (int i = joseOffset; i < joseOffset + COORDINATE_BYTES - length; i++) {
+            jose[i] = 0;
+        }
+
+        System.arraycopy(der, start, jose, joseOffset + COORDINATE_BYTES - length, length);
+
+        return end;
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.util.Key;
+
+/**
+ * The Device Authorization Response of RFC 8628: the code the user enters on another device, where
+ * to enter it, and how the client should poll for the tokens meanwhile.
+ *
+ * @see OIDCUtils#requestDeviceAuthorization
+ * @see DevicePoller
+ */
+public class DeviceAuthorizationResponse extends GenericJson {
+
+    // The polling interval when the server doesn't give one
+    public static final long DEFAULT_INTERVAL_SECONDS = 5;
+
+    // RFC 8628 requires `expires_in`, but in case a server leaves it out
+    public static final long DEFAULT_EXPIRES_IN_SECONDS = 10 * 60;
+
+    @Key("device_code")
+    private String deviceCode;
+
+    @Key("user_code")
+    private String userCode;
+
+    @Key("verification_uri")
+    private String verificationUri;
+
+    @Key("verification_uri_complete")
+    private String verificationUriComplete;
+
+    @Key("expires_in")
+    private Long expiresInSeconds;
+
+    @Key("interval")
+    private Long intervalSeconds;
+
+    public String getDeviceCode() {
+        return deviceCode;
+    }
+
+    public String getUserCode() {
+        return userCode;
+    }
+
+    public String getVerificationUri() {
+        return verificationUri;
+    }
+
+    /**
+     * The verification URI with the user code already in it, or null if the server didn't send
+     * one.
+     */
+    public String getVerificationUriComplete() {
+        return verificationUriComplete;
+    }
+
+    /**
+     * How long the codes are valid for, {@link #DEFAULT_EXPIRES_IN_SECONDS} if the server didn't
+     * say.
+     */
+    public long getExpiresInSeconds() {
+        return expiresInSeconds != null ? expiresInSeconds : DEFAULT_EXPIRES_IN_SECONDS;
+    }
+
+    /**
+     * The minimum time between polls, {@link #DEFAULT_INTERVAL_SECONDS} if the server didn't say.
+     */
+    public long getIntervalSeconds() {
+        return intervalSeconds != null ? intervalSeconds : DEFAULT_INTERVAL_SECONDS;
+    }
+
+}
@@ -0,0 +1,215 @@
+package com.lnikkila.oidcsample.oidc;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the Token Endpoint for the tokens of pending device authorizations, see
+ * {@link OIDCClient#requestDeviceAuthorization()}.
+ *
+ * All pending authorizations share one scheduler thread, so waiting for a user costs a scheduled
+ * task instead of a sleeping thread. The next poll is scheduled the server's `interval` after the
+ * previous one finished. A `slow_down` error adds five seconds to that authorization's interval for
+ * good, as RFC 8628 section 3.5 requires, and a failed connection doubles it. The interval is never
+ * shorter than {@link #MIN_INTERVAL_MILLIS}, whatever the server says.
+ *
+ * Polling stops when the tokens arrive, when the server answers with any other error (e.g.
+ * `access_denied` or `expired_token`), when the handle is cancelled, or when the code expires. A
+ * poll is never scheduled past the expiry; the expiry is reported as soon as it's reached instead.
+ *
+ * The polls of different authorizations run one after another, and the callbacks run on the
+ * scheduler thread as well, so hand anything slow off to another thread.
+ */
+public final class DevicePoller {
+
+    // Keeps a server that sends an interval of 0 from getting polled in a tight loop
+    static final long MIN_INTERVAL_MILLIS = 1000;
+
+    static final long SLOW_DOWN_MILLIS = 5 * 1000;
+
+    // The interval never grows past this because of connection failures
+    private static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+
+    private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Device authorization poller");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    public interface Callback {
+
+        void onTokens(TokenResult response);
+
+        /**
+         * Called once polling has stopped without tokens. The exception is a
+         * {@link TokenRequestException} if the server ended the authorization.
+         */
+        void onFailure(IOException e);
+
+    }
+
+    /**
+     * A pending authorization. Exactly one of the callback methods is called for it, unless it's
+     * cancelled first.
+     */
+    public static final class Handle {
+
+        private final OIDCClient client;
+        private final String deviceCode;
+        private final Callback callback;
+
+        // In System.nanoTime()
+        private final long expiresAt;
+
+        // Only written on the scheduler
+        private volatile long intervalMillis;
+
+        // Guarded by this
+        private volatile boolean finished;
+        private ScheduledFuture<?> next;
+
+        private final Runnable poll = new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        };
+
+        private final Runnable expire = new Runnable() {
+            @Override
+            public void run() {
+                fail(new IOException("The device code expired."));
+            }
+        };
+
+        private Handle(OIDCClient client, String deviceCode, long intervalMillis,
+                       long expiresInMillis, Callback callback) {
+
+            this.client = client;
+            this.deviceCode = deviceCode;
+            this.intervalMillis = intervalMillis;
+            this.expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(expiresInMillis);
+            this.callback = callback;
+        }
+
+        /**
+         * Stops polling. Neither callback method is called after this returns, unless one was
+         * already running.
+         */
+        public synchronized void cancel() {
+            finished = true;
+
+            if (next != null) {
+                next.cancel(false);
+            }
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        long getIntervalMillis() {
+            return intervalMillis;
+        }
+
+        private void poll() {
+            if (finished) {
+                return;
+            }
+
+            try {
+                TokenResult response = client.pollDeviceToken(deviceCode);
+
+                if (finish()) {
+                    callback.onTokens(response);
+                }
+            } catch (TokenRequestException e) {
+                String error = e.getError();
+
+                if ("authorization_pending".equals(error)) {
+                    scheduleNext();
+                } else if ("slow_down".equals(error)) {
+                    intervalMillis += SLOW_DOWN_MILLIS;
+                    scheduleNext();
+                } else {
+                    fail(e);
+                }
+            } catch (IOException e) {
+                // Probably the network, so try again later, but less often. Doubling alone
+                // wouldn't get anywhere from a tiny interval.
+                intervalMillis = Math.max(intervalMillis, Math.min(MAX_BACKOFF_MILLIS,
+                        Math.max(MIN_INTERVAL_MILLIS, intervalMillis * 2)));
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            if (finished) {
+                return;
+            }
+
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime());
+
+            if (intervalMillis < remainingMillis) {
+                next = scheduler.schedule(poll, intervalMillis, TimeUnit.MILLISECONDS);
+            } else {
+                // The code would be gone by the next poll
+                next = scheduler.schedule(expire, Math.max(0, remainingMillis),
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void fail(IOException e) {
+            if (finish()) {
+                callback.onFailure(e);
+            }
+        }
+
+        private synchronized boolean finish() {
+            if (finished) {
+                return false;
+            }
+
+            finished = true;
+            return true;
+        }
+
+    }
+
+    private DevicePoller() {
+    }
+
+    /**
+     * Starts polling for the tokens of the given authorization. The first poll happens one
+     * interval from now, since the user can't have entered the code yet.
+     */
+    public static Handle poll(OIDCClient client, DeviceAuthorizationResponse authorization,
+                              Callback callback) {
+
+        return poll(client, authorization.getDeviceCode(),
+                Math.max(MIN_INTERVAL_MILLIS,
+                        TimeUnit.SECONDS.toMillis(authorization.getIntervalSeconds())),
+                TimeUnit.SECONDS.toMillis(authorization.getExpiresInSeconds()), callback);
+    }
+
+    /**
+     * Like {@link #poll(OIDCClient, DeviceAuthorizationResponse, Callback)}, but takes the interval
+     * as is, so tests don't have to wait a second between polls.
+     */
+    static Handle poll(OIDCClient client, String deviceCode, long intervalMillis,
+                       long expiresInMillis, Callback callback) {
+
+        Handle handle = new Handle(client, deviceCode, intervalMillis, expiresInMillis, callback);
+        handle.scheduleNext();
+        return handle;
+    }
+
+}
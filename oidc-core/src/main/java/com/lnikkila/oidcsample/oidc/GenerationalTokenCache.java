@@ -0,0 +1,153 @@
+package com.lnikkila.oidcsample.oidc;
+
+import java.io.IOException;
+
+/**
+ * Holds the current token of one account along with a generation number that goes up every time
+ * the token is renewed. This makes renewing after a 401 idempotent: when many requests that used
+ * the same token fail at once, only the first one invalidates it and fetches a new one. The others
+ * wait for that and reuse the new token, and a late failure with an old token can't invalidate a
+ * newer one.
+ *
+ * Where the tokens come from is up to the {@link TokenSource}. On Android that's the
+ * AccountManager, but this class doesn't depend on it. Tokens that the source renews by itself,
+ * e.g. after a refresh somewhere else in the app, should be passed to {@link #replace(String)}, so
+ * requests don't keep using the old one until it's rejected. With an {@link Expiry}, a token that
+ * has expired is invalidated and fetched again without waiting for the server to reject it. It's
+ * invalidated first because a source like the AccountManager would otherwise just return the same
+ * stored token again.
+ */
+public final class GenerationalTokenCache {
+
+    /**
+     * Fetches and invalidates tokens. Both methods may block.
+     */
+    public interface TokenSource {
+        /**
+         * Returns a valid token, renewing it if needed.
+         */
+        String getToken() throws IOException;
+
+        /**
+         * Invalidates a token, so the next {@link #getToken()} returns a new one.
+         */
+        void invalidate(String token) throws IOException;
+    }
+
+    /**
+     * Tells when tokens expire.
+     */
+    public interface Expiry {
+        /**
+         * Returns when the token expires, in milliseconds since the epoch, or 0 if it's unknown.
+         */
+        long getExpiresAt(String token);
+    }
+
+    /**
+     * A token and the generation it belongs to. Pass it back to {@link #renew(Token)} when the
+     * server rejects it.
+     */
+    public static final class Token {
+
+        private final String value;
+        private final long generation;
+        private final long expiresAt;
+
+        Token(String value, long generation, long expiresAt) {
+            this.value = value;
+            this.generation = generation;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+    }
+
+    // Tokens that are about to expire are treated as expired, so they don't expire in flight
+    public static final long EXPIRY_MARGIN_MILLIS = 30 * 1000;
+
+    private final TokenSource source;
+    private final Expiry expiry;
+
+    // Guarded by this. Null if there's no token or it was invalidated and fetching a new one failed.
+    private Token current;
+    private long generation;
+
+    public GenerationalTokenCache(TokenSource source) {
+        this(source, null);
+    }
+
+    /**
+     * @param expiry tells when tokens expire, or null if they're used until they're rejected
+     */
+    public GenerationalTokenCache(TokenSource source, Expiry expiry) {
+        this.source = source;
+        this.expiry = expiry;
+    }
+
+    /**
+     * Returns the current token, fetching one if there isn't one yet or it has expired.
+     */
+    public synchronized Token current() throws IOException {
+        if (current != null && current.expiresAt != 0
+                && System.currentTimeMillis() >= current.expiresAt - EXPIRY_MARGIN_MILLIS) {
+            Token expired = current;
+            current = null;
+            source.invalidate(expired.value);
+        }
+
+        if (current == null) {
+            current = newToken(source.getToken());
+        }
+
+        return current;
+    }
+
+    /**
+     * Makes the given token the current one, if it isn't already. Call this when the source has a
+     * new token, so that later requests use it right away. A failure with the old token then
+     * doesn't invalidate the new one.
+     */
+    public synchronized void replace(String token) {
+        if (token == null) {
+            current = null;
+        } else if (current == null || !current.value.equals(token)) {
+            current = newToken(token);
+        }
+    }
+
+    /**
+     * Forgets the current token, e.g. after it was invalidated somewhere else, so the next
+     * {@link #current()} fetches it from the source again.
+     */
+    public synchronized void clear() {
+        current = null;
+    }
+
+    /**
+     * Called when the server rejected the given token. If it's still the current one, it's
+     * invalidated and a new one is fetched, otherwise the token that already replaced it is
+     * returned. Callers that arrive while a new token is being fetched wait for it.
+     */
+    public synchronized Token renew(Token rejected) throws IOException {
+        if (current != null && current.generation == rejected.generation) {
+            source.invalidate(rejected.value);
+            current = null;
+        }
+
+        return current();
+    }
+
+    private Token newToken(String value) {
+        long expiresAt = expiry != null && value != null ? expiry.getExpiresAt(value) : 0;
+        return new Token(value, ++generation, expiresAt);
+    }
+
+}
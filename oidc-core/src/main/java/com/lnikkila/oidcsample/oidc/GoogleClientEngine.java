@@ -0,0 +1,67 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.google.api.client.auth.oauth2.TokenErrorResponse;
+import com.google.api.client.auth.oauth2.TokenResponseException;
+import com.google.api.client.http.HttpResponseException;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The default {@link OIDCEngine}, which makes its requests through {@link OIDCUtils} with the
+ * client's HTTP transport.
+ */
+public final class GoogleClientEngine implements OIDCEngine {
+
+    public static final GoogleClientEngine INSTANCE = new GoogleClientEngine();
+
+    private GoogleClientEngine() {}
+
+    @Override
+    public TokenResult requestTokens(OIDCClient client, String authCode) throws IOException {
+        try {
+            return new TokenResult(OIDCUtils.requestTokens(client.getTransport(),
+                    client.getRequestInitializer(), client.getClientAuthentication(),
+                    client.getTokenServerUrl(), client.getRedirectUrl(), client.getClientId(),
+                    authCode));
+        } catch (HttpResponseException e) {
+            throw toTokenRequestException(e);
+        }
+    }
+
+    @Override
+    public TokenResult refreshTokens(OIDCClient client, String refreshToken, String[] scopes,
+                                     String audience) throws IOException {
+
+        try {
+            return new TokenResult(OIDCUtils.refreshTokens(client.getTransport(),
+                    client.getRequestInitializer(), client.getClientAuthentication(),
+                    client.getTokenServerUrl(), scopes, audience, refreshToken));
+        } catch (HttpResponseException e) {
+            throw toTokenRequestException(e);
+        }
+    }
+
+    @Override
+    public Map getUserInfo(OIDCClient client, String idToken) throws IOException {
+        return OIDCUtils.getUserInfo(client.getUserInfoUrl(), idToken);
+    }
+
+    /**
+     * Turns google-http-client's exception for an error response into ours. The details are only
+     * there for a {@link TokenResponseException} whose body could be parsed.
+     */
+    static TokenRequestException toTokenRequestException(HttpResponseException e) {
+        TokenErrorResponse details = e instanceof TokenResponseException
+                ? ((TokenResponseException) e).getDetails() : null;
+
+        TokenRequestException exception = new TokenRequestException(e.getStatusCode(),
+                e.getStatusMessage(), e.getContent(),
+                details != null ? details.getError() : null,
+                details != null ? details.getErrorDescription() : null);
+        exception.initCause(e);
+
+        return exception;
+    }
+
+}
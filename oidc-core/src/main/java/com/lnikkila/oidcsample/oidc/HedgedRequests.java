@@ -0,0 +1,149 @@
+package com.lnikkila.oidcsample.oidc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs requests with hedging: if a request hasn't finished by the time most requests usually have,
+ * a single duplicate is sent and whichever succeeds first wins. This cuts off the long tail of
+ * latencies at the cost of a few extra requests (about 1 - percentile of them).
+ *
+ * Only use this for requests that are safe to send twice. See {@link OIDCClient.Builder#setHedging}
+ * for what that means for token requests.
+ */
+class HedgedRequests {
+
+    // Below this many samples we don't know the distribution well enough to hedge
+    private static final int MIN_SAMPLES = 20;
+    private static final int MAX_SAMPLES = 256;
+
+    // Never hedge sooner than this, even if the server is usually very fast
+    private static final long MIN_DELAY_MILLIS = 10;
+
+    // Shared by all clients. These threads mostly wait on the network.
+    private static final ExecutorService executor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "OIDC hedged request");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final double percentile;
+
+    // A ring buffer of the latest latencies, in milliseconds
+    private final long[] samples = new long[MAX_SAMPLES];
+    private int sampleCount;
+    private int nextSample;
+
+    HedgedRequests(double percentile) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 1.");
+        }
+
+        this.percentile = percentile;
+    }
+
+    <T> T execute(final Callable<T> request) throws IOException {
+        long hedgeDelay = getHedgeDelayMillis();
+
+        Callable<T> timedRequest = new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long start = System.nanoTime();
+                T result = request.call();
+                recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return result;
+            }
+        };
+
+        if (hedgeDelay < 0) {
+            // Still learning what normal looks like
+            try {
+                return timedRequest.call();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+        CompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<T>> futures = new ArrayList<>(2);
+
+        try {
+            futures.add(completionService.submit(timedRequest));
+            Future<T> done = completionService.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+
+            if (done == null) {
+                futures.add(completionService.submit(timedRequest));
+            }
+
+            Exception failure = null;
+
+            // Take the first success. If the first one to finish failed, wait for the other.
+            for (int remaining = futures.size(); remaining > 0; remaining--) {
+                Future<T> future = done != null ? done : completionService.take();
+                done = null;
+
+                try {
+                    return future.get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else {
+                throw new IOException(failure);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a response.");
+        } finally {
+            // The loser's response is simply dropped
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Returns the latency percentile to wait for before hedging, or -1 if there isn't enough data.
+     */
+    synchronized long getHedgeDelayMillis() {
+        if (sampleCount < MIN_SAMPLES) {
+            return -1;
+        }
+
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return Math.max(MIN_DELAY_MILLIS, sorted[Math.max(0, index)]);
+    }
+
+    private synchronized void recordLatency(long millis) {
+        samples[nextSample] = millis;
+        nextSample = (nextSample + 1) % MAX_SAMPLES;
+        sampleCount = Math.min(sampleCount + 1, MAX_SAMPLES);
+    }
+
+}
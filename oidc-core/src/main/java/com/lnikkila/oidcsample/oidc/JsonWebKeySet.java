@@ -0,0 +1,172 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.api.client.util.Base64;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The provider's signing keys from its `jwks_uri`, for checking the signatures of ID Tokens that
+ * didn't come straight from the Token Endpoint, e.g. the front-channel ID Token of the Hybrid
+ * Flow.
+ *
+ * Only RSA keys are used, so RS256, RS384 and RS512 are supported. The keys are fetched on first
+ * use and again when a token names a key that isn't known yet, since that's what a key rotation
+ * looks like. Refetches are limited to one per {@link #MIN_REFETCH_MILLIS}, so tokens with made-up
+ * key IDs can't make us hammer the provider.
+ */
+public final class JsonWebKeySet {
+
+    static final long MIN_REFETCH_MILLIS = 60 * 1000;
+
+    private static final JsonFactory JSON_FACTORY = new GsonFactory();
+
+    private final HttpTransport transport;
+    private final String url;
+
+    // Key ID -> key, guarded by this. Keys without an ID are kept under the empty string.
+    private Map<String, PublicKey> keys;
+    private long fetchedAt;
+
+    public JsonWebKeySet(HttpTransport transport, String url) {
+        this.transport = transport;
+        this.url = url;
+    }
+
+    /**
+     * Whether tokens signed with the given JWS algorithm can be verified.
+     */
+    public static boolean isSupportedAlgorithm(String algorithm) {
+        return signatureAlgorithm(algorithm) != null;
+    }
+
+    /**
+     * Checks the signature of a JWS, like an ID Token, against the provider's keys. Doesn't look at
+     * the claims. Fetches the keys if needed, so it needs to be run on a separate thread.
+     *
+     * @return false if the signature doesn't match, the algorithm isn't supported or there's no
+     *         key with the token's key ID
+     */
+    public boolean verifySignature(String tokenString) throws IOException {
+        JsonWebSignature jws = JsonWebSignature.parse(JSON_FACTORY, tokenString);
+        String signatureAlgorithm = signatureAlgorithm(jws.getHeader().getAlgorithm());
+
+        if (signatureAlgorithm == null) {
+            return false;
+        }
+
+        PublicKey key = getKey(jws.getHeader().getKeyId());
+
+        if (key == null) {
+            return false;
+        }
+
+        try {
+            Signature signature = Signature.getInstance(signatureAlgorithm);
+            signature.initVerify(key);
+            signature.update(jws.getSignedContentBytes());
+            return signature.verify(jws.getSignatureBytes());
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    private synchronized PublicKey getKey(String keyId) throws IOException {
+        String id = keyId != null ? keyId : "";
+
+        if (keys == null || (!keys.containsKey(id)
+                && now() - fetchedAt >= MIN_REFETCH_MILLIS)) {
+            keys = fetch();
+            fetchedAt = now();
+        }
+
+        if (keyId == null && !keys.containsKey(id) && keys.size() == 1) {
+            // A token without a key ID is fine if there's only one key to choose from
+            return keys.values().iterator().next();
+        }
+
+        return keys.get(id);
+    }
+
+    private Map<String, PublicKey> fetch() throws IOException {
+        HttpRequest request = transport.createRequestFactory().buildGetRequest(new GenericUrl(url));
+        request.setParser(new JsonObjectParser(JSON_FACTORY));
+
+        GenericJson document;
+        BlockingCallGuard.Call call = BlockingCallGuard.enter("JsonWebKeySet.fetch");
+
+        try {
+            document = request.execute().parseAs(GenericJson.class);
+        } finally {
+            call.exit();
+        }
+
+        Map<String, PublicKey> fetched = new HashMap<>();
+        Object keyList = document.get("keys");
+
+        if (!(keyList instanceof List)) {
+            throw new IOException("The JWKS document has no keys.");
+        }
+
+        for (Object item : (List) keyList) {
+            if (!(item instanceof Map)) {
+                continue;
+            }
+
+            Map key = (Map) item;
+            Object use = key.get("use");
+
+            if (!"RSA".equals(key.get("kty")) || (use != null && !"sig".equals(use))
+                    || !(key.get("n") instanceof String) || !(key.get("e") instanceof String)) {
+                continue;
+            }
+
+            BigInteger modulus = new BigInteger(1, Base64.decodeBase64((String) key.get("n")));
+            BigInteger exponent = new BigInteger(1, Base64.decodeBase64((String) key.get("e")));
+            Object keyId = key.get("kid");
+
+            try {
+                fetched.put(keyId instanceof String ? (String) keyId : "",
+                        KeyFactory.getInstance("RSA").generatePublic(
+                                new RSAPublicKeySpec(modulus, exponent)));
+            } catch (GeneralSecurityException e) {
+                // Skip keys we can't use
+            }
+        }
+
+        return fetched;
+    }
+
+    private static String signatureAlgorithm(String algorithm) {
+        if ("RS256".equals(algorithm)) {
+            return "SHA256withRSA";
+        } else if ("RS384".equals(algorithm)) {
+            return "SHA384withRSA";
+        } else if ("RS512".equals(algorithm)) {
+            return "SHA512withRSA";
+        } else {
+            return null;
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+}
@@ -0,0 +1,613 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.gson.GsonFactory;
+
+import java.io.IOException;
+import java.security.PrivateKey;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A pre-built client for a single OpenID Connect provider. Where {@link OIDCUtils} takes every bit
+ * of configuration as a parameter, this binds the configuration, the HTTP transport and the
+ * provider's discovery data together once.
+ *
+ * Instances are immutable (apart from hedging statistics) and safe to share between threads. The
+ * authentication URLs don't depend on the request, so they're generated once when the client is
+ * built.
+ *
+ * Use {@link OIDCProviderRegistry} to keep clients for several providers around.
+ */
+public final class OIDCClient {
+
+    private final String issuer;
+    private final String clientId;
+    private final String clientSecret;
+    private final String redirectUrl;
+    private final String[] scopes;
+
+    private final String authorizationServerUrl;
+    private final String tokenServerUrl;
+    private final String userInfoUrl;
+    private final String jwksUrl;
+
+    // Null if the provider doesn't support the Device Authorization Grant
+    private final String deviceAuthorizationUrl;
+
+    private final HttpTransport transport;
+    private final OIDCEngine engine;
+
+    // Null if the JWKS URL isn't known
+    private final JsonWebKeySet keySet;
+    private final Map<String, Object> discoveryDocument;
+
+    // Null for a public client
+    private final HttpExecuteInterceptor clientAuthentication;
+
+    // Null if DPoP is off
+    private final DPoPProofs dpop;
+    private final HttpRequestInitializer requestInitializer;
+
+    private final String codeFlowAuthenticationUrl;
+    private final String implicitFlowAuthenticationUrl;
+    private final String hybridFlowAuthenticationUrl;
+    private final String silentAuthenticationUrl;
+
+    // Null if hedging is off
+    private final HedgedRequests hedgedRequests;
+
+    // Once the provider has been seen to rotate Refresh Tokens, refreshes are no longer hedged
+    private volatile boolean refreshTokenRotation;
+
+    private OIDCClient(Builder builder) {
+        issuer = builder.issuer;
+        clientId = builder.clientId;
+        clientSecret = builder.clientSecret;
+        redirectUrl = builder.redirectUrl;
+        scopes = builder.scopes.clone();
+
+        authorizationServerUrl = builder.authorizationServerUrl;
+        tokenServerUrl = builder.tokenServerUrl;
+        userInfoUrl = builder.userInfoUrl;
+        jwksUrl = builder.jwksUrl;
+        deviceAuthorizationUrl = builder.deviceAuthorizationUrl;
+
+        transport = builder.transport;
+        engine = builder.engine;
+        keySet = jwksUrl != null ? new JsonWebKeySet(transport, jwksUrl) : null;
+
+        if (builder.privateKey != null) {
+            clientAuthentication = new PrivateKeyJwtAuthentication(clientId, tokenServerUrl,
+                    builder.privateKey, builder.keyId, builder.reuseClientAssertions);
+        } else {
+            clientAuthentication = OIDCUtils.clientSecretAuthentication(clientId, clientSecret);
+        }
+
+        dpop = builder.dpop;
+        requestInitializer = dpop != null ? dpop.asRequestInitializer() : null;
+        discoveryDocument = Collections.unmodifiableMap(
+                new LinkedHashMap<>(builder.discoveryDocument));
+
+        codeFlowAuthenticationUrl = OIDCUtils.codeFlowAuthenticationUrl(authorizationServerUrl,
+                clientId, redirectUrl, scopes);
+        implicitFlowAuthenticationUrl = OIDCUtils.implicitFlowAuthenticationUrl(
+                authorizationServerUrl, clientId, redirectUrl, scopes);
+        hybridFlowAuthenticationUrl = OIDCUtils.hybridFlowAuthenticationUrl(
+                authorizationServerUrl, clientId, redirectUrl, scopes);
+        silentAuthenticationUrl = OIDCUtils.codeFlowAuthenticationUrl(authorizationServerUrl,
+                clientId, redirectUrl, scopes, "none");
+
+        hedgedRequests = builder.hedgingPercentile > 0
+                ? new HedgedRequests(builder.hedgingPercentile) : null;
+        refreshTokenRotation = builder.refreshTokenRotation;
+    }
+
+    public String getIssuer() {
+        return issuer;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getRedirectUrl() {
+        return redirectUrl;
+    }
+
+    public String[] getScopes() {
+        return scopes.clone();
+    }
+
+    public String getAuthorizationServerUrl() {
+        return authorizationServerUrl;
+    }
+
+    public String getTokenServerUrl() {
+        return tokenServerUrl;
+    }
+
+    public String getUserInfoUrl() {
+        return userInfoUrl;
+    }
+
+    /**
+     * The URL of the provider's JSON Web Key Set, or null if it's unknown.
+     */
+    public String getJwksUrl() {
+        return jwksUrl;
+    }
+
+    /**
+     * The URL of the provider's Device Authorization Endpoint, or null if it's unknown.
+     */
+    public String getDeviceAuthorizationUrl() {
+        return deviceAuthorizationUrl;
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * The engine that makes the token and UserInfo requests.
+     */
+    public OIDCEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Initialises requests to the Token Endpoint, or null if there's nothing to add.
+     */
+    HttpRequestInitializer getRequestInitializer() {
+        return requestInitializer;
+    }
+
+    /**
+     * Authenticates the client at the Token Endpoint, or null for a public client.
+     */
+    HttpExecuteInterceptor getClientAuthentication() {
+        return clientAuthentication;
+    }
+
+    /**
+     * The Client Secret, or null if the client authenticates some other way or not at all.
+     */
+    String getClientSecret() {
+        return clientAuthentication instanceof PrivateKeyJwtAuthentication ? null : clientSecret;
+    }
+
+    /**
+     * The `private_key_jwt` authentication, or null if the client doesn't use it.
+     */
+    PrivateKeyJwtAuthentication getPrivateKeyJwt() {
+        return clientAuthentication instanceof PrivateKeyJwtAuthentication
+                ? (PrivateKeyJwtAuthentication) clientAuthentication : null;
+    }
+
+    /**
+     * The DPoP proof generator whose key the tokens are bound to, or null if DPoP is off.
+     */
+    public DPoPProofs getDPoP() {
+        return dpop;
+    }
+
+    /**
+     * The provider's discovery document, or an empty map if the client wasn't built from one.
+     */
+    public Map<String, Object> getDiscoveryDocument() {
+        return discoveryDocument;
+    }
+
+    /**
+     * @see OIDCUtils#codeFlowAuthenticationUrl(String, String, String, String[])
+     */
+    public String getCodeFlowAuthenticationUrl() {
+        return codeFlowAuthenticationUrl;
+    }
+
+    /**
+     * @see OIDCUtils#implicitFlowAuthenticationUrl(String, String, String, String[])
+     */
+    public String getImplicitFlowAuthenticationUrl() {
+        return implicitFlowAuthenticationUrl;
+    }
+
+    /**
+     * @see OIDCUtils#hybridFlowAuthenticationUrl(String, String, String, String[])
+     */
+    public String getHybridFlowAuthenticationUrl() {
+        return hybridFlowAuthenticationUrl;
+    }
+
+    /**
+     * A Code Flow URL with `prompt=none`, which either redirects back with a code right away,
+     * using the user's existing session with the provider, or with an error if the user would
+     * have to interact with the provider.
+     *
+     * @see OIDCUtils#isInteractionRequired(String)
+     */
+    public String getSilentAuthenticationUrl() {
+        return silentAuthenticationUrl;
+    }
+
+    /**
+     * Exchanges an Authorization Code for a set of tokens. Needs to be run on a separate thread.
+     *
+     * This is never hedged: codes can only be used once, and providers should revoke the tokens
+     * already issued for a code that's used twice.
+     *
+     * @throws TokenRequestException if the Token Endpoint returned an error
+     * @see OIDCUtils#requestTokens(String, String, String, String, String)
+     */
+    public TokenResult requestTokens(String authCode) throws IOException {
+        return engine.requestTokens(this, authCode);
+    }
+
+    /**
+     * Exchanges a Refresh Token for a new set of tokens. Needs to be run on a separate thread.
+     *
+     * If hedging is on and the provider doesn't rotate Refresh Tokens, a slow request is hedged
+     * with a duplicate one, see {@link Builder#setHedging(double)}.
+     *
+     * @throws TokenRequestException if the Token Endpoint returned an error, e.g. `invalid_grant`
+     *                               if the Refresh Token has expired
+     * @see OIDCUtils#refreshTokens(String, String, String, String[], String)
+     */
+    public TokenResult refreshTokens(String refreshToken) throws IOException {
+        return refreshTokens(refreshToken, scopes, null);
+    }
+
+    /**
+     * Exchanges a Refresh Token for tokens that are down-scoped to the given scopes and audience.
+     * Hedged like {@link #refreshTokens(String)}.
+     *
+     * @see OIDCUtils#refreshTokensForResource
+     */
+    public TokenResult refreshTokens(final String refreshToken, final String[] scopes,
+                                     final String audience) throws IOException {
+
+        if (hedgedRequests == null || refreshTokenRotation) {
+            return engine.refreshTokens(this, refreshToken, scopes, audience);
+        }
+
+        TokenResult response;
+
+        // The requests themselves run on other threads, so check the calling thread here
+        BlockingCallGuard.Call call = BlockingCallGuard.enter("OIDCClient.refreshTokens");
+
+        try {
+            response = hedgedRequests.execute(new Callable<TokenResult>() {
+                @Override
+                public TokenResult call() throws IOException {
+                    return engine.refreshTokens(OIDCClient.this, refreshToken, scopes, audience);
+                }
+            });
+        } finally {
+            call.exit();
+        }
+
+        String newRefreshToken = response.getRefreshToken();
+
+        if (newRefreshToken != null && !newRefreshToken.equals(refreshToken)) {
+            // The provider rotates Refresh Tokens after all. This response won, so the token in it
+            // is the one to keep, but a later hedge could invalidate a winner, so stop hedging.
+            refreshTokenRotation = true;
+        }
+
+        return response;
+    }
+
+    /**
+     * Whether refreshes are currently hedged.
+     */
+    public boolean isHedgingRefreshes() {
+        return hedgedRequests != null && !refreshTokenRotation;
+    }
+
+    /**
+     * Starts a Device Authorization Grant. Needs to be run on a separate thread.
+     *
+     * @see OIDCUtils#requestDeviceAuthorization
+     * @see DevicePoller
+     */
+    public DeviceAuthorizationResponse requestDeviceAuthorization() throws IOException {
+        if (deviceAuthorizationUrl == null) {
+            throw new IllegalStateException("The device authorization URL isn't known.");
+        }
+
+        return OIDCUtils.requestDeviceAuthorization(transport, clientAuthentication,
+                deviceAuthorizationUrl, clientId, scopes);
+    }
+
+    /**
+     * Polls the Token Endpoint once for the tokens of a device authorization. Needs to be run on a
+     * separate thread.
+     *
+     * @throws TokenRequestException if the Token Endpoint returned an error, e.g.
+     *                               `authorization_pending`
+     * @see OIDCUtils#pollDeviceToken
+     */
+    public TokenResult pollDeviceToken(String deviceCode) throws IOException {
+        try {
+            return new TokenResult(OIDCUtils.pollDeviceToken(transport, requestInitializer,
+                    clientAuthentication, tokenServerUrl, clientId, deviceCode));
+        } catch (HttpResponseException e) {
+            throw GoogleClientEngine.toTokenRequestException(e);
+        }
+    }
+
+    /**
+     * @see OIDCUtils#isValidIdToken(String, String)
+     */
+    public boolean isValidIdToken(String idToken) throws IOException {
+        return OIDCUtils.isValidIdToken(clientId, idToken);
+    }
+
+    /**
+     * Whether {@link #isValidSignedIdToken(String)} can check the given ID Token: the JWKS URL is
+     * known and the token is signed with a supported algorithm.
+     */
+    public boolean canVerifySignature(String idToken) throws IOException {
+        return keySet != null && JsonWebKeySet.isSupportedAlgorithm(
+                IdToken.parse(new GsonFactory(), idToken).getHeader().getAlgorithm());
+    }
+
+    /**
+     * Verifies an ID Token that didn't come straight from the Token Endpoint: its signature
+     * against the provider's keys, and its issuer, audience and expiry. Always false if the JWKS
+     * URL isn't known. May fetch the keys, so it needs to be run on a separate thread.
+     *
+     * @see JsonWebKeySet
+     */
+    public boolean isValidSignedIdToken(String idToken) throws IOException {
+        return keySet != null && keySet.verifySignature(idToken)
+                && OIDCUtils.isValidIdToken(clientId, issuer, idToken);
+    }
+
+    /**
+     * @see OIDCUtils#isValidCodeHash(String, String)
+     */
+    public boolean isValidCodeHash(String idToken, String authCode) throws IOException {
+        return OIDCUtils.isValidCodeHash(idToken, authCode);
+    }
+
+    /**
+     * Gets user information from the UserInfo endpoint. Needs to be run on a separate thread.
+     */
+    public Map getUserInfo(String idToken) throws IOException {
+        return engine.getUserInfo(this, idToken);
+    }
+
+    /**
+     * Builds an {@link OIDCClient}. Endpoint URLs can either be set one by one or fetched from the
+     * provider's discovery document with {@link #discover()}; explicitly set URLs take precedence.
+     */
+    public static class Builder {
+
+        private String issuer;
+        private final String clientId;
+        private String clientSecret;
+        private PrivateKey privateKey;
+        private String keyId;
+        private boolean reuseClientAssertions;
+        private String redirectUrl;
+        private String[] scopes = {"openid"};
+
+        private String authorizationServerUrl;
+        private String tokenServerUrl;
+        private String userInfoUrl;
+        private String jwksUrl;
+        private String deviceAuthorizationUrl;
+
+        private HttpTransport transport = OIDCUtils.getHttpTransport();
+        private OIDCEngine engine = GoogleClientEngine.INSTANCE;
+        private Map<String, Object> discoveryDocument = Collections.emptyMap();
+
+        private DPoPProofs dpop;
+
+        private double hedgingPercentile;
+        private boolean refreshTokenRotation = true;
+
+        public Builder(String clientId) {
+            this.clientId = clientId;
+        }
+
+        public Builder setIssuer(String issuer) {
+            this.issuer = issuer;
+            return this;
+        }
+
+        public Builder setClientSecret(String clientSecret) {
+            this.clientSecret = clientSecret;
+            return this;
+        }
+
+        /**
+         * Authenticates the client with a JWT signed with the given key (`private_key_jwt`)
+         * instead of the Client Secret.
+         *
+         * @param keyId the `kid` of the registered public key, or null
+         * @param reuseAssertions whether one assertion may be sent with several requests while
+         *                        it's valid, see {@link PrivateKeyJwtAuthentication}
+         */
+        public Builder setPrivateKeyJwt(PrivateKey privateKey, String keyId,
+                                        boolean reuseAssertions) {
+            this.privateKey = privateKey;
+            this.keyId = keyId;
+            this.reuseClientAssertions = reuseAssertions;
+            return this;
+        }
+
+        public Builder setRedirectUrl(String redirectUrl) {
+            this.redirectUrl = redirectUrl;
+            return this;
+        }
+
+        public Builder setScopes(String... scopes) {
+            this.scopes = scopes;
+            return this;
+        }
+
+        public Builder setAuthorizationServerUrl(String authorizationServerUrl) {
+            this.authorizationServerUrl = authorizationServerUrl;
+            return this;
+        }
+
+        public Builder setTokenServerUrl(String tokenServerUrl) {
+            this.tokenServerUrl = tokenServerUrl;
+            return this;
+        }
+
+        public Builder setUserInfoUrl(String userInfoUrl) {
+            this.userInfoUrl = userInfoUrl;
+            return this;
+        }
+
+        public Builder setJwksUrl(String jwksUrl) {
+            this.jwksUrl = jwksUrl;
+            return this;
+        }
+
+        public Builder setDeviceAuthorizationUrl(String deviceAuthorizationUrl) {
+            this.deviceAuthorizationUrl = deviceAuthorizationUrl;
+            return this;
+        }
+
+        /**
+         * The transport this client uses for all its requests. Defaults to the global transport of
+         * {@link OIDCUtils} at the time the builder was created.
+         */
+        public Builder setTransport(HttpTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * The engine for the token and UserInfo requests. Defaults to
+         * {@link GoogleClientEngine}, which uses the transport above; other engines may not.
+         */
+        public Builder setEngine(OIDCEngine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        /**
+         * Binds the tokens to the key of the given proof generator with DPoP. Every request to the
+         * Token Endpoint then carries a proof, and Access Tokens have to be sent with one as well,
+         * see {@link OIDCUtils#prepareApiRequest(com.github.kevinsawicki.http.HttpRequest, String,
+         * DPoPProofs)}.
+         */
+        public Builder setDPoP(DPoPProofs dpop) {
+            this.dpop = dpop;
+            return this;
+        }
+
+        /**
+         * Turns on hedging for Refresh Token requests: when a request hasn't finished within the
+         * given percentile of recent latencies, e.g. 0.95, one duplicate request is sent and the
+         * first successful response wins. Off by default.
+         *
+         * Hedging is only safe if the provider doesn't rotate Refresh Tokens, since the losing
+         * request could otherwise invalidate the token the winner returned. It's skipped unless
+         * {@link #setRefreshTokenRotation(boolean)} says the provider doesn't rotate them, and it
+         * turns itself off if a response does contain a new Refresh Token after all.
+         *
+         * Authorization Code exchanges are never hedged.
+         */
+        public Builder setHedging(double percentile) {
+            if (percentile <= 0 || percentile >= 1) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 1.");
+            }
+
+            this.hedgingPercentile = percentile;
+            return this;
+        }
+
+        /**
+         * Whether the provider issues a new Refresh Token with every refresh. Defaults to true,
+         * which is the safe assumption.
+         */
+        public Builder setRefreshTokenRotation(boolean refreshTokenRotation) {
+            this.refreshTokenRotation = refreshTokenRotation;
+            return this;
+        }
+
+        /**
+         * Fetches the discovery document from `{issuer}/.well-known/openid-configuration` and fills
+         * in the endpoint URLs that haven't been set yet.
+         *
+         * Needs to be run on a separate thread.
+         *
+         * @see <a href="http://openid.net/specs/openid-connect-discovery-1_0.html">Discovery</a>
+         */
+        public Builder discover() throws IOException {
+            if (issuer == null) {
+                throw new IllegalStateException("The issuer is needed for discovery.");
+            }
+
+            String base = issuer.endsWith("/") ? issuer.substring(0, issuer.length() - 1) : issuer;
+            HttpRequest request = transport.createRequestFactory().buildGetRequest(
+                    new GenericUrl(base + "/.well-known/openid-configuration"));
+            request.setParser(new JsonObjectParser(new GsonFactory()));
+
+            GenericJson document;
+            BlockingCallGuard.Call call = BlockingCallGuard.enter("OIDCClient.Builder.discover");
+
+            try {
+                document = request.execute().parseAs(GenericJson.class);
+            } finally {
+                call.exit();
+            }
+
+            // The spec requires the issuer in the document to match exactly
+            if (!issuer.equals(document.get("issuer"))) {
+                throw new IOException("Discovery document is for a different issuer.");
+            }
+
+            authorizationServerUrl = firstNonNull(authorizationServerUrl,
+                    document.get("authorization_endpoint"));
+            tokenServerUrl = firstNonNull(tokenServerUrl, document.get("token_endpoint"));
+            userInfoUrl = firstNonNull(userInfoUrl, document.get("userinfo_endpoint"));
+            jwksUrl = firstNonNull(jwksUrl, document.get("jwks_uri"));
+            deviceAuthorizationUrl = firstNonNull(deviceAuthorizationUrl,
+                    document.get("device_authorization_endpoint"));
+            discoveryDocument = document;
+
+            return this;
+        }
+
+        public OIDCClient build() {
+            if (clientId == null || redirectUrl == null || authorizationServerUrl == null
+                    || tokenServerUrl == null) {
+                throw new IllegalStateException("Client ID, redirect URL, authorization server "
+                        + "URL and token server URL are required.");
+            }
+            if (issuer == null) {
+                // Fall back to the origin of the authorization server, which is what most
+                // providers use anyway. This is only used for looking up clients.
+                GenericUrl url = new GenericUrl(authorizationServerUrl);
+                issuer = url.getScheme() + "://" + url.getHost()
+                        + (url.getPort() == -1 ? "" : ":" + url.getPort());
+            }
+
+            return new OIDCClient(this);
+        }
+
+        private static String firstNonNull(String value, Object fallback) {
+            return value != null ? value : (String) fallback;
+        }
+
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.lnikkila.oidcsample.oidc;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Makes the requests an {@link OIDCClient} sends most often: the Authorization Code exchange, the
+ * Refresh Token request and the UserInfo request. Set one with
+ * {@link OIDCClient.Builder#setEngine(OIDCEngine)}.
+ *
+ * {@link GoogleClientEngine} goes through google-oauth-client and its HTTP stack, like everything
+ * else in {@link OIDCUtils}. {@link URLConnectionEngine} makes the same requests with a plain
+ * HttpURLConnection and a streaming JSON reader, which loads fewer classes. Both return a
+ * {@link TokenResult} and throw a {@link TokenRequestException} for error responses from the
+ * Token Endpoint, so neither google-oauth-client's response nor its exception is part of this
+ * interface.
+ *
+ * The methods block, so they need to be run on a separate thread.
+ */
+public interface OIDCEngine {
+
+    /**
+     * @see OIDCClient#requestTokens(String)
+     */
+    TokenResult requestTokens(OIDCClient client, String authCode) throws IOException;
+
+    /**
+     * @param audience the URI of the resource server, or null for the provider's default
+     * @see OIDCClient#refreshTokens(String, String[], String)
+     */
+    TokenResult refreshTokens(OIDCClient client, String refreshToken, String[] scopes,
+                              String audience) throws IOException;
+
+    /**
+     * @see OIDCClient#getUserInfo(String)
+     */
+    Map getUserInfo(OIDCClient client, String idToken) throws IOException;
+
+}
@@ -0,0 +1,130 @@
+package com.lnikkila.oidcsample.oidc;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps one {@link OIDCClient} per issuer. Providers are registered with a factory and the client
+ * is only built the first time it's looked up, so registering a provider that needs discovery
+ * doesn't cost anything until it's actually used.
+ *
+ * Lookups are a single hash map access once the client exists.
+ */
+public class OIDCProviderRegistry {
+
+    /**
+     * Builds the client for a provider. Called at most once per successful build; if it throws,
+     * the next lookup will try again.
+     */
+    public interface ClientFactory {
+        OIDCClient create() throws IOException;
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile String defaultIssuer;
+
+    /**
+     * Registers a provider. The first provider registered becomes the default one.
+     */
+    public void register(String issuer, ClientFactory factory) {
+        if (entries.putIfAbsent(issuer, new Entry(factory)) != null) {
+            throw new IllegalArgumentException("Provider already registered: " + issuer);
+        }
+
+        synchronized (this) {
+            if (defaultIssuer == null) {
+                defaultIssuer = issuer;
+            }
+        }
+    }
+
+    /**
+     * Registers a client that has already been built.
+     */
+    public void register(final OIDCClient client) {
+        register(client.getIssuer(), new ClientFactory() {
+            @Override
+            public OIDCClient create() {
+                return client;
+            }
+        });
+    }
+
+    public void setDefaultIssuer(String issuer) {
+        if (!entries.containsKey(issuer)) {
+            throw new IllegalArgumentException("Unknown provider: " + issuer);
+        }
+
+        defaultIssuer = issuer;
+    }
+
+    public String getDefaultIssuer() {
+        return defaultIssuer;
+    }
+
+    public boolean contains(String issuer) {
+        return issuer != null && entries.containsKey(issuer);
+    }
+
+    public Set<String> getIssuers() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * Returns the client for the given issuer, building it if this is the first lookup.
+     *
+     * Building may need network access, so the first call for a provider should be made on a
+     * separate thread.
+     */
+    public OIDCClient get(String issuer) throws IOException {
+        Entry entry = entries.get(issuer);
+
+        if (entry == null) {
+            throw new IllegalArgumentException("Unknown provider: " + issuer);
+        }
+
+        return entry.get();
+    }
+
+    public OIDCClient getDefault() throws IOException {
+        String issuer = defaultIssuer;
+
+        if (issuer == null) {
+            throw new IllegalStateException("No providers have been registered.");
+        }
+
+        return get(issuer);
+    }
+
+    private static class Entry {
+
+        private final ClientFactory factory;
+        private volatile OIDCClient client;
+
+        Entry(ClientFactory factory) {
+            this.factory = factory;
+        }
+
+        OIDCClient get() throws IOException {
+            OIDCClient result = client;
+
+            if (result == null) {
+                synchronized (this) {
+                    result = client;
+
+                    if (result == null) {
+                        result = factory.create();
+                        client = result;
+                    }
+                }
+            }
+
+            return result;
+        }
+
+    }
+
+}
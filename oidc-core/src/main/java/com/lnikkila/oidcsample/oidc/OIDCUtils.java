@@ -0,0 +1,749 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.github.kevinsawicki.http.HttpRequest;
+import com.google.api.client.auth.oauth2.AuthorizationCodeFlow;
+import com.google.api.client.auth.oauth2.AuthorizationCodeRequestUrl;
+import com.google.api.client.auth.oauth2.AuthorizationCodeTokenRequest;
+import com.google.api.client.auth.oauth2.AuthorizationRequestUrl;
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.RefreshTokenRequest;
+import com.google.api.client.auth.oauth2.TokenRequest;
+import com.google.api.client.auth.oauth2.TokenResponseException;
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.google.api.client.auth.openidconnect.IdTokenResponse;
+import com.google.api.client.auth.openidconnect.IdTokenVerifier;
+import com.google.api.client.http.BasicAuthentication;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.UrlEncodedContent;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.Base64;
+import com.google.api.client.util.GenericData;
+import com.google.api.client.util.Joiner;
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A layer of syntactic sugar around the google-oauth-java-client library to simplify using OpenID
+ * Access on Android.
+ *
+ * This class doesn't depend on the Android framework, so it can be run and tested on a plain JVM.
+ * The HTTP transport used for talking to the Token Endpoint is pluggable, see
+ * {@link #setHttpTransport(HttpTransport)}.
+ *
+ * Currently this helper class is fairly limited. It's suitable for our use case and pretty much
+ * nothing else. Pull requests are appreciated!
+ *
+ * @author Leo Nikkilä
+ * @author Camilo Montes
+ */
+public class OIDCUtils {
+
+    // On every Android version we support, AndroidHttp.newCompatibleTransport() returns a
+    // NetHttpTransport anyway, so that's a sensible default on both Android and the JVM.
+    private static volatile HttpTransport httpTransport = new NetHttpTransport();
+
+    public static final String DEVICE_CODE_GRANT_TYPE =
+            "urn:ietf:params:oauth:grant-type:device_code";
+
+    // TokenResponseException.from() fails with a NullPointerException on an error response with a
+    // JSON content type but no body. That's what the JDK's HttpURLConnection gives for a 401 to a
+    // streamed request, e.g. for invalid_client, since it drops the body. Throw the status instead.
+    private static final HttpResponseInterceptor MISSING_ERROR_BODY =
+            new HttpResponseInterceptor() {
+                @Override
+                public void interceptResponse(HttpResponse response) throws IOException {
+                    if (!response.isSuccessStatusCode() && response.getContent() == null) {
+                        throw new HttpResponseException(response);
+                    }
+                }
+            };
+
+    /**
+     * Replaces the HTTP transport used for all requests to the Token Endpoint, e.g. with a mock
+     * transport in tests or with AndroidHttp.newCompatibleTransport() on Android.
+     */
+    public static void setHttpTransport(HttpTransport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("HTTP transport cannot be null.");
+        }
+
+        httpTransport = transport;
+    }
+
+    /**
+     * Returns the HTTP transport that is currently used for requests to the Token Endpoint.
+     */
+    public static HttpTransport getHttpTransport() {
+        return httpTransport;
+    }
+
+    /**
+     * Generates an URL to the Authorization Endpoint. The user can then authenticate themselves,
+     * authorise this app and obtain an Authorization Token.
+     * @deprecated use {@link OIDCUtils#codeFlowAuthenticationUrl} instead.
+     */
+    @SuppressWarnings("unused")
+    @Deprecated
+    public static String newAuthorizationUrl(String authorizationServerUrl, String tokenServerUrl,
+                                             String redirectUrl, String clientId,
+                                             String clientSecret, String[] scopes) {
+
+        List<String> scopesList = Arrays.asList(scopes);
+
+        AuthorizationCodeFlow flow = new AuthorizationCodeFlow.Builder(
+                BearerToken.authorizationHeaderAccessMethod(),
+                getHttpTransport(),
+                new GsonFactory(),
+                new GenericUrl(tokenServerUrl),
+                new BasicAuthentication(clientId, clientSecret),
+                clientId,
+                authorizationServerUrl
+        ).build();
+
+        // Generate the URL that we'll modify a bit to comply with the spec
+        AuthorizationCodeRequestUrl authUrl = flow.newAuthorizationUrl();
+
+        // The flow builder sets `response_type` and `client_id` parameters. The OpenID spec
+        // requires the `scope` and `redirect_uri` parameters as well.
+        authUrl.setScopes(scopesList);
+        authUrl.setRedirectUri(redirectUrl);
+
+        // If the list of scopes includes the special `offline_access` scope that enables issuing
+        // of Refresh Tokens, we need to ask for consent by including this parameter.
+        if (scopesList.contains("offline_access")) {
+            authUrl.set("prompt", "consent");
+        }
+
+        // Tell the server to ask for login details again. This ensures that in case of multiple
+        // accounts, the user won't accidentally authorise the wrong one.
+        authUrl.set("prompt", "login");
+
+        // An optional request parameter that asks the server to provide a touch-enabled interface.
+        // Who knows, maybe the server is nice enough to make some changes.
+        authUrl.set("display", "touch");
+
+        return authUrl.toString();
+    }
+
+    /**
+     * Generates an Authentication Request URL to the Authorization Endpoint to start an Implicit Flow.
+     * When using the Implicit Flow, all tokens are returned from the Authorization Endpoint; the
+     * Token Endpoint is not used so it allows to get all tokens on one trip. The downside is that
+     * it doesn't support refresh tokens.
+     * @see <a href="http://openid.net/specs/openid-connect-core-1_0.html#ImplicitFlowAuth">Implicit Flow</a>
+     */
+    public static String implicitFlowAuthenticationUrl(String authorizationServerUrl, String clientId,
+                                                       String redirectUrl, String[] scopes) {
+
+        return implicitFlowAuthenticationUrl(authorizationServerUrl, clientId, redirectUrl, scopes,
+                null);
+    }
+
+    /**
+     * Same as {@link #implicitFlowAuthenticationUrl(String, String, String, String[])}, but with the
+     * given `prompt` parameter instead of the default one. Pass "none" for silent authentication.
+     */
+    public static String implicitFlowAuthenticationUrl(String authorizationServerUrl, String clientId,
+                                                       String redirectUrl, String[] scopes,
+                                                       String prompt) {
+
+        //TODO: see what the following statement implies :
+        // "While OAuth 2.0 also defines the token Response Type value for the Implicit Flow,
+        // OpenID Connect does not use this Response Type, since no ID Token would be returned"
+        // from http://openid.net/specs/openid-connect-core-1_0.html#Authentication
+        String[] responsesTypes = {"id_token", "token"};
+        List<String> scopesList = Arrays.asList(scopes);
+        List<String> responsesList = Arrays.asList(responsesTypes);
+
+        //REQUIRED  OIDC request params
+        AuthorizationRequestUrl request = new AuthorizationRequestUrl(authorizationServerUrl, clientId,
+                responsesList)
+                .setRedirectUri(redirectUrl)
+                .setScopes(scopesList);
+
+        //OPTIONAL OIDC request params
+        if (prompt != null) {
+            request.set("prompt", prompt);
+        } else if (scopesList.contains("offline_access")) {
+            // If the list of scopes includes the special `offline_access` scope that enables issuing
+            // of Refresh Tokens, we need to ask for consent by including this parameter.
+            request.set("prompt", "consent");
+        } else {
+            // Tell the server to ask for login details again. This ensures that in case of multiple
+            // accounts, the user won't accidentally authorise the wrong one.
+            request.set("prompt", "login");
+        }
+
+        // An optional request parameter that asks the server to provide a touch-enabled interface.
+        // Who knows, maybe the server is nice enough to make some changes.
+        request.set("display", "touch");
+
+        return request.build();
+    }
+
+    /**
+     * Generates an Authentication Request URL to the Authorization Endpoint to start an Hybrid Flow.
+     * When using the Hybrid Flow, some tokens are returned from the Authorization Endpoint and
+     * others are returned from the Token Endpoint.
+     * @see <a href="http://openid.net/specs/openid-connect-core-1_0.html#HybridFlowAuth">Hybrid Flow</a>
+     */
+    public static String hybridFlowAuthenticationUrl(String authorizationServerUrl, String clientId,
+                                                     String redirectUrl, String[] scopes) {
+
+        return hybridFlowAuthenticationUrl(authorizationServerUrl, clientId, redirectUrl, scopes,
+                null);
+    }
+
+    /**
+     * Same as {@link #hybridFlowAuthenticationUrl(String, String, String, String[])}, but with the
+     * given `prompt` parameter instead of the default one. Pass "none" for silent authentication.
+     */
+    public static String hybridFlowAuthenticationUrl(String authorizationServerUrl, String clientId,
+                                                     String redirectUrl, String[] scopes,
+                                                     String prompt) {
+
+        // The response type "code" is the only mandatory response type on hybrid flow, it must be
+        // coupled with other response types to form one of the following values : "code id_token",
+        // "code token", or "code id_token token".
+        // For our needs "token" is not defined here because we want an access_token that has made
+        // a client authentication. That access_token will be retrieve later using the TokenEndpoint
+        // (see #requestTokens).
+        String[] responsesTypes = {"code", "id_token"};
+        List<String> scopesList = Arrays.asList(scopes);
+        List<String> responsesList = Arrays.asList(responsesTypes);
+
+        //REQUIRED  OIDC request params
+        AuthorizationRequestUrl request = new AuthorizationRequestUrl(authorizationServerUrl, clientId, responsesList)
+                .setRedirectUri(redirectUrl)
+                .setScopes(scopesList);
+
+        //OPTIONAL OIDC request params
+        if (prompt != null) {
+            request.set("prompt", prompt);
+        } else if (scopesList.contains("offline_access")) {
+            // If the list of scopes includes the special `offline_access` scope that enables issuing
+            // of Refresh Tokens, we need to ask for consent by including this parameter.
+            request.set("prompt", "consent");
+        } else {
+            // Tell the server to ask for login details again. This ensures that in case of multiple
+            // accounts, the user won't accidentally authorise the wrong one.
+            request.set("prompt", "login");
+        }
+
+        // An optional request parameter that asks the server to provide a touch-enabled interface.
+        // Who knows, maybe the server is nice enough to make some changes.
+        request.set("display", "touch");
+
+        return request.build();
+    }
+
+    /**
+     * Generates an Authentication Request URL to the Authorization Endpoint to start an Code Flow.
+     * When using the Code Flow, all tokens are returned from the Token Endpoint.
+     * The Authorization Server can authenticate the Client before exchanging the Authorization Code
+     * for an Access Token.
+     * @see <a href="http://openid.net/specs/openid-connect-core-1_0.html#CodeFlowAuth">Code Flow</a>
+     */
+    public static String codeFlowAuthenticationUrl(String authorizationServerUrl, String clientId,
+                                                   String redirectUrl, String[] scopes) {
+
+        return codeFlowAuthenticationUrl(authorizationServerUrl, clientId, redirectUrl, scopes,
+                null);
+    }
+
+    /**
+     * Same as {@link #codeFlowAuthenticationUrl(String, String, String, String[])}, but with the
+     * given `prompt` parameter instead of the default one. Pass "none" for silent authentication.
+     */
+    public static String codeFlowAuthenticationUrl(String authorizationServerUrl, String clientId,
+                                                   String redirectUrl, String[] scopes,
+                                                   String prompt) {
+
+        List<String> scopesList = Arrays.asList(scopes);
+
+        AuthorizationCodeRequestUrl request = new AuthorizationCodeRequestUrl(authorizationServerUrl, clientId)
+                .setRedirectUri(redirectUrl)
+                .setScopes(scopesList);
+
+        //OPTIONAL OIDC request params
+        if (prompt != null) {
+            request.set("prompt", prompt);
+        } else if (scopesList.contains("offline_access")) {
+            // If the list of scopes includes the special `offline_access` scope that enables issuing
+            // of Refresh Tokens, we need to ask for consent by including this parameter.
+            request.set("prompt", "consent");
+        } else {
+            // Tell the server to ask for login details again. This ensures that in case of multiple
+            // accounts, the user won't accidentally authorise the wrong one.
+            request.set("prompt", "login");
+        }
+
+        // An optional request parameter that asks the server to provide a touch-enabled interface.
+        // Who knows, maybe the server is nice enough to make some changes.
+        request.set("display", "touch");
+
+        return request.build();
+    }
+
+    /**
+     * Exchanges an Authorization Token for an ID Token, Access Token and Refresh Token.
+     *
+     * Generally ID tokens are valid for a longer period of time than access tokens, since they're
+     * meant for authentication. The way I (maybe) understand it, access tokens should be used for
+     * short-term access to protected resources.
+     *
+     * Needs to be run on a separate thread.
+     * @deprecated use {@link OIDCUtils#refreshTokens(String, String, String, String[], String)}
+     * instead.
+     */
+    @SuppressWarnings("unused")
+    @Deprecated
+    public static IdTokenResponse requestTokens(String authorizationServerUrl,
+                                                String tokenServerUrl, String redirectUrl,
+                                                String clientId, String clientSecret,
+                                                String authToken) throws IOException {
+
+        AuthorizationCodeFlow flow = new AuthorizationCodeFlow.Builder(
+                BearerToken.authorizationHeaderAccessMethod(),
+                getHttpTransport(),
+                new GsonFactory(),
+                new GenericUrl(tokenServerUrl),
+                new BasicAuthentication(clientId, clientSecret),
+                clientId,
+                authorizationServerUrl
+        ).build();
+
+        TokenRequest request = flow.newTokenRequest(authToken);
+
+        // Again, we need to set the `redirect_uri` parameter. This time a dedicated method
+        // setRedirectUri() doesn't exist for some reason.
+        request.set("redirect_uri", redirectUrl);
+
+        IdTokenResponse response = execute("OIDCUtils.requestTokens", request);
+        String idToken = response.getIdToken();
+
+        if (isValidIdToken(clientId, idToken)) {
+            return response;
+        } else {
+            throw new IOException("Invalid ID token returned.");
+        }
+    }
+
+    /**
+     * Exchanges an Authorization Code for an Access Token, Refresh Token and (optional) ID Token.
+     * This provides the benefit of not exposing any tokens to the User Agent and possibly other
+     * malicious applications with access to the User Agent.
+     * The Authorization Server can also authenticate the Client before exchanging the Authorization
+     * Code for an Access Token.
+     *
+     * Needs to be run on a separate thread.
+     *
+     * @throws IOException
+     */
+    public static IdTokenResponse requestTokens(String tokenServerUrl, String redirectUrl,
+                                                String clientId, String clientSecret,
+                                                String authCode) throws IOException {
+
+        return requestTokens(getHttpTransport(), tokenServerUrl, redirectUrl, clientId,
+                clientSecret, authCode);
+    }
+
+    /**
+     * Same as {@link #requestTokens(String, String, String, String, String)}, but uses the given
+     * HTTP transport instead of the global one.
+     */
+    public static IdTokenResponse requestTokens(HttpTransport transport, String tokenServerUrl,
+                                                String redirectUrl, String clientId,
+                                                String clientSecret, String authCode)
+                                                throws IOException {
+
+        return requestTokens(transport, null, clientSecretAuthentication(clientId, clientSecret),
+                tokenServerUrl, redirectUrl, clientId, authCode);
+    }
+
+    /**
+     * Same as {@link #requestTokens(HttpTransport, String, String, String, String, String)}, but
+     * lets the request be customised, e.g. with a DPoP proof, and the client authenticate with
+     * something else than a Client Secret, e.g. {@link PrivateKeyJwtAuthentication}.
+     *
+     * @param requestInitializer initialises the HTTP request to the Token Endpoint, may be null
+     * @param clientAuthentication authenticates the client, or null for a public client
+     */
+    public static IdTokenResponse requestTokens(HttpTransport transport,
+                                                HttpRequestInitializer requestInitializer,
+                                                HttpExecuteInterceptor clientAuthentication,
+                                                String tokenServerUrl, String redirectUrl,
+                                                String clientId, String authCode)
+                                                throws IOException {
+
+        AuthorizationCodeTokenRequest request = new AuthorizationCodeTokenRequest(
+                transport,
+                new GsonFactory(),
+                new GenericUrl(tokenServerUrl),
+                authCode
+        );
+        request.set("redirect_uri", redirectUrl);
+        request.setRequestInitializer(requestInitializer);
+        request.setClientAuthentication(clientAuthentication);
+
+        IdTokenResponse response = execute("OIDCUtils.requestTokens", request);
+        String idToken = response.getIdToken();
+
+        if (isValidIdToken(clientId, idToken)) {
+            return response;
+        } else {
+            throw new IOException("Invalid ID token returned.");
+        }
+    }
+
+    /**
+     * Exchanges a Refresh Token for a new set of tokens.
+     *
+     * Note that the Token Server may require you to use the `offline_access` scope to receive
+     * Refresh Tokens.
+     */
+    public static IdTokenResponse refreshTokens(String tokenServerUrl, String clientId,
+                                                String clientSecret, String[] scopes,
+                                                String refreshToken) throws IOException {
+
+        return refreshTokens(getHttpTransport(), tokenServerUrl, clientId, clientSecret, scopes,
+                refreshToken);
+    }
+
+    /**
+     * Same as {@link #refreshTokens(String, String, String, String[], String)}, but uses the given
+     * HTTP transport instead of the global one.
+     */
+    public static IdTokenResponse refreshTokens(HttpTransport transport, String tokenServerUrl,
+                                                String clientId, String clientSecret,
+                                                String[] scopes, String refreshToken)
+                                                throws IOException {
+
+        return refreshTokensForResource(transport, tokenServerUrl, clientId, clientSecret, scopes,
+                null, refreshToken);
+    }
+
+    /**
+     * Exchanges a Refresh Token for tokens that are only valid for the given scopes and audience.
+     * The scopes have to be a subset of the ones the Refresh Token was issued for.
+     *
+     * The audience is sent as the `resource` parameter of RFC 8707 (Resource Indicators), which
+     * is what tells the Token Server which resource server the Access Token is meant for.
+     *
+     * It has a name of its own since the overload below has as many parameters, so a call with a
+     * literal null would be ambiguous.
+     *
+     * @param audience the URI of the resource server, or null for the provider's default
+     */
+    public static IdTokenResponse refreshTokensForResource(HttpTransport transport,
+                                                           String tokenServerUrl, String clientId,
+                                                           String clientSecret, String[] scopes,
+                                                           String audience, String refreshToken)
+                                                           throws IOException {
+
+        return refreshTokens(transport, null, clientSecretAuthentication(clientId, clientSecret),
+                tokenServerUrl, scopes, audience, refreshToken);
+    }
+
+    /**
+     * Same as {@link #refreshTokensForResource}, but lets the request be customised, e.g. with a
+     * DPoP proof, and the client authenticate with something else than a Client Secret, e.g.
+     * {@link PrivateKeyJwtAuthentication}.
+     *
+     * @param requestInitializer initialises the HTTP request to the Token Endpoint, may be null
+     * @param clientAuthentication authenticates the client, or null for a public client
+     */
+    public static IdTokenResponse refreshTokens(HttpTransport transport,
+                                                HttpRequestInitializer requestInitializer,
+                                                HttpExecuteInterceptor clientAuthentication,
+                                                String tokenServerUrl, String[] scopes,
+                                                String audience, String refreshToken)
+                                                throws IOException {
+
+        List<String> scopesList = Arrays.asList(scopes);
+
+        RefreshTokenRequest request = new RefreshTokenRequest(
+                transport,
+                new GsonFactory(),
+                new GenericUrl(tokenServerUrl),
+                refreshToken
+        );
+        request.setRequestInitializer(requestInitializer);
+        request.setClientAuthentication(clientAuthentication);
+        request.setScopes(scopesList);
+
+        if (audience != null) {
+            request.set("resource", audience);
+        }
+
+        return execute("OIDCUtils.refreshTokens", request);
+    }
+
+    /**
+     * Starts the Device Authorization Grant of RFC 8628, for devices that can't show a browser or
+     * are awkward to type on. The response has a code for the user to enter at the verification
+     * URI on another device; meanwhile poll for the tokens with
+     * {@link #pollDeviceToken(HttpTransport, HttpRequestInitializer, HttpExecuteInterceptor, String,
+     * String, String)}, e.g. through {@link DevicePoller}.
+     *
+     * Needs to be run on a separate thread.
+     *
+     * @param clientAuthentication authenticates the client, or null for a public client
+     */
+    public static DeviceAuthorizationResponse requestDeviceAuthorization(
+            HttpTransport transport, final HttpExecuteInterceptor clientAuthentication,
+            String deviceAuthorizationUrl, String clientId, String[] scopes) throws IOException {
+
+        GenericData data = new GenericData();
+        data.set("client_id", clientId);
+        data.set("scope", Joiner.on(' ').join(Arrays.asList(scopes)));
+
+        com.google.api.client.http.HttpRequest request = transport.createRequestFactory(
+                new HttpRequestInitializer() {
+                    @Override
+                    public void initialize(com.google.api.client.http.HttpRequest request) {
+                        request.setInterceptor(clientAuthentication);
+                    }
+                }).buildPostRequest(new GenericUrl(deviceAuthorizationUrl),
+                        new UrlEncodedContent(data));
+        request.setParser(new JsonObjectParser(new GsonFactory()));
+
+        BlockingCallGuard.Call call =
+                BlockingCallGuard.enter("OIDCUtils.requestDeviceAuthorization");
+
+        try {
+            return request.execute().parseAs(DeviceAuthorizationResponse.class);
+        } finally {
+            call.exit();
+        }
+    }
+
+    /**
+     * Asks the Token Endpoint once whether the user has approved a device authorization yet.
+     *
+     * Until they have, this throws a {@link TokenResponseException} whose error is
+     * `authorization_pending`, or `slow_down` if the client polls too often. `access_denied` and
+     * `expired_token` mean that the authorization is over and polling has to stop.
+     *
+     * Needs to be run on a separate thread.
+     *
+     * @param requestInitializer initialises the HTTP request to the Token Endpoint, may be null
+     * @param clientAuthentication authenticates the client, or null for a public client
+     */
+    public static IdTokenResponse pollDeviceToken(HttpTransport transport,
+                                                  HttpRequestInitializer requestInitializer,
+                                                  HttpExecuteInterceptor clientAuthentication,
+                                                  String tokenServerUrl, String clientId,
+                                                  String deviceCode) throws IOException {
+
+        TokenRequest request = new TokenRequest(
+                transport,
+                new GsonFactory(),
+                new GenericUrl(tokenServerUrl),
+                DEVICE_CODE_GRANT_TYPE
+        );
+        request.setRequestInitializer(requestInitializer);
+        request.setClientAuthentication(clientAuthentication);
+        request.set("device_code", deviceCode);
+        request.set("client_id", clientId);
+
+        IdTokenResponse response = execute("OIDCUtils.pollDeviceToken", request);
+        String idToken = response.getIdToken();
+
+        if (isValidIdToken(clientId, idToken)) {
+            return response;
+        } else {
+            throw new IOException("Invalid ID token returned.");
+        }
+    }
+
+    /**
+     * Whether an error from a `prompt=none` Authentication Request means that the user has to
+     * interact with the provider, so the request has to be repeated without `prompt=none`.
+     *
+     * @see <a href="http://openid.net/specs/openid-connect-core-1_0.html#AuthError">Authentication Error Response</a>
+     */
+    public static boolean isInteractionRequired(String error) {
+        return "login_required".equals(error) || "consent_required".equals(error)
+                || "interaction_required".equals(error)
+                || "account_selection_required".equals(error);
+    }
+
+    /**
+     * Authenticates the client with `client_secret_basic`, or returns null if there's no secret.
+     */
+    public static HttpExecuteInterceptor clientSecretAuthentication(String clientId,
+                                                                    String clientSecret) {
+        return isEmpty(clientSecret) ? null : new BasicAuthentication(clientId, clientSecret);
+    }
+
+    /**
+     * Verifies an ID Token.
+     * TODO: Look into verifying the token issuer as well?
+     */
+    public static boolean isValidIdToken(String clientId, String tokenString) throws IOException {
+
+        List<String> audiences = Arrays.asList(clientId);
+        IdTokenVerifier verifier = new IdTokenVerifier.Builder().setAudience(audiences).build();
+
+        IdToken idToken = IdToken.parse(new GsonFactory(), tokenString);
+
+        return verifier.verify(idToken);
+    }
+
+    /**
+     * Verifies the issuer, audience and expiry of an ID Token. Doesn't check its signature, see
+     * {@link JsonWebKeySet} for that.
+     */
+    public static boolean isValidIdToken(String clientId, String issuer, String tokenString)
+            throws IOException {
+
+        List<String> audiences = Arrays.asList(clientId);
+        IdTokenVerifier verifier = new IdTokenVerifier.Builder().setAudience(audiences)
+                .setIssuer(issuer).build();
+
+        IdToken idToken = IdToken.parse(new GsonFactory(), tokenString);
+
+        return verifier.verify(idToken);
+    }
+
+    /**
+     * Verifies the `c_hash` claim of an ID Token that was returned from the Authorization Endpoint
+     * together with an Authorization Code, as the Hybrid Flow requires. The hash is the left half
+     * of the code's hash, using the hash function of the token's signing algorithm.
+     *
+     * @see <a href="http://openid.net/specs/openid-connect-core-1_0.html#HybridIDToken">Hybrid Flow ID Token</a>
+     */
+    public static boolean isValidCodeHash(String tokenString, String authCode) throws IOException {
+        IdToken idToken = IdToken.parse(new GsonFactory(), tokenString);
+        Object codeHash = idToken.getPayload().get("c_hash");
+
+        if (!(codeHash instanceof String)) {
+            return false;
+        }
+
+        String algorithm = idToken.getHeader().getAlgorithm();
+        String digestAlgorithm;
+
+        if (algorithm == null || algorithm.length() != 5) {
+            return false;
+        } else if (algorithm.endsWith("256")) {
+            digestAlgorithm = "SHA-256";
+        } else if (algorithm.endsWith("384")) {
+            digestAlgorithm = "SHA-384";
+        } else if (algorithm.endsWith("512")) {
+            digestAlgorithm = "SHA-512";
+        } else {
+            return false;
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance(digestAlgorithm)
+                    .digest(authCode.getBytes("US-ASCII"));
+            byte[] leftHalf = Arrays.copyOf(digest, digest.length / 2);
+
+            return Base64.encodeBase64URLSafeString(leftHalf).equals(codeHash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Could not verify code hash.", e);
+        }
+    }
+
+    /**
+     * Gets user information from the UserInfo endpoint.
+     */
+    public static Map getUserInfo(String userInfoUrl, String idToken) throws IOException {
+        HttpRequest request = new HttpRequest(userInfoUrl, HttpRequest.METHOD_GET);
+        request = prepareApiRequest(request, idToken);
+
+        BlockingCallGuard.Call call = BlockingCallGuard.enter("OIDCUtils.getUserInfo");
+
+        try {
+            if (request.ok()) {
+                String jsonString = request.body();
+                return new Gson().fromJson(jsonString, Map.class);
+            } else {
+                throw new IOException(request.message());
+            }
+        } finally {
+            call.exit();
+        }
+    }
+
+    /**
+     * Prepares an arbitrary API request by injecting an ID Token into an HttpRequest. Uses an
+     * external library to make my life easier, but you can modify this to use whatever in case you
+     * don't like the (small) dependency.
+     */
+    public static HttpRequest prepareApiRequest(HttpRequest request, String idToken)
+            throws IOException {
+
+        return request.authorization("Bearer " + idToken).acceptJson();
+    }
+
+    /**
+     * Prepares an API request with a DPoP-bound Access Token and a proof for it. The request's
+     * method and URL need to be final by now.
+     */
+    public static HttpRequest prepareApiRequest(HttpRequest request, String accessToken,
+                                                DPoPProofs dpop) throws IOException {
+
+        String proof = dpop.createProof(request.method(), request.url().toString(), accessToken,
+                null);
+
+        return request.authorization("DPoP " + accessToken).header(DPoPProofs.HEADER, proof)
+                .acceptJson();
+    }
+
+    /**
+     * Executes a token request, watched by the {@link BlockingCallGuard}.
+     */
+    private static IdTokenResponse execute(String callName, TokenRequest request)
+            throws IOException {
+
+        final HttpRequestInitializer requestInitializer = request.getRequestInitializer();
+
+        request.setRequestInitializer(new HttpRequestInitializer() {
+            @Override
+            public void initialize(com.google.api.client.http.HttpRequest request)
+                    throws IOException {
+
+                if (requestInitializer != null) {
+                    requestInitializer.initialize(request);
+                }
+
+                request.setResponseInterceptor(MISSING_ERROR_BODY);
+            }
+        });
+
+        BlockingCallGuard.Call call = BlockingCallGuard.enter(callName);
+
+        try {
+            return IdTokenResponse.execute(request);
+        } finally {
+            call.exit();
+        }
+    }
+
+    /**
+     * Same as TextUtils.isEmpty(), which we can't use outside of Android.
+     */
+    private static boolean isEmpty(String string) {
+        return string == null || string.length() == 0;
+    }
+
+}
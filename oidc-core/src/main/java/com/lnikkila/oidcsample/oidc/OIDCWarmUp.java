@@ -0,0 +1,131 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.google.api.client.auth.oauth2.AuthorizationCodeTokenRequest;
+import com.google.api.client.auth.oauth2.RefreshTokenRequest;
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.google.api.client.auth.openidconnect.IdTokenResponse;
+import com.google.api.client.http.BasicAuthentication;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.UrlEncodedContent;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.Base64;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads and initialises the parts of the google-oauth-java-client stack that the first login or
+ * refresh would otherwise initialise on the critical path: the request and response classes, the
+ * reflection metadata of their GenericData fields, the JSON factory and the HTTP transport.
+ *
+ * Nothing in here touches the network, unless a registered provider needs discovery to be built.
+ * Call {@link #start(OIDCProviderRegistry)} from Application.onCreate() to opt in.
+ */
+public final class OIDCWarmUp {
+
+    // Something that parses as an ID Token. It's never verified, so it doesn't need a signature.
+    private static final String WARM_UP_ID_TOKEN =
+            encode("{\"alg\":\"RS256\",\"typ\":\"JWT\"}") + "."
+            + encode("{\"iss\":\"https://warm.up\",\"sub\":\"0\",\"aud\":\"warm-up\","
+                    + "\"iat\":0,\"exp\":0}") + ".c2ln";
+
+    private static final String WARM_UP_TOKEN_RESPONSE = "{\"access_token\":\"a\","
+            + "\"token_type\":\"Bearer\",\"expires_in\":3600,\"refresh_token\":\"r\","
+            + "\"scope\":\"openid\",\"id_token\":\"" + WARM_UP_ID_TOKEN + "\"}";
+
+    private OIDCWarmUp() {}
+
+    /**
+     * Warms up on a low priority background thread and returns right away.
+     *
+     * @param registry if not null, the default provider's client is built as well
+     */
+    public static Thread start(final OIDCProviderRegistry registry) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                warmUp(registry);
+            }
+        }, "OIDC warm-up");
+
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+
+        return thread;
+    }
+
+    /**
+     * Warms up on the calling thread and returns how long it took in milliseconds.
+     *
+     * This is best effort: failures are ignored, since the real request will just do the same
+     * work again and report any error properly.
+     */
+    public static long warmUp(OIDCProviderRegistry registry) {
+        long start = System.nanoTime();
+
+        try {
+            JsonFactory jsonFactory = new GsonFactory();
+            HttpTransport transport = OIDCUtils.getHttpTransport();
+            GenericUrl url = new GenericUrl("https://warm.up/token");
+
+            // Request classes and the reflection metadata used to encode their parameters
+            AuthorizationCodeTokenRequest codeRequest = new AuthorizationCodeTokenRequest(
+                    transport, jsonFactory, url, "code");
+            codeRequest.set("redirect_uri", "app://warm.up");
+            codeRequest.setClientAuthentication(new BasicAuthentication("id", "secret"));
+            new UrlEncodedContent(codeRequest).writeTo(new NullOutputStream());
+
+            RefreshTokenRequest refreshRequest = new RefreshTokenRequest(
+                    transport, jsonFactory, url, "refresh");
+            new UrlEncodedContent(refreshRequest).writeTo(new NullOutputStream());
+
+            // Response parsing, including the ID Token and its payload
+            IdTokenResponse response = jsonFactory.fromString(WARM_UP_TOKEN_RESPONSE,
+                    IdTokenResponse.class);
+            response.setFactory(jsonFactory);
+            IdToken idToken = response.parseIdToken();
+            idToken.getPayload().getSubject();
+
+            // The transport, up to the point where it would open a connection. Creating a
+            // URLConnection doesn't connect yet, but it loads the protocol handlers.
+            transport.createRequestFactory().buildGetRequest(url);
+            new URL("https://warm.up/").openConnection();
+            new URL("http://warm.up/").openConnection();
+
+            // The verifier. The token is expired on purpose, so this returns false.
+            OIDCUtils.isValidIdToken("warm-up", WARM_UP_ID_TOKEN);
+
+            if (registry != null && registry.getDefaultIssuer() != null) {
+                registry.getDefault();
+            }
+        } catch (IOException | RuntimeException ignored) {
+            // Best effort, see above
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static String encode(String json) {
+        try {
+            return Base64.encodeBase64URLSafeString(json.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+
+    }
+
+}
@@ -0,0 +1,188 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.UrlEncodedContent;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.api.client.json.webtoken.JsonWebToken;
+import com.google.api.client.util.Base64;
+import com.google.api.client.util.Data;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Map;
+
+/**
+ * Authenticates the client at the Token Endpoint with a signed JWT, the `private_key_jwt` method
+ * of OpenID Connect Core section 9 (RFC 7523). Use it in place of
+ * {@link com.google.api.client.http.BasicAuthentication} with
+ * {@link com.google.api.client.auth.oauth2.TokenRequest#setClientAuthentication}.
+ *
+ * RSA keys sign with RS256 and P-256 keys with ES256.
+ *
+ * Signing is slow compared to the rest of a token request, so if the provider allows assertions to
+ * be reused, one assertion is cached and sent with every request until shortly before it expires.
+ * A burst of refreshes then only signs once. Providers that enforce unique `jti` values reject
+ * reused assertions, so reuse is opt-in.
+ */
+public final class PrivateKeyJwtAuthentication implements HttpExecuteInterceptor {
+
+    public static final String ASSERTION_TYPE =
+            "urn:ietf:params:oauth:client-assertion-type:jwt-bearer";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // How long an assertion is valid for, and how long before that a cached one is replaced
+    static final long LIFETIME_SECONDS = 60;
+    static final long REUSE_MARGIN_SECONDS = 10;
+
+    private static final JsonFactory JSON_FACTORY = new GsonFactory();
+
+    /**
+     * The wall clock in seconds, which is what `iat` and `exp` are in.
+     */
+    interface Clock {
+        long seconds();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long seconds() {
+            return System.currentTimeMillis() / 1000;
+        }
+    };
+
+    private final String clientId;
+    private final String audience;
+    private final PrivateKey privateKey;
+    private final String keyId;
+    private final String algorithm;
+    private final String signatureAlgorithm;
+    private final boolean reuseAssertions;
+    private final Clock clock;
+
+    private final SecureRandom random = new SecureRandom();
+
+    // Guarded by this
+    private String assertion;
+    private long assertionExpiresAt;
+
+    /**
+     * @param audience the Token Endpoint URL, which the provider expects in the `aud` claim
+     * @param keyId the `kid` of the public key the provider knows, or null if it only has one
+     * @param reuseAssertions whether the provider accepts the same assertion more than once
+     */
+    public PrivateKeyJwtAuthentication(String clientId, String audience, PrivateKey privateKey,
+                                       String keyId, boolean reuseAssertions) {
+
+        this(clientId, audience, privateKey, keyId, reuseAssertions, SYSTEM_CLOCK);
+    }
+
+    PrivateKeyJwtAuthentication(String clientId, String audience, PrivateKey privateKey,
+                                String keyId, boolean reuseAssertions, Clock clock) {
+
+        if (privateKey instanceof RSAPrivateKey) {
+            algorithm = "RS256";
+            signatureAlgorithm = "SHA256withRSA";
+        } else if (privateKey instanceof ECPrivateKey
+                && ((ECPrivateKey) privateKey).getParams().getCurve().getField().getFieldSize()
+                        == 256) {
+            algorithm = "ES256";
+            signatureAlgorithm = "SHA256withECDSA";
+        } else {
+            throw new IllegalArgumentException("Only RSA and P-256 keys are supported.");
+        }
+
+        this.clientId = clientId;
+        this.audience = audience;
+        this.privateKey = privateKey;
+        this.keyId = keyId;
+        this.reuseAssertions = reuseAssertions;
+        this.clock = clock;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public boolean isReusingAssertions() {
+        return reuseAssertions;
+    }
+
+    @Override
+    public void intercept(HttpRequest request) throws IOException {
+        Map<String, Object> data = Data.mapOf(UrlEncodedContent.getContent(request).getData());
+
+        data.put("client_id", clientId);
+        data.put("client_assertion_type", ASSERTION_TYPE);
+        data.put("client_assertion", getAssertion());
+    }
+
+    /**
+     * Returns the cached assertion if it can still be used, otherwise signs a new one.
+     */
+    synchronized String getAssertion() throws IOException {
+        long now = clock.seconds();
+
+        if (assertion != null && now < assertionExpiresAt - REUSE_MARGIN_SECONDS) {
+            return assertion;
+        }
+
+        String newAssertion = sign(now);
+
+        if (reuseAssertions) {
+            assertion = newAssertion;
+            assertionExpiresAt = now + LIFETIME_SECONDS;
+        }
+
+        return newAssertion;
+    }
+
+    private String sign(long now) throws IOException {
+        byte[] jti = new byte[16];
+        random.nextBytes(jti);
+
+        JsonWebSignature.Header header = new JsonWebSignature.Header()
+                .setAlgorithm(algorithm)
+                .setType("JWT")
+                .setKeyId(keyId);
+
+        JsonWebToken.Payload payload = new JsonWebToken.Payload()
+                .setIssuer(clientId)
+                .setSubject(clientId)
+                .setAudience(audience)
+                .setJwtId(Base64.encodeBase64URLSafeString(jti))
+                .setIssuedAtTimeSeconds(now)
+                .setExpirationTimeSeconds(now + LIFETIME_SECONDS);
+
+        String content = Base64.encodeBase64URLSafeString(JSON_FACTORY.toByteArray(header)) + "."
+                + Base64.encodeBase64URLSafeString(JSON_FACTORY.toByteArray(payload));
+
+        try {
+            Signature signature = Signature.getInstance(signatureAlgorithm);
+            signature.initSign(privateKey);
+            signature.update(content.getBytes(ASCII));
+
+            byte[] signatureBytes = signature.sign();
+
+            if (algorithm.equals("ES256")) {
+                byte[] jose = new byte[64];
+                DPoPProofs.derToJose(signatureBytes, jose);
+                signatureBytes = jose;
+            }
+
+            return content + "." + Base64.encodeBase64URLSafeString(signatureBytes);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Couldn't sign the client assertion.", e);
+        }
+    }
+
+}
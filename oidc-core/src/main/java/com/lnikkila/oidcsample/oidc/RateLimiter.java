@@ -0,0 +1,224 @@
+package com.lnikkila.oidcsample.oidc;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A token bucket rate limiter with a separate bucket for every host.
+ *
+ * Callers that have to wait are queued by priority, so a foreground request that the user is
+ * waiting for gets the next free slot even if a lot of background work was queued before it.
+ * Within the same priority, requests go first come, first served.
+ *
+ * The app's API requests go through one of these, see APIUtility.
+ */
+public class RateLimiter {
+
+    /**
+     * Request priorities, from the most urgent to the least urgent.
+     */
+    public enum Priority {
+        FOREGROUND,     // The user is looking at something that waits for this request
+        BACKGROUND      // Sync and other work the user doesn't see directly
+    }
+
+    private final double permitsPerNano;
+    private final int burst;
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * @param permitsPerSecond the sustained rate of requests allowed per host
+     * @param burst            how many requests can be made at once after a quiet period
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive.");
+        }
+
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+    }
+
+    /**
+     * Blocks until a request to the given host may be made.
+     */
+    public void acquire(String host, Priority priority) throws InterruptedException {
+        Bucket bucket = buckets.get(host);
+
+        if (bucket == null) {
+            Bucket newBucket = new Bucket();
+            bucket = buckets.putIfAbsent(host, newBucket);
+
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+
+        bucket.acquire(priority);
+    }
+
+    /**
+     * Returns a snapshot of the metrics of every host that has been requested so far.
+     */
+    public Map<String, Metrics> getMetrics() {
+        Map<String, Metrics> metrics = new HashMap<>();
+
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            metrics.put(entry.getKey(), entry.getValue().getMetrics());
+        }
+
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * Queue depth and wait times of a single host, per priority. Arrays are indexed by
+     * {@link Priority#ordinal()}.
+     */
+    public static class Metrics {
+
+        private final int[] queueDepth;
+        private final long[] acquired;
+        private final long[] totalWaitNanos;
+        private final long[] maxWaitNanos;
+
+        Metrics(int[] queueDepth, long[] acquired, long[] totalWaitNanos, long[] maxWaitNanos) {
+            this.queueDepth = queueDepth;
+            this.acquired = acquired;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        /**
+         * The number of requests currently waiting.
+         */
+        public int getQueueDepth(Priority priority) {
+            return queueDepth[priority.ordinal()];
+        }
+
+        /**
+         * The number of requests that have been let through so far.
+         */
+        public long getAcquiredCount(Priority priority) {
+            return acquired[priority.ordinal()];
+        }
+
+        public long getAverageWaitMillis(Priority priority) {
+            long count = acquired[priority.ordinal()];
+            return count == 0 ? 0
+                    : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos[priority.ordinal()] / count);
+        }
+
+        public long getMaxWaitMillis(Priority priority) {
+            return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos[priority.ordinal()]);
+        }
+
+    }
+
+    private class Bucket {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+
+        private final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+        private long nextSequence;
+
+        private double permits = burst;
+        private long lastRefillNanos = System.nanoTime();
+
+        private final int[] queueDepth = new int[Priority.values().length];
+        private final long[] acquired = new long[Priority.values().length];
+        private final long[] totalWaitNanos = new long[Priority.values().length];
+        private final long[] maxWaitNanos = new long[Priority.values().length];
+
+        void acquire(Priority priority) throws InterruptedException {
+            long start = System.nanoTime();
+            int index = priority.ordinal();
+
+            lock.lock();
+
+            try {
+                Ticket ticket = new Ticket(priority, nextSequence++);
+                waiting.add(ticket);
+                queueDepth[index]++;
+
+                try {
+                    // Only the ticket at the head of the queue may take a permit. Everyone else
+                    // waits until the queue changes.
+                    while (true) {
+                        refill();
+
+                        if (waiting.peek() == ticket && permits >= 1) {
+                            permits -= 1;
+                            break;
+                        }
+
+                        long nanosUntilPermit = (long) ((1 - permits) / permitsPerNano);
+                        changed.awaitNanos(Math.max(nanosUntilPermit,
+                                TimeUnit.MILLISECONDS.toNanos(1)));
+                    }
+                } finally {
+                    waiting.remove(ticket);
+                    queueDepth[index]--;
+
+                    // The next ticket in line may be able to go now
+                    changed.signalAll();
+                }
+
+                long waited = System.nanoTime() - start;
+                acquired[index]++;
+                totalWaitNanos[index] += waited;
+                maxWaitNanos[index] = Math.max(maxWaitNanos[index], waited);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Metrics getMetrics() {
+            lock.lock();
+
+            try {
+                return new Metrics(queueDepth.clone(), acquired.clone(), totalWaitNanos.clone(),
+                        maxWaitNanos.clone());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            permits = Math.min(burst, permits + (now - lastRefillNanos) * permitsPerNano);
+            lastRefillNanos = now;
+        }
+
+    }
+
+    private static class Ticket implements Comparable<Ticket> {
+
+        final Priority priority;
+        final long sequence;
+
+        Ticket(Priority priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.lnikkila.oidcsample.oidc;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Keeps track of failed token refreshes per account.
+ *
+ * When the Token Server is down, every getAuthToken() call would otherwise try to refresh again
+ * straight away, which turns an outage into a flood of requests. After a failure we stop trying for
+ * a while and let callers fail fast instead. The waiting period doubles with every consecutive
+ * failure, up to a maximum, and a bit of jitter keeps several accounts or devices from retrying in
+ * lockstep.
+ *
+ * Only failures that might go away by themselves (network errors, 5xx responses and so on) should
+ * be recorded here. An `invalid_grant` means we need the user, not a retry.
+ *
+ * Callers that wait for each other, e.g. on a refresh lock, should check
+ * {@link #getRemainingMillis(String)} again once they have the lock. Otherwise every one of them
+ * makes its own doomed request after the first one fails, and records its own failure.
+ */
+public final class RefreshBackoff {
+
+    static final long INITIAL_DELAY_MILLIS = 2 * 1000;
+    static final long MAX_DELAY_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * A monotonic clock in milliseconds.
+     */
+    interface Clock {
+        long millis();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long millis() {
+            return System.nanoTime() / 1000000;
+        }
+    };
+
+    private final Clock clock;
+    private final Random random = new Random();
+
+    // Account name -> state, guarded by this
+    private final Map<String, State> states = new HashMap<>();
+
+    public RefreshBackoff() {
+        this(SYSTEM_CLOCK);
+    }
+
+    RefreshBackoff(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Returns how long to wait before the next refresh attempt for this account is allowed, or 0
+     * if it can be attempted right away.
+     */
+    public synchronized long getRemainingMillis(String accountName) {
+        State state = states.get(accountName);
+
+        if (state == null) {
+            return 0;
+        }
+
+        return Math.max(0, state.retryAt - clock.millis());
+    }
+
+    /**
+     * Records a failed refresh attempt and returns how long the account is blocked for.
+     */
+    public synchronized long recordFailure(String accountName) {
+        State previous = states.get(accountName);
+        int failures = previous == null ? 1 : previous.failures + 1;
+
+        // 2 s, 4 s, 8 s... capped at the maximum. The shift is capped too so it can't overflow.
+        long delay = Math.min(MAX_DELAY_MILLIS,
+                INITIAL_DELAY_MILLIS << Math.min(failures - 1, 20));
+
+        // Up to 20 % of jitter in either direction
+        delay = (long) (delay * (0.8 + random.nextDouble() * 0.4));
+
+        states.put(accountName, new State(failures, clock.millis() + delay));
+
+        return delay;
+    }
+
+    /**
+     * Forgets earlier failures after a successful refresh, or after a failure that isn't worth
+     * backing off for.
+     */
+    public synchronized void reset(String accountName) {
+        states.remove(accountName);
+    }
+
+    synchronized int getFailureCount(String accountName) {
+        State state = states.get(accountName);
+        return state == null ? 0 : state.failures;
+    }
+
+    private static class State {
+
+        final int failures;
+        final long retryAt;
+
+        State(int failures, long retryAt) {
+            this.failures = failures;
+            this.retryAt = retryAt;
+        }
+
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.lnikkila.oidcsample.oidc;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the tokens of many accounts for callers that just ask for one now and then, e.g. other
+ * processes, instead of holding on to a {@link GenerationalTokenCache} per account.
+ *
+ * Whoever stores new tokens has to call {@link #forget(String)} for the account. That bumps a
+ * generation shared by the whole cache, so a load that overlapped with it doesn't cache the token
+ * it got, which may already have been replaced. A cached token with a known expiry is also loaded
+ * again once it's within {@link GenerationalTokenCache#EXPIRY_MARGIN_MILLIS} of expiring, so an
+ * account that nobody stores tokens for doesn't keep serving an expired one.
+ *
+ * Loads are serialised per account, so when several callers ask for an expired token at once, one
+ * of them loads it and the others get the result.
+ */
+public final class SharedTokenCache {
+
+    /**
+     * Loads a token that isn't cached. Both methods may block.
+     */
+    public interface Loader {
+        /**
+         * Returns a valid token, renewing it if needed, or null if there's none.
+         */
+        String load() throws IOException;
+
+        /**
+         * Returns when the loaded token expires, in milliseconds since the epoch, or 0 if it's
+         * unknown.
+         */
+        long getExpiresAt(String token);
+    }
+
+    private static final class Entry {
+
+        final String token;
+        final long expiresAt;
+
+        Entry(String token, long expiresAt) {
+            this.token = token;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+    // Token type + account name -> token
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // Goes up whenever tokens are forgotten
+    private final AtomicLong generation = new AtomicLong();
+
+    // Account name -> lock held while loading its tokens
+    private final ConcurrentMap<String, Object> loadLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the cached token of the given type, or loads it if there's none or it has expired.
+     */
+    public String get(String account, String type, Loader loader) throws IOException {
+        String key = type + "\n" + account;
+        String token = getCached(key);
+
+        if (token != null) {
+            return token;
+        }
+
+        synchronized (getLoadLock(account)) {
+            // Someone else may have loaded the same token while we were waiting
+            token = getCached(key);
+
+            if (token != null) {
+                return token;
+            }
+
+            long loadGeneration = generation.get();
+            token = loader.load();
+
+            if (token != null && generation.get() == loadGeneration) {
+                Entry entry = new Entry(token, loader.getExpiresAt(token));
+                entries.put(key, entry);
+
+                // Forgotten while it was being put
+                if (generation.get() != loadGeneration) {
+                    entries.remove(key, entry);
+                }
+            }
+
+            return token;
+        }
+    }
+
+    /**
+     * Drops the tokens of an account, e.g. because it has new ones.
+     */
+    public void forget(String account) {
+        generation.incrementAndGet();
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        String suffix = "\n" + account;
+
+        while (iterator.hasNext()) {
+            if (iterator.next().getKey().endsWith(suffix)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the tokens of all accounts.
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    private String getCached(String key) {
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.expiresAt != 0 && System.currentTimeMillis()
+                >= entry.expiresAt - GenerationalTokenCache.EXPIRY_MARGIN_MILLIS) {
+            entries.remove(key, entry);
+            return null;
+        }
+
+        return entry.token;
+    }
+
+    private Object getLoadLock(String account) {
+        Object lock = loadLocks.get(account);
+
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = loadLocks.putIfAbsent(account, newLock);
+
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+
+        return lock;
+    }
+
+}
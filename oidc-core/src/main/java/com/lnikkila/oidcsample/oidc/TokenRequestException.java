@@ -0,0 +1,66 @@
+package com.lnikkila.oidcsample.oidc;
+
+import java.io.IOException;
+
+/**
+ * An error response from the Token Endpoint, thrown by {@link OIDCClient} and its
+ * {@link OIDCEngine}. The error code tells whether trying again makes sense: `invalid_grant` means
+ * the code or Refresh Token is no good anymore and the user has to authorise the app again.
+ *
+ * The message is the status line followed by the response body, like google-http-client's
+ * HttpResponseException.
+ */
+public class TokenRequestException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final String statusMessage;
+    private final String content;
+    private final String error;
+    private final String errorDescription;
+
+    /**
+     * @param content the response body, or null if there was none
+     * @param error the `error` member of the response, or null if the body didn't have one
+     */
+    public TokenRequestException(int statusCode, String statusMessage, String content,
+                                 String error, String errorDescription) {
+
+        super(statusCode + (statusMessage != null ? " " + statusMessage : "")
+                + (content != null && content.length() > 0 ? "\n" + content : ""));
+
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+        this.content = content != null ? content : "";
+        this.error = error;
+        this.errorDescription = errorDescription;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    /**
+     * The response body, or an empty string if there was none.
+     */
+    public String getContent() {
+        return content;
+    }
+
+    /**
+     * The OAuth error code, e.g. `invalid_grant`, or null if the response didn't have one.
+     */
+    public String getError() {
+        return error;
+    }
+
+    public String getErrorDescription() {
+        return errorDescription;
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.lnikkila.oidcsample.oidc;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The tokens from a successful Token Endpoint response, as returned by {@link OIDCClient} and its
+ * {@link OIDCEngine}. Unlike google-oauth-client's IdTokenResponse, this is a plain value class,
+ * so an engine that doesn't use google-http-client doesn't have to load it just to return the
+ * tokens.
+ *
+ * Instances are immutable.
+ */
+public final class TokenResult {
+
+    private final Map<String, Object> parameters;
+
+    /**
+     * @param parameters the members of the response's JSON object; null values are left out
+     */
+    public TokenResult(Map<String, ?> parameters) {
+        Map<String, Object> copy = new LinkedHashMap<>();
+
+        for (Map.Entry<String, ?> parameter : parameters.entrySet()) {
+            if (parameter.getValue() != null) {
+                copy.put(parameter.getKey(), parameter.getValue());
+            }
+        }
+
+        this.parameters = Collections.unmodifiableMap(copy);
+    }
+
+    public String getIdToken() {
+        return getString("id_token");
+    }
+
+    public String getAccessToken() {
+        return getString("access_token");
+    }
+
+    public String getTokenType() {
+        return getString("token_type");
+    }
+
+    /**
+     * The new Refresh Token, or null if the provider kept the old one valid.
+     */
+    public String getRefreshToken() {
+        return getString("refresh_token");
+    }
+
+    public String getScope() {
+        return getString("scope");
+    }
+
+    /**
+     * The lifetime of the Access Token, or null if the provider didn't say.
+     */
+    public Long getExpiresInSeconds() {
+        Object expiresIn = parameters.get("expires_in");
+        return expiresIn instanceof Number ? ((Number) expiresIn).longValue() : null;
+    }
+
+    /**
+     * Every member of the response, including the ones without a getter above.
+     */
+    public Map<String, Object> getParameters() {
+        return parameters;
+    }
+
+    private String getString(String name) {
+        Object value = parameters.get(name);
+        return value instanceof String ? (String) value : null;
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.lnikkila.oidcsample.oidc;
+
+import java.util.Locale;
+
+/**
+ * Measures how many DPoP proofs {@link DPoPProofs} creates per second on a single thread, for
+ * Token Endpoint requests and for API requests, which also hash the Access Token.
+ *
+ * Run with `java -cp <test classpath> com.lnikkila.oidcsample.oidc.DPoPBenchmark [seconds]`, and
+ * pin the JVM to one core with `taskset -c 0` for comparable numbers.
+ */
+public class DPoPBenchmark {
+
+    private static final String TOKEN_URL = "https://accounts.example.com/oauth2/token";
+    private static final String API_URL = "https://api.example.com/v1/items?page=2";
+
+    // About the size of a typical JWT Access Token
+    private static final String ACCESS_TOKEN;
+
+    static {
+        StringBuilder builder = new StringBuilder("eyJhbGciOiJSUzI1NiJ9.");
+
+        while (builder.length() < 800) {
+            builder.append("eyJzdWIiOiIxMjM0NTY3ODkwIiwic2NvcGUiOiJpdGVtcyJ9");
+        }
+
+        ACCESS_TOKEN = builder.append(".c2lnbmF0dXJl").toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 5;
+
+        DPoPProofs proofs = DPoPProofs.generate();
+
+        // Warm up both paths so that the JIT has compiled them before measuring
+        run(proofs, false, 2000);
+        run(proofs, true, 2000);
+
+        double tokenRate = run(proofs, false, seconds * 1000);
+        double apiRate = run(proofs, true, seconds * 1000);
+
+        System.out.println(String.format(Locale.US,
+                "DPoP proofs per second on one thread: %.0f without ath, %.0f with ath",
+                tokenRate, apiRate));
+    }
+
+    private static double run(DPoPProofs proofs, boolean withAccessToken, long millis)
+            throws Exception {
+
+        long end = System.nanoTime() + millis * 1000000;
+        long start = System.nanoTime();
+        long count = 0;
+        int sink = 0;
+
+        while (System.nanoTime() < end) {
+            String proof = withAccessToken
+                    ? proofs.createProof("GET", API_URL, ACCESS_TOKEN, null)
+                    : proofs.createProof("POST", TOKEN_URL);
+
+            sink += proof.length();
+            count++;
+        }
+
+        if (sink == 0) {
+            throw new AssertionError();
+        }
+
+        return count * 1e9 / (System.nanoTime() - start);
+    }
+
+}
@@ -0,0 +1,186 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.api.client.util.Base64;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the hand-written DPoP proofs are valid JWTs: signed with the key in their header,
+ * and with the claims RFC 9449 section 4.2 asks for.
+ */
+public class DPoPProofsTest {
+
+    private static final String TOKEN_URL = "https://accounts.example.com/oauth2/token";
+    private static final String ACCESS_TOKEN = "Kz~8mXK1EalYznwH-LC-1fBAo.4Ljp~zsPE_NeO.gxU";
+
+    private static final JsonFactory JSON_FACTORY = new GsonFactory();
+
+    private KeyPair keyPair;
+    private DPoPProofs proofs;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+
+        keyPair = generator.generateKeyPair();
+        proofs = new DPoPProofs(keyPair);
+    }
+
+    @Test
+    public void signedWithTheKeyInTheHeader() throws Exception {
+        ECPublicKey publicKey = (ECPublicKey) keyPair.getPublic();
+
+        // Enough proofs that signatures with short or sign-padded integers come up
+        for (int i = 0; i < 50; i++) {
+            String proofString = proofs.createProof("POST", TOKEN_URL);
+            JsonWebSignature proof = parse(proofString);
+            byte[] signatureBytes = proof.getSignatureBytes();
+
+            assertEquals("dpop+jwt", proof.getHeader().getType());
+            assertEquals("ES256", proof.getHeader().getAlgorithm());
+            assertEquals(64, signatureBytes.length);
+
+            Map jwk = headerKey(proofString);
+            assertEquals("EC", jwk.get("kty"));
+            assertEquals("P-256", jwk.get("crv"));
+            assertEquals(publicKey.getW().getAffineX(), decodeCoordinate(jwk.get("x")));
+            assertEquals(publicKey.getW().getAffineY(), decodeCoordinate(jwk.get("y")));
+            assertFalse(jwk.containsKey("d"));
+
+            Signature signature = Signature.getInstance("SHA256withECDSA");
+            signature.initVerify(publicKey);
+            signature.update(proof.getSignedContentBytes());
+            assertTrue(signature.verify(PrivateKeyJwtAuthenticationTest.joseToDer(
+                    signatureBytes)));
+        }
+    }
+
+    @Test
+    public void methodAndUrlWithoutQuery() throws Exception {
+        long before = System.currentTimeMillis() / 1000;
+        GenericJson payload = parse(proofs.createProof("GET",
+                "https://api.example.com/v1/items?page=2#top")).getPayload();
+        long after = System.currentTimeMillis() / 1000;
+
+        assertEquals("GET", payload.get("htm"));
+        assertEquals("https://api.example.com/v1/items", payload.get("htu"));
+
+        long issuedAt = ((Number) payload.get("iat")).longValue();
+        assertTrue(issuedAt >= before && issuedAt <= after);
+
+        assertNull(payload.get("ath"));
+        assertNull(payload.get("nonce"));
+    }
+
+    @Test
+    public void urlIsEscaped() throws Exception {
+        String url = "https://api.example.com/v1/\"items\\ä";
+        GenericJson payload = parse(proofs.createProof("GET", url, null, null)).getPayload();
+
+        assertEquals(url, payload.get("htu"));
+    }
+
+    @Test
+    public void accessTokenHashAndNonce() throws Exception {
+        GenericJson payload = parse(proofs.createProof("GET", "https://api.example.com/v1/items",
+                ACCESS_TOKEN, "eyJ7S_zG.eyJH0-Z.HX4w-7v")).getPayload();
+
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(
+                ACCESS_TOKEN.getBytes("US-ASCII"));
+
+        assertEquals(Base64.encodeBase64URLSafeString(hash), payload.get("ath"));
+        assertEquals("eyJ7S_zG.eyJH0-Z.HX4w-7v", payload.get("nonce"));
+    }
+
+    @Test
+    public void jtiIsUnique() throws Exception {
+        final Set<Object> jtis = Collections.synchronizedSet(new HashSet<>());
+        final int proofsPerThread = 500;
+
+        // Every thread has its own random generator, so check across threads too
+        Thread[] threads = new Thread[4];
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < proofsPerThread; j++) {
+                        try {
+                            jtis.add(parse(proofs.createProof("POST", TOKEN_URL)).getPayload()
+                                    .getJwtId());
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threads.length * proofsPerThread, jtis.size());
+        assertFalse(jtis.contains(null));
+    }
+
+    @Test
+    public void thumbprintOfTheHeaderKey() throws Exception {
+        Map jwk = headerKey(proofs.createProof("POST", TOKEN_URL));
+
+        String canonical = "{\"crv\":\"P-256\",\"kty\":\"EC\",\"x\":\"" + jwk.get("x")
+                + "\",\"y\":\"" + jwk.get("y") + "\"}";
+        byte[] thumbprint = MessageDigest.getInstance("SHA-256").digest(
+                canonical.getBytes("UTF-8"));
+
+        assertEquals(Base64.encodeBase64URLSafeString(thumbprint), proofs.getThumbprint());
+    }
+
+    private static JsonWebSignature parse(String proof) throws Exception {
+        return JsonWebSignature.parse(JSON_FACTORY, proof);
+    }
+
+    /**
+     * The `jwk` header member. JsonWebSignature.Header has it as a string, so the header is parsed
+     * as plain JSON instead.
+     */
+    private static Map headerKey(String proof) throws Exception {
+        String header = new String(Base64.decodeBase64(proof.substring(0, proof.indexOf('.'))),
+                "UTF-8");
+        GenericJson json = JSON_FACTORY.fromString(header, GenericJson.class);
+
+        return (Map) json.get("jwk");
+    }
+
+    private static BigInteger decodeCoordinate(Object encoded) {
+        byte[] bytes = Base64.decodeBase64((String) encoded);
+
+        assertEquals(32, bytes.length);
+        return new BigInteger(1, bytes);
+    }
+
+}
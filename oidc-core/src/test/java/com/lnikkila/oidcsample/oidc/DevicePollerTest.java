@@ -0,0 +1,252 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.google.api.client.json.gson.GsonFactory;
+import com.lnikkila.oidcsample.oidc.mock.MockProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the DevicePoller against the MockProvider's device code grant, with short intervals so the
+ * tests don't have to wait for the real ones.
+ */
+public class DevicePollerTest {
+
+    private static final long INTERVAL_MILLIS = 10;
+    private static final long EXPIRES_IN_MILLIS = 10 * 1000;
+    private static final long TIMEOUT_MILLIS = 5 * 1000;
+
+    private MockProvider provider;
+    private OIDCClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        provider = new MockProvider().start();
+        client = newClient(provider.getTokenServerUrl());
+    }
+
+    @After
+    public void tearDown() {
+        provider.stop();
+    }
+
+    @Test
+    public void pendingUntilApproved() throws Exception {
+        String deviceCode = provider.issueDeviceCode(
+                "authorization_pending", "authorization_pending");
+        RecordingCallback callback = new RecordingCallback();
+
+        DevicePoller.Handle handle = DevicePoller.poll(client, deviceCode, INTERVAL_MILLIS,
+                EXPIRES_IN_MILLIS, callback);
+
+        callback.await();
+
+        assertNull(callback.failure);
+        assertEquals(MockProvider.SUBJECT, IdToken.parse(new GsonFactory(),
+                callback.tokens.getIdToken()).getPayload().getSubject());
+        assertNotNull(callback.tokens.getRefreshToken());
+        assertEquals(3, provider.getTokenRequestCount());
+        assertEquals(INTERVAL_MILLIS, handle.getIntervalMillis());
+        assertTrue(handle.isFinished());
+    }
+
+    @Test
+    public void slowDownAddsFiveSeconds() throws Exception {
+        String deviceCode = provider.issueDeviceCode("slow_down");
+        RecordingCallback callback = new RecordingCallback();
+
+        DevicePoller.Handle handle = DevicePoller.poll(client, deviceCode, INTERVAL_MILLIS,
+                EXPIRES_IN_MILLIS, callback);
+
+        try {
+            awaitIntervalChange(handle, INTERVAL_MILLIS);
+
+            assertEquals(INTERVAL_MILLIS + DevicePoller.SLOW_DOWN_MILLIS,
+                    handle.getIntervalMillis());
+
+            // The next poll waits for the new interval
+            Thread.sleep(100);
+            assertEquals(1, provider.getTokenRequestCount());
+            assertFalse(handle.isFinished());
+        } finally {
+            handle.cancel();
+        }
+    }
+
+    @Test
+    public void deniedStopsPolling() throws Exception {
+        String deviceCode = provider.issueDeviceCode("authorization_pending", "access_denied");
+        RecordingCallback callback = new RecordingCallback();
+
+        DevicePoller.poll(client, deviceCode, INTERVAL_MILLIS, EXPIRES_IN_MILLIS, callback);
+
+        callback.await();
+
+        assertNull(callback.tokens);
+        assertTrue(callback.failure instanceof TokenRequestException);
+        assertEquals("access_denied", ((TokenRequestException) callback.failure).getError());
+
+        Thread.sleep(100);
+        assertEquals(2, provider.getTokenRequestCount());
+    }
+
+    @Test
+    public void expiredTokenFromTheServer() throws Exception {
+        String deviceCode = provider.issueDeviceCode("expired_token");
+        RecordingCallback callback = new RecordingCallback();
+
+        DevicePoller.poll(client, deviceCode, INTERVAL_MILLIS, EXPIRES_IN_MILLIS, callback);
+
+        callback.await();
+
+        assertTrue(callback.failure instanceof TokenRequestException);
+        assertEquals("expired_token", ((TokenRequestException) callback.failure).getError());
+    }
+
+    @Test
+    public void expiresWhileStillPending() throws Exception {
+        String[] errors = new String[1000];
+        Arrays.fill(errors, "authorization_pending");
+
+        String deviceCode = provider.issueDeviceCode(errors);
+        RecordingCallback callback = new RecordingCallback();
+
+        DevicePoller.poll(client, deviceCode, 50, 500, callback);
+
+        callback.await();
+
+        assertNull(callback.tokens);
+        assertNotNull(callback.failure);
+        assertFalse(callback.failure instanceof TokenRequestException);
+
+        // Nothing is polled after the code has expired
+        int requestCount = provider.getTokenRequestCount();
+        assertTrue(requestCount + " polls", requestCount >= 1 && requestCount <= 10);
+
+        Thread.sleep(100);
+        assertEquals(requestCount, provider.getTokenRequestCount());
+    }
+
+    /**
+     * A server that's down shouldn't be polled in a tight loop, even if it said an interval of 0.
+     */
+    @Test
+    public void networkFailureBacksOffFromZero() throws Exception {
+        OIDCClient unreachableClient = newClient("http://127.0.0.1:" + closedPort() + "/token");
+        RecordingCallback callback = new RecordingCallback();
+
+        DevicePoller.Handle handle = DevicePoller.poll(unreachableClient, "device-code", 0,
+                EXPIRES_IN_MILLIS, callback);
+
+        try {
+            awaitIntervalChange(handle, 0);
+
+            assertEquals(DevicePoller.MIN_INTERVAL_MILLIS, handle.getIntervalMillis());
+            assertFalse(handle.isFinished());
+        } finally {
+            handle.cancel();
+        }
+    }
+
+    @Test
+    public void networkFailureUntilExpiry() throws Exception {
+        OIDCClient unreachableClient = newClient("http://127.0.0.1:" + closedPort() + "/token");
+        RecordingCallback callback = new RecordingCallback();
+
+        DevicePoller.Handle handle = DevicePoller.poll(unreachableClient, "device-code",
+                INTERVAL_MILLIS, 300, callback);
+
+        callback.await();
+
+        // The backed-off poll would have come after the expiry, so the expiry came first
+        assertEquals(DevicePoller.MIN_INTERVAL_MILLIS, handle.getIntervalMillis());
+        assertNull(callback.tokens);
+        assertEquals("The device code expired.", callback.failure.getMessage());
+    }
+
+    @Test
+    public void serverIntervalHasAMinimum() throws Exception {
+        DeviceAuthorizationResponse authorization = new GsonFactory().fromString("{"
+                + "\"device_code\":\"" + provider.issueDeviceCode() + "\","
+                + "\"user_code\":\"WDJB-MJHT\","
+                + "\"verification_uri\":\"https://example.com/device\","
+                + "\"interval\":0}", DeviceAuthorizationResponse.class);
+        RecordingCallback callback = new RecordingCallback();
+
+        DevicePoller.Handle handle = DevicePoller.poll(client, authorization, callback);
+
+        try {
+            assertEquals(DevicePoller.MIN_INTERVAL_MILLIS, handle.getIntervalMillis());
+        } finally {
+            handle.cancel();
+        }
+    }
+
+    private OIDCClient newClient(String tokenServerUrl) {
+        return new OIDCClient.Builder(MockProvider.CLIENT_ID)
+                .setIssuer(provider.getIssuer())
+                .setClientSecret(MockProvider.CLIENT_SECRET)
+                .setRedirectUrl(MockProvider.REDIRECT_URL)
+                .setAuthorizationServerUrl(provider.getAuthorizationServerUrl())
+                .setTokenServerUrl(tokenServerUrl)
+                .build();
+    }
+
+    private static int closedPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    private static void awaitIntervalChange(DevicePoller.Handle handle, long initialMillis)
+            throws InterruptedException {
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+
+        while (handle.getIntervalMillis() == initialMillis) {
+            assertTrue("The interval didn't change", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static class RecordingCallback implements DevicePoller.Callback {
+
+        private final CountDownLatch called = new CountDownLatch(1);
+
+        volatile TokenResult tokens;
+        volatile IOException failure;
+
+        @Override
+        public void onTokens(TokenResult response) {
+            tokens = response;
+            called.countDown();
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            failure = e;
+            called.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("No callback", called.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+
+    }
+
+}
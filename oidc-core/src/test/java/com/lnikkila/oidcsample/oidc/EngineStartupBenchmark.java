@@ -0,0 +1,152 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares {@link GoogleClientEngine} and {@link URLConnectionEngine} on the first Authorization
+ * Code exchange in a fresh JVM: how long building the client and making the request takes, and
+ * how many classes get loaded for it. Every sample runs in its own JVM so that class loading is
+ * really cold.
+ *
+ * Run with `java -cp <test classpath> com.lnikkila.oidcsample.oidc.EngineStartupBenchmark [runs]`.
+ *
+ * Like in {@link WarmUpBenchmark}, the token server is a canned response so that it doesn't load
+ * any of the classes being measured.
+ */
+public class EngineStartupBenchmark {
+
+    // The same dummy-signed ID Token as in WarmUpBenchmark
+    private static final String ID_TOKEN = "eyJhbGciOiJSUzI1NiIsInR5cCI6IkpXVCJ9."
+            + "eyJpc3MiOiJodHRwOi8vMTI3LjAuMC4xIiwic3ViIjoiMSIsImF1ZCI6ImJlbmNoIiwiaWF0IjoxNT"
+            + "AwMDAwMDAwLCJleHAiOjQxMDI0NDQ4MDB9.c2ln";
+
+    private static final String TOKEN_RESPONSE = "{\"access_token\":\"a\",\"token_type\":"
+            + "\"Bearer\",\"expires_in\":3600,\"refresh_token\":\"r\",\"id_token\":\""
+            + ID_TOKEN + "\"}";
+
+    private static final String[] ENGINES = {"google", "urlconnection"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && Arrays.asList(ENGINES).contains(args[0])) {
+            runSample(args[0]);
+            return;
+        }
+
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+
+        for (String engine : ENGINES) {
+            List<Long> millis = new ArrayList<>();
+            List<Long> classes = new ArrayList<>();
+
+            for (int i = 0; i < runs; i++) {
+                long[] sample = forkSample(engine);
+                millis.add(sample[0]);
+                classes.add(sample[1]);
+            }
+
+            System.out.println(String.format(Locale.US,
+                    "%s: first requestTokens(), median of %d JVMs: %d ms, %d classes loaded",
+                    engine, runs, median(millis), median(classes)));
+        }
+    }
+
+    private static void runSample(String engineName) throws Exception {
+        HttpServer server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/token", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream input = exchange.getRequestBody();
+                while (input.read() != -1) {
+                    // Drain the request
+                }
+
+                byte[] body = TOKEN_RESPONSE.getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+
+                OutputStream output = exchange.getResponseBody();
+                output.write(body);
+                output.close();
+            }
+        });
+        server.start();
+
+        String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+
+        long classesBefore = classLoading.getTotalLoadedClassCount();
+        long start = System.nanoTime();
+
+        // Building the client is part of it, the engines need different classes for that too
+        OIDCClient client = new OIDCClient.Builder("bench")
+                .setClientSecret("secret")
+                .setRedirectUrl("app://bench")
+                .setAuthorizationServerUrl(baseUrl + "/authorize")
+                .setTokenServerUrl(baseUrl + "/token")
+                .setEngine(engineName.equals("google")
+                        ? GoogleClientEngine.INSTANCE
+                        : new URLConnectionEngine())
+                .build();
+        client.requestTokens("code");
+
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        long loadedClasses = classLoading.getTotalLoadedClassCount() - classesBefore;
+
+        server.stop(0);
+
+        System.out.println(elapsedMillis + " " + loadedClasses);
+    }
+
+    private static long[] forkSample(String engine) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+                + "java";
+
+        Process process = new ProcessBuilder(Arrays.asList(java, "-cp",
+                System.getProperty("java.class.path"), EngineStartupBenchmark.class.getName(),
+                engine))
+                .redirectErrorStream(true)
+                .start();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                process.getInputStream(), "UTF-8"));
+        String line;
+        String last = null;
+
+        while ((line = reader.readLine()) != null) {
+            last = line;
+        }
+
+        if (process.waitFor() != 0 || last == null) {
+            throw new IOException("Sample failed: " + last);
+        }
+
+        String[] parts = last.trim().split(" ");
+        return new long[] {Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+}
@@ -0,0 +1,253 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.github.kevinsawicki.http.HttpRequest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Makes many concurrent requests with the same expired token against a stub API server, and checks
+ * that the token is only invalidated and renewed once.
+ */
+public class GenerationalTokenCacheTest {
+
+    private static final int CONCURRENCY = 32;
+
+    private HttpServer server;
+    private String url;
+
+    // The only token the server accepts
+    private volatile String validToken;
+
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final AtomicInteger invalidations = new AtomicInteger();
+
+    private GenerationalTokenCache tokens;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/api", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+                int status = ("Bearer " + validToken).equals(authorization) ? 200 : 401;
+
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        url = "http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/api";
+
+        tokens = new GenerationalTokenCache(new GenerationalTokenCache.TokenSource() {
+            @Override
+            public String getToken() throws IOException {
+                // Renewing takes a while, so the other failures pile up in the meantime
+                sleep(50);
+                return "token-" + fetches.incrementAndGet();
+            }
+
+            @Override
+            public void invalidate(String token) {
+                invalidations.incrementAndGet();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void concurrentFailuresRenewOnce() throws Exception {
+        final GenerationalTokenCache.Token expired = tokens.current();
+        assertEquals("token-1", expired.getValue());
+
+        // The server has moved on, so every request with the first token fails
+        validToken = "token-2";
+
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<>();
+
+        for (int i = 0; i < CONCURRENCY; i++) {
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    start.await();
+
+                    GenerationalTokenCache.Token token = expired;
+                    int code = get(token);
+
+                    if (code == 401) {
+                        token = tokens.renew(token);
+                        code = get(token);
+                    }
+
+                    return code;
+                }
+            }));
+        }
+
+        start.countDown();
+
+        for (Future<Integer> result : results) {
+            assertEquals(200, (int) result.get());
+        }
+
+        executor.shutdown();
+
+        assertEquals(1, invalidations.get());
+        assertEquals(2, fetches.get());
+        assertEquals(2, tokens.current().getGeneration());
+    }
+
+    @Test
+    public void lateFailureDoesNotInvalidateNewerToken() throws Exception {
+        GenerationalTokenCache.Token first = tokens.current();
+        GenerationalTokenCache.Token second = tokens.renew(first);
+
+        // A response for a request made with the first token arrives after the renewal
+        GenerationalTokenCache.Token afterLateFailure = tokens.renew(first);
+
+        assertEquals("token-2", second.getValue());
+        assertEquals(second.getValue(), afterLateFailure.getValue());
+        assertEquals(1, invalidations.get());
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void replacedTokenIsUsedRightAway() throws Exception {
+        GenerationalTokenCache.Token first = tokens.current();
+
+        // Refreshed somewhere else
+        tokens.replace("refreshed");
+        GenerationalTokenCache.Token replaced = tokens.current();
+
+        assertEquals("refreshed", replaced.getValue());
+        assertEquals(first.getGeneration() + 1, replaced.getGeneration());
+
+        // Replacing with the same token doesn't start a new generation
+        tokens.replace("refreshed");
+        assertEquals(replaced.getGeneration(), tokens.current().getGeneration());
+
+        // A late failure with the old token leaves the new one alone
+        assertEquals("refreshed", tokens.renew(first).getValue());
+        assertEquals(0, invalidations.get());
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void clearedTokenIsFetchedAgain() throws Exception {
+        GenerationalTokenCache.Token first = tokens.current();
+
+        // Invalidated somewhere else
+        tokens.clear();
+
+        assertEquals("token-2", tokens.current().getValue());
+        assertEquals("token-2", tokens.renew(first).getValue());
+        assertEquals(0, invalidations.get());
+    }
+
+    @Test
+    public void expiredTokenIsFetchedAgain() throws Exception {
+        final long now = System.currentTimeMillis();
+
+        tokens = new GenerationalTokenCache(new GenerationalTokenCache.TokenSource() {
+            @Override
+            public String getToken() {
+                return "token-" + fetches.incrementAndGet();
+            }
+
+            @Override
+            public void invalidate(String token) {
+                invalidations.incrementAndGet();
+            }
+        }, new GenerationalTokenCache.Expiry() {
+            @Override
+            public long getExpiresAt(String token) {
+                // The first token is within the margin, the second one has plenty of time left
+                return token.equals("token-1")
+                        ? now + GenerationalTokenCache.EXPIRY_MARGIN_MILLIS / 2
+                        : now + 60 * 60 * 1000;
+            }
+        });
+
+        // Whatever the source returns is used once, so an expired token can't cause a loop
+        assertEquals("token-1", tokens.current().getValue());
+        assertEquals("token-2", tokens.current().getValue());
+        assertEquals("token-2", tokens.current().getValue());
+        assertEquals(2, fetches.get());
+        assertEquals(1, invalidations.get());
+    }
+
+    /**
+     * Like the AccountManager, the source keeps returning the stored token until it's invalidated.
+     */
+    @Test
+    public void expiredTokenIsInvalidatedBeforeFetching() throws Exception {
+        final long now = System.currentTimeMillis();
+        final List<String> invalidated = new ArrayList<>();
+
+        tokens = new GenerationalTokenCache(new GenerationalTokenCache.TokenSource() {
+            @Override
+            public String getToken() {
+                fetches.incrementAndGet();
+                return invalidated.contains("stale") ? "fresh" : "stale";
+            }
+
+            @Override
+            public void invalidate(String token) {
+                invalidated.add(token);
+            }
+        }, new GenerationalTokenCache.Expiry() {
+            @Override
+            public long getExpiresAt(String token) {
+                return token.equals("stale") ? now - 1000 : now + 60 * 60 * 1000;
+            }
+        });
+
+        assertEquals("stale", tokens.current().getValue());
+        assertEquals("fresh", tokens.current().getValue());
+        assertEquals("fresh", tokens.current().getValue());
+        assertEquals(Collections.singletonList("stale"), invalidated);
+        assertEquals(2, fetches.get());
+    }
+
+    private int get(GenerationalTokenCache.Token token) throws IOException {
+        return OIDCUtils.prepareApiRequest(HttpRequest.get(url), token.getValue()).code();
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.api.client.json.webtoken.JsonWebToken;
+import com.google.api.client.util.Base64;
+import com.lnikkila.oidcsample.oidc.mock.MockProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the verification of front-channel ID Tokens: the `c_hash` of the Hybrid Flow, and the
+ * signature and issuer checks against the MockProvider's JWKS.
+ */
+public class IdTokenVerificationTest {
+
+    private static final String CODE = "SplxlOBeZQQYbYS6WxSbIA";
+    private static final String KEY_ID = "mock-key";
+
+    private static final JsonFactory JSON_FACTORY = new GsonFactory();
+
+    private MockProvider provider;
+    private OIDCClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        provider = new MockProvider().start();
+
+        client = new OIDCClient.Builder(MockProvider.CLIENT_ID)
+                .setIssuer(provider.getIssuer())
+                .setRedirectUrl(MockProvider.REDIRECT_URL)
+                .setAuthorizationServerUrl(provider.getAuthorizationServerUrl())
+                .setTokenServerUrl(provider.getTokenServerUrl())
+                .setJwksUrl(provider.getJwksUrl())
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        provider.stop();
+    }
+
+    @Test
+    public void codeHashWithEveryHashSize() throws Exception {
+        for (String algorithm : new String[] {"RS256", "RS384", "RS512"}) {
+            String idToken = sign(algorithm, codeHash(algorithm, CODE), provider.getIssuer(),
+                    providerKey());
+
+            assertTrue(algorithm, OIDCUtils.isValidCodeHash(idToken, CODE));
+            assertFalse(algorithm, OIDCUtils.isValidCodeHash(idToken, CODE + "x"));
+        }
+    }
+
+    @Test
+    public void codeHashOfTheWrongSize() throws Exception {
+        // An RS256 token with a hash made with SHA-512
+        String idToken = sign("RS256", codeHash("RS512", CODE), provider.getIssuer(),
+                providerKey());
+
+        assertFalse(OIDCUtils.isValidCodeHash(idToken, CODE));
+    }
+
+    @Test
+    public void missingCodeHash() throws Exception {
+        String idToken = sign("RS256", null, provider.getIssuer(), providerKey());
+
+        assertFalse(OIDCUtils.isValidCodeHash(idToken, CODE));
+    }
+
+    @Test
+    public void signedByTheProvider() throws Exception {
+        for (String algorithm : new String[] {"RS256", "RS384", "RS512"}) {
+            String idToken = sign(algorithm, codeHash(algorithm, CODE), provider.getIssuer(),
+                    providerKey());
+
+            assertTrue(algorithm, client.canVerifySignature(idToken));
+            assertTrue(algorithm, client.isValidSignedIdToken(idToken));
+        }
+
+        assertTrue(client.isValidSignedIdToken(provider.signIdToken(MockProvider.SUBJECT,
+                Collections.<String, Object>singletonMap("c_hash",
+                        MockProvider.leftHalfHash(CODE)))));
+    }
+
+    /**
+     * The attack the signature check is for: a token with a correct `c_hash` that anyone could
+     * have made.
+     */
+    @Test
+    public void forgedWithAMatchingCodeHash() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        PrivateKey attackerKey = generator.generateKeyPair().getPrivate();
+
+        String idToken = sign("RS256", codeHash("RS256", CODE), provider.getIssuer(),
+                attackerKey);
+
+        assertTrue(OIDCUtils.isValidCodeHash(idToken, CODE));
+        assertTrue(client.isValidIdToken(idToken));
+        assertFalse(client.isValidSignedIdToken(idToken));
+    }
+
+    @Test
+    public void tamperedPayload() throws Exception {
+        String idToken = provider.signIdToken(MockProvider.SUBJECT, null);
+        String[] parts = idToken.split("\\.");
+
+        JsonWebToken.Payload payload = JSON_FACTORY.fromString(
+                new String(Base64.decodeBase64(parts[1]), "UTF-8"), JsonWebToken.Payload.class);
+        payload.setSubject("someone else");
+
+        String tampered = parts[0] + "."
+                + Base64.encodeBase64URLSafeString(JSON_FACTORY.toByteArray(payload)) + "."
+                + parts[2];
+
+        assertFalse(client.isValidSignedIdToken(tampered));
+    }
+
+    @Test
+    public void wrongIssuer() throws Exception {
+        String idToken = sign("RS256", null, "https://evil.example.com", providerKey());
+
+        assertFalse(client.isValidSignedIdToken(idToken));
+    }
+
+    @Test
+    public void unsupportedAlgorithm() throws Exception {
+        String idToken = sign("RS256", null, provider.getIssuer(), providerKey());
+        String[] parts = idToken.split("\\.");
+        String header = Base64.encodeBase64URLSafeString(
+                "{\"alg\":\"none\",\"typ\":\"JWT\"}".getBytes("UTF-8"));
+
+        String unsigned = header + "." + parts[1] + ".";
+
+        assertFalse(client.canVerifySignature(unsigned));
+        assertFalse(client.isValidSignedIdToken(unsigned));
+    }
+
+    @Test
+    public void withoutJwks() throws Exception {
+        OIDCClient clientWithoutJwks = new OIDCClient.Builder(MockProvider.CLIENT_ID)
+                .setIssuer(provider.getIssuer())
+                .setRedirectUrl(MockProvider.REDIRECT_URL)
+                .setAuthorizationServerUrl(provider.getAuthorizationServerUrl())
+                .setTokenServerUrl(provider.getTokenServerUrl())
+                .build();
+
+        String idToken = provider.signIdToken(MockProvider.SUBJECT, null);
+
+        assertFalse(clientWithoutJwks.canVerifySignature(idToken));
+        assertFalse(clientWithoutJwks.isValidSignedIdToken(idToken));
+    }
+
+    private PrivateKey providerKey() {
+        return provider.getKeyPair().getPrivate();
+    }
+
+    private static String codeHash(String algorithm, String code) throws Exception {
+        String digestAlgorithm = "SHA-" + algorithm.substring(2);
+        byte[] digest = MessageDigest.getInstance(digestAlgorithm)
+                .digest(code.getBytes("US-ASCII"));
+
+        return Base64.encodeBase64URLSafeString(Arrays.copyOf(digest, digest.length / 2));
+    }
+
+    /**
+     * Signs an ID Token for the mock client with the given algorithm and key.
+     */
+    private static String sign(String algorithm, String codeHash, String issuer, PrivateKey key)
+            throws IOException, GeneralSecurityException {
+
+        long now = System.currentTimeMillis() / 1000;
+
+        JsonWebSignature.Header header = new JsonWebSignature.Header()
+                .setAlgorithm(algorithm)
+                .setType("JWT")
+                .setKeyId(KEY_ID);
+
+        JsonWebToken.Payload payload = new JsonWebToken.Payload()
+                .setIssuer(issuer)
+                .setSubject(MockProvider.SUBJECT)
+                .setAudience(MockProvider.CLIENT_ID)
+                .setIssuedAtTimeSeconds(now)
+                .setExpirationTimeSeconds(now + 3600);
+
+        if (codeHash != null) {
+            payload.set("c_hash", codeHash);
+        }
+
+        String content = Base64.encodeBase64URLSafeString(JSON_FACTORY.toByteArray(header)) + "."
+                + Base64.encodeBase64URLSafeString(JSON_FACTORY.toByteArray(payload));
+
+        Signature signature = Signature.getInstance("SHA" + algorithm.substring(2) + "withRSA");
+        signature.initSign(key);
+        signature.update(content.getBytes("US-ASCII"));
+
+        return content + "." + Base64.encodeBase64URLSafeString(signature.sign());
+    }
+
+}
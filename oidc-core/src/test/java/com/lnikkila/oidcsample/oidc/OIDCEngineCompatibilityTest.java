@@ -0,0 +1,198 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.google.api.client.json.gson.GsonFactory;
+import com.lnikkila.oidcsample.oidc.mock.MockProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the same requests through {@link GoogleClientEngine} and {@link URLConnectionEngine}
+ * against the embedded MockProvider, and checks that the results and errors are the same.
+ */
+public class OIDCEngineCompatibilityTest {
+
+    private static final String[] SCOPES = {"openid", "profile", "offline_access"};
+
+    private MockProvider provider;
+    private OIDCClient googleClient;
+    private OIDCClient urlConnectionClient;
+
+    @Before
+    public void setUp() throws IOException {
+        provider = new MockProvider().start();
+
+        googleClient = newClient(GoogleClientEngine.INSTANCE, MockProvider.CLIENT_SECRET);
+        urlConnectionClient = newClient(new URLConnectionEngine(), MockProvider.CLIENT_SECRET);
+    }
+
+    @After
+    public void tearDown() {
+        provider.stop();
+    }
+
+    @Test
+    public void requestTokens() throws IOException {
+        TokenResult expected = googleClient.requestTokens(provider.issueCode(SCOPES));
+        TokenResult actual = urlConnectionClient.requestTokens(provider.issueCode(SCOPES));
+
+        assertSameResponse(expected, actual);
+    }
+
+    @Test
+    public void refreshTokens() throws IOException {
+        String refreshToken = provider.issueRefreshToken(SCOPES);
+
+        TokenResult expected = googleClient.refreshTokens(refreshToken);
+        TokenResult actual = urlConnectionClient.refreshTokens(refreshToken);
+
+        assertSameResponse(expected, actual);
+        assertEquals(refreshToken, actual.getRefreshToken());
+    }
+
+    @Test
+    public void refreshTokensWithScopesAndRotation() throws IOException {
+        provider.setRefreshTokenRotation(true);
+
+        String[] scopes = {"openid"};
+        String refreshToken = provider.issueRefreshToken(SCOPES);
+
+        TokenResult expected = googleClient.refreshTokens(refreshToken, scopes, null);
+        TokenResult actual = urlConnectionClient.refreshTokens(expected.getRefreshToken(),
+                scopes, "https://api.example.com");
+
+        assertSameResponse(expected, actual);
+        assertEquals("openid", actual.getScope());
+        assertFalse(expected.getRefreshToken().equals(actual.getRefreshToken()));
+    }
+
+    @Test
+    public void invalidCode() throws IOException {
+        TokenRequestException expected = requestTokensFailure(googleClient, "no-such-code");
+        TokenRequestException actual = requestTokensFailure(urlConnectionClient, "no-such-code");
+
+        assertSameException(expected, actual);
+        assertEquals(400, actual.getStatusCode());
+        assertEquals("invalid_grant", actual.getError());
+    }
+
+    /**
+     * The JDK's HttpURLConnection drops the body of a 401 to a streamed request, which is what
+     * GoogleClientEngine's NetHttpTransport sends, so only the status can be compared here.
+     */
+    @Test
+    public void wrongClientSecret() throws IOException {
+        googleClient = newClient(GoogleClientEngine.INSTANCE, "wrong-secret");
+        urlConnectionClient = newClient(new URLConnectionEngine(), "wrong-secret");
+
+        TokenRequestException expected =
+                requestTokensFailure(googleClient, provider.issueCode(SCOPES));
+        TokenRequestException actual =
+                requestTokensFailure(urlConnectionClient, provider.issueCode(SCOPES));
+
+        assertEquals(401, expected.getStatusCode());
+        assertEquals(expected.getStatusCode(), actual.getStatusCode());
+        assertEquals(expected.getStatusMessage(), actual.getStatusMessage());
+        assertTrue(actual.getContent().contains("invalid_client"));
+        assertEquals("invalid_client", actual.getError());
+    }
+
+    @Test
+    public void getUserInfo() throws IOException {
+        String idToken = googleClient.requestTokens(provider.issueCode(SCOPES)).getIdToken();
+
+        Map expected = googleClient.getUserInfo(idToken);
+        Map actual = urlConnectionClient.getUserInfo(idToken);
+
+        assertEquals(expected, actual);
+        assertEquals(MockProvider.SUBJECT, actual.get("sub"));
+    }
+
+    @Test
+    public void getUserInfoWithInvalidToken() {
+        assertUserInfoFails(googleClient);
+        assertUserInfoFails(urlConnectionClient);
+    }
+
+    private OIDCClient newClient(OIDCEngine engine, String clientSecret) {
+        return new OIDCClient.Builder(MockProvider.CLIENT_ID)
+                .setIssuer(provider.getIssuer())
+                .setClientSecret(clientSecret)
+                .setRedirectUrl(MockProvider.REDIRECT_URL)
+                .setScopes(SCOPES)
+                .setAuthorizationServerUrl(provider.getAuthorizationServerUrl())
+                .setTokenServerUrl(provider.getTokenServerUrl())
+                .setUserInfoUrl(provider.getUserInfoUrl())
+                .setEngine(engine)
+                .build();
+    }
+
+    private static TokenRequestException requestTokensFailure(OIDCClient client, String code)
+            throws IOException {
+
+        try {
+            client.requestTokens(code);
+        } catch (TokenRequestException e) {
+            return e;
+        }
+
+        fail("Expected a TokenRequestException.");
+        return null;
+    }
+
+    private static void assertUserInfoFails(OIDCClient client) {
+        try {
+            client.getUserInfo("not-a-token");
+            fail("Expected an IOException.");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * The tokens themselves differ between requests, but everything else has to match.
+     */
+    private static void assertSameResponse(TokenResult expected, TokenResult actual)
+            throws IOException {
+
+        assertEquals(expected.getParameters().keySet(), actual.getParameters().keySet());
+        assertEquals(expected.getTokenType(), actual.getTokenType());
+        assertEquals(expected.getExpiresInSeconds(), actual.getExpiresInSeconds());
+        assertEquals(expected.getScope(), actual.getScope());
+        assertEquals(expected.getRefreshToken() == null, actual.getRefreshToken() == null);
+        assertNotNull(actual.getAccessToken());
+
+        assertEquals(subjectOf(expected), subjectOf(actual));
+    }
+
+    /**
+     * google-oauth-client re-serialises the error, so the content only has to say the same thing.
+     */
+    private static void assertSameException(TokenRequestException expected,
+                                            TokenRequestException actual) {
+
+        assertEquals(expected.getStatusCode(), actual.getStatusCode());
+        assertEquals(expected.getStatusMessage(), actual.getStatusMessage());
+        assertNotNull(actual.getError());
+        assertTrue(expected.getContent().contains(expected.getError()));
+        assertTrue(actual.getContent().contains(actual.getError()));
+        assertEquals(expected.getError(), actual.getError());
+        assertEquals(expected.getErrorDescription(), actual.getErrorDescription());
+    }
+
+    private static String subjectOf(TokenResult response) throws IOException {
+        return IdToken.parse(new GsonFactory(), response.getIdToken()).getPayload().getSubject();
+    }
+
+}
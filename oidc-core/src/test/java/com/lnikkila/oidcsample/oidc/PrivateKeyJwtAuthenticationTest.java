@@ -0,0 +1,215 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.UrlEncodedContent;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.api.client.json.webtoken.JsonWebToken;
+import com.google.api.client.util.Data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the client assertions: their signatures and claims, and when a cached one is reused.
+ */
+public class PrivateKeyJwtAuthenticationTest {
+
+    private static final String CLIENT_ID = "mock-client";
+    private static final String AUDIENCE = "https://server.example.com/token";
+    private static final String KEY_ID = "client-key";
+
+    private long now = 1500000000;
+    private PrivateKeyJwtAuthentication.Clock clock;
+
+    @Before
+    public void setUp() {
+        clock = new PrivateKeyJwtAuthentication.Clock() {
+            @Override
+            public long seconds() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void rs256AssertionVerifiesWithThePublicKey() throws Exception {
+        KeyPair keyPair = generateKeyPair("RSA");
+        PrivateKeyJwtAuthentication authentication = new PrivateKeyJwtAuthentication(CLIENT_ID,
+                AUDIENCE, keyPair.getPrivate(), KEY_ID, false, clock);
+
+        JsonWebSignature assertion = JsonWebSignature.parse(new GsonFactory(),
+                authentication.getAssertion());
+
+        assertEquals("RS256", assertion.getHeader().getAlgorithm());
+        assertEquals(KEY_ID, assertion.getHeader().getKeyId());
+        assertTrue(verify("SHA256withRSA", keyPair.getPublic(), assertion,
+                assertion.getSignatureBytes()));
+        assertClaims(assertion);
+    }
+
+    @Test
+    public void es256SignatureIsInJoseFormat() throws Exception {
+        KeyPair keyPair = generateKeyPair("EC");
+        PrivateKeyJwtAuthentication authentication = new PrivateKeyJwtAuthentication(CLIENT_ID,
+                AUDIENCE, keyPair.getPrivate(), null, false, clock);
+
+        // Enough tries that a DER signature would have shown up with a length of its own
+        for (int i = 0; i < 20; i++) {
+            JsonWebSignature assertion = JsonWebSignature.parse(new GsonFactory(),
+                    authentication.getAssertion());
+            byte[] signature = assertion.getSignatureBytes();
+
+            assertEquals("ES256", assertion.getHeader().getAlgorithm());
+            assertEquals(64, signature.length);
+            assertTrue(verify("SHA256withECDSA", keyPair.getPublic(), assertion,
+                    joseToDer(signature)));
+            assertClaims(assertion);
+        }
+    }
+
+    @Test
+    public void otherKeysAreRejected() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp384r1"));
+
+        try {
+            new PrivateKeyJwtAuthentication(CLIENT_ID, AUDIENCE,
+                    generator.generateKeyPair().getPrivate(), null, true);
+            throw new AssertionError("A P-384 key was accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void reusedWithinTheWindow() throws Exception {
+        PrivateKeyJwtAuthentication authentication = new PrivateKeyJwtAuthentication(CLIENT_ID,
+                AUDIENCE, generateKeyPair("EC").getPrivate(), null, true, clock);
+
+        String first = authentication.getAssertion();
+
+        now += PrivateKeyJwtAuthentication.LIFETIME_SECONDS
+                - PrivateKeyJwtAuthentication.REUSE_MARGIN_SECONDS - 1;
+        assertEquals(first, authentication.getAssertion());
+
+        // Too close to its expiry now
+        now += 1;
+        String second = authentication.getAssertion();
+
+        assertNotEquals(first, second);
+        assertEquals(now, JsonWebSignature.parse(new GsonFactory(), second).getPayload()
+                .getIssuedAtTimeSeconds().longValue());
+        assertEquals(second, authentication.getAssertion());
+    }
+
+    @Test
+    public void notReusedUnlessEnabled() throws Exception {
+        PrivateKeyJwtAuthentication authentication = new PrivateKeyJwtAuthentication(CLIENT_ID,
+                AUDIENCE, generateKeyPair("EC").getPrivate(), null, false, clock);
+
+        JsonWebSignature first = JsonWebSignature.parse(new GsonFactory(),
+                authentication.getAssertion());
+        JsonWebSignature second = JsonWebSignature.parse(new GsonFactory(),
+                authentication.getAssertion());
+
+        assertNotEquals(first.getPayload().getJwtId(), second.getPayload().getJwtId());
+    }
+
+    @Test
+    public void interceptAddsTheAssertion() throws Exception {
+        PrivateKeyJwtAuthentication authentication = new PrivateKeyJwtAuthentication(CLIENT_ID,
+                AUDIENCE, generateKeyPair("EC").getPrivate(), null, true, clock);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("grant_type", "refresh_token");
+
+        HttpRequest request = new NetHttpTransport().createRequestFactory()
+                .buildPostRequest(new GenericUrl(AUDIENCE), new UrlEncodedContent(params));
+        authentication.intercept(request);
+
+        Map<String, Object> data = Data.mapOf(UrlEncodedContent.getContent(request).getData());
+
+        assertEquals(CLIENT_ID, data.get("client_id"));
+        assertEquals(PrivateKeyJwtAuthentication.ASSERTION_TYPE,
+                data.get("client_assertion_type"));
+        assertEquals(authentication.getAssertion(), data.get("client_assertion"));
+        assertFalse(request.getHeaders().containsKey("authorization"));
+    }
+
+    private void assertClaims(JsonWebSignature assertion) {
+        JsonWebToken.Payload payload = assertion.getPayload();
+
+        assertEquals("JWT", assertion.getHeader().getType());
+        assertEquals(CLIENT_ID, payload.getIssuer());
+        assertEquals(CLIENT_ID, payload.getSubject());
+        assertEquals(Collections.singletonList(AUDIENCE), payload.getAudienceAsList());
+        assertEquals(now, payload.getIssuedAtTimeSeconds().longValue());
+        assertEquals(now + PrivateKeyJwtAuthentication.LIFETIME_SECONDS,
+                payload.getExpirationTimeSeconds().longValue());
+        assertNotNull(payload.getJwtId());
+    }
+
+    private static KeyPair generateKeyPair(String algorithm) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+
+        if (algorithm.equals("EC")) {
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+        } else {
+            generator.initialize(2048);
+        }
+
+        return generator.generateKeyPair();
+    }
+
+    private static boolean verify(String algorithm, PublicKey key, JsonWebSignature jws,
+                                  byte[] signatureBytes) throws Exception {
+
+        Signature signature = Signature.getInstance(algorithm);
+        signature.initVerify(key);
+        signature.update(jws.getSignedContentBytes());
+        return signature.verify(signatureBytes);
+    }
+
+    /**
+     * Turns a JOSE ECDSA signature, R and S as 32 bytes each, back into the DER sequence that
+     * java.security verifies.
+     */
+    static byte[] joseToDer(byte[] jose) {
+        byte[] r = new BigInteger(1, Arrays.copyOfRange(jose, 0, 32)).toByteArray();
+        byte[] s = new BigInteger(1, Arrays.copyOfRange(jose, 32, 64)).toByteArray();
+
+        ByteArrayOutputStream der = new ByteArrayOutputStream();
+        der.write(0x30);
+        der.write(2 + r.length + 2 + s.length);
+        der.write(0x02);
+        der.write(r.length);
+        der.write(r, 0, r.length);
+        der.write(0x02);
+        der.write(s.length);
+        der.write(s, 0, s.length);
+
+        return der.toByteArray();
+    }
+
+}
@@ -0,0 +1,170 @@
+package com.lnikkila.oidcsample.oidc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the refill, burst and priorities of the rate limiter against the real clock. The bounds
+ * on how long a permit takes are loose, since only the order of magnitude matters.
+ */
+public class RateLimiterTest {
+
+    private static final String HOST = "api.example.com";
+
+    // The longest an acquire that doesn't have to wait may take
+    private static final long IMMEDIATE_MILLIS = 30;
+
+    private static final long TIMEOUT_MILLIS = 5 * 1000;
+
+    @Test
+    public void burstThenWait() throws Exception {
+        RateLimiter limiter = new RateLimiter(10, 3);
+
+        for (int i = 0; i < 3; i++) {
+            assertImmediate(limiter, RateLimiter.Priority.FOREGROUND);
+        }
+
+        // Out of permits, the next one comes after 100 ms
+        assertWaitsAtLeast(limiter, 80);
+    }
+
+    @Test
+    public void refillsAtTheRate() throws Exception {
+        RateLimiter limiter = new RateLimiter(10, 3);
+
+        for (int i = 0; i < 3; i++) {
+            limiter.acquire(HOST, RateLimiter.Priority.FOREGROUND);
+        }
+
+        // Enough for two permits, with a bit of the third
+        Thread.sleep(250);
+
+        assertImmediate(limiter, RateLimiter.Priority.FOREGROUND);
+        assertImmediate(limiter, RateLimiter.Priority.FOREGROUND);
+        assertWaitsAtLeast(limiter, 20);
+    }
+
+    @Test
+    public void refillStopsAtTheBurst() throws Exception {
+        RateLimiter limiter = new RateLimiter(20, 2);
+
+        limiter.acquire(HOST, RateLimiter.Priority.FOREGROUND);
+        limiter.acquire(HOST, RateLimiter.Priority.FOREGROUND);
+
+        // Long enough for ten permits, but only two fit
+        Thread.sleep(500);
+
+        assertImmediate(limiter, RateLimiter.Priority.FOREGROUND);
+        assertImmediate(limiter, RateLimiter.Priority.FOREGROUND);
+        assertWaitsAtLeast(limiter, 30);
+    }
+
+    @Test
+    public void hostsHaveTheirOwnBuckets() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, 1);
+
+        limiter.acquire(HOST, RateLimiter.Priority.FOREGROUND);
+
+        long start = System.nanoTime();
+        limiter.acquire("other.example.com", RateLimiter.Priority.FOREGROUND);
+
+        assertTrue(millisSince(start) < IMMEDIATE_MILLIS);
+    }
+
+    @Test
+    public void foregroundGoesBeforeQueuedBackground() throws Exception {
+        final RateLimiter limiter = new RateLimiter(5, 1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        limiter.acquire(HOST, RateLimiter.Priority.BACKGROUND);
+
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            threads.add(start(limiter, RateLimiter.Priority.BACKGROUND, "background-" + i, order));
+        }
+
+        // Only queue the foreground request once all the background ones are waiting
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+
+        while (queueDepth(limiter, RateLimiter.Priority.BACKGROUND) < 3) {
+            assertTrue("The background requests didn't queue", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+
+        threads.add(start(limiter, RateLimiter.Priority.FOREGROUND, "foreground", order));
+
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT_MILLIS);
+        }
+
+        assertEquals(4, order.size());
+        assertEquals("foreground", order.get(0));
+
+        RateLimiter.Metrics metrics = limiter.getMetrics().get(HOST);
+        assertEquals(1, metrics.getAcquiredCount(RateLimiter.Priority.FOREGROUND));
+        assertEquals(4, metrics.getAcquiredCount(RateLimiter.Priority.BACKGROUND));
+        assertEquals(0, metrics.getQueueDepth(RateLimiter.Priority.BACKGROUND));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rateMustBePositive() {
+        new RateLimiter(0, 1);
+    }
+
+    private static Thread start(final RateLimiter limiter, final RateLimiter.Priority priority,
+                                final String name, final List<String> order) {
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limiter.acquire(HOST, priority);
+                    order.add(name);
+                } catch (InterruptedException e) {
+                    // The test fails on the missing entry
+                }
+            }
+        });
+        thread.start();
+
+        return thread;
+    }
+
+    private static int queueDepth(RateLimiter limiter, RateLimiter.Priority priority) {
+        RateLimiter.Metrics metrics = limiter.getMetrics().get(HOST);
+        return metrics != null ? metrics.getQueueDepth(priority) : 0;
+    }
+
+    private static void assertImmediate(RateLimiter limiter, RateLimiter.Priority priority)
+            throws InterruptedException {
+
+        long start = System.nanoTime();
+        limiter.acquire(HOST, priority);
+        long waited = millisSince(start);
+
+        assertTrue("Waited " + waited + " ms", waited < IMMEDIATE_MILLIS);
+    }
+
+    private static void assertWaitsAtLeast(RateLimiter limiter, long millis)
+            throws InterruptedException {
+
+        long start = System.nanoTime();
+        limiter.acquire(HOST, RateLimiter.Priority.FOREGROUND);
+        long waited = millisSince(start);
+
+        assertTrue("Waited " + waited + " ms", waited >= millis);
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.lnikkila.oidcsample.oidc;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the backoff delays, and that concurrent failures neither get lost nor pile up.
+ */
+public class RefreshBackoffTest {
+
+    private static final String ACCOUNT = "janedoe (248289761001)";
+    private static final int CONCURRENCY = 32;
+
+    private long now = 1000000;
+    private RefreshBackoff backoff;
+
+    @Before
+    public void setUp() {
+        backoff = new RefreshBackoff(new RefreshBackoff.Clock() {
+            @Override
+            public long millis() {
+                return now;
+            }
+        });
+    }
+
+    @Test
+    public void delaysDoubleUpToTheMaximum() {
+        assertEquals(0, backoff.getRemainingMillis(ACCOUNT));
+
+        for (int failure = 0; failure < 30; failure++) {
+            long expected = Math.min(RefreshBackoff.MAX_DELAY_MILLIS,
+                    RefreshBackoff.INITIAL_DELAY_MILLIS << Math.min(failure, 20));
+            long delay = backoff.recordFailure(ACCOUNT);
+
+            assertTrue("Delay " + delay + " for failure " + failure,
+                    delay >= expected * 0.8 && delay <= expected * 1.2);
+            assertEquals(delay, backoff.getRemainingMillis(ACCOUNT));
+
+            now += delay;
+            assertEquals(0, backoff.getRemainingMillis(ACCOUNT));
+        }
+
+        backoff.reset(ACCOUNT);
+
+        assertEquals(0, backoff.getFailureCount(ACCOUNT));
+        long delay = backoff.recordFailure(ACCOUNT);
+        assertTrue(delay <= RefreshBackoff.INITIAL_DELAY_MILLIS * 1.2);
+    }
+
+    @Test
+    public void accountsAreSeparate() {
+        backoff.recordFailure(ACCOUNT);
+
+        assertEquals(0, backoff.getRemainingMillis("someone else"));
+    }
+
+    @Test
+    public void concurrentFailuresAreAllCounted() throws Exception {
+        final int failuresPerThread = 100;
+
+        runConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (int i = 0; i < failuresPerThread; i++) {
+                    backoff.recordFailure(ACCOUNT);
+                }
+                return null;
+            }
+        });
+
+        assertEquals(CONCURRENCY * failuresPerThread, backoff.getFailureCount(ACCOUNT));
+    }
+
+    /**
+     * Callers that queue up on the refresh lock behind a failing refresh, like in the
+     * Authenticator, fail fast instead of each making the request and recording a failure.
+     */
+    @Test
+    public void waitersDontRepeatAFailedRefresh() throws Exception {
+        final Object refreshLock = new Object();
+        final AtomicInteger refreshes = new AtomicInteger();
+        final AtomicInteger failedFast = new AtomicInteger();
+
+        runConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                if (backoff.getRemainingMillis(ACCOUNT) > 0) {
+                    failedFast.incrementAndGet();
+                    return null;
+                }
+
+                synchronized (refreshLock) {
+                    if (backoff.getRemainingMillis(ACCOUNT) > 0) {
+                        failedFast.incrementAndGet();
+                        return null;
+                    }
+
+                    // The refresh fails after a while
+                    refreshes.incrementAndGet();
+                    Thread.sleep(10);
+                    backoff.recordFailure(ACCOUNT);
+                }
+                return null;
+            }
+        });
+
+        assertEquals(1, refreshes.get());
+        assertEquals(CONCURRENCY - 1, failedFast.get());
+        assertEquals(1, backoff.getFailureCount(ACCOUNT));
+    }
+
+    private static void runConcurrently(final Callable<Void> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < CONCURRENCY; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        return task.call();
+                    }
+                }));
+            }
+
+            start.countDown();
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+package com.lnikkila.oidcsample.oidc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks when the token broker's cache serves a cached token and when it loads a new one.
+ */
+public class SharedTokenCacheTest {
+
+    private static final String ACCOUNT = "user (1234)";
+    private static final String OTHER_ACCOUNT = "other (5678)";
+    private static final String TYPE = "id";
+
+    private final SharedTokenCache cache = new SharedTokenCache();
+
+    @Test
+    public void cachedUntilForgotten() throws Exception {
+        CountingLoader loader = new CountingLoader(0);
+
+        assertEquals("token-1", cache.get(ACCOUNT, TYPE, loader));
+        assertEquals("token-1", cache.get(ACCOUNT, TYPE, loader));
+        assertEquals("token-2", cache.get(ACCOUNT, "access", loader));
+
+        cache.forget(ACCOUNT);
+
+        assertEquals("token-3", cache.get(ACCOUNT, TYPE, loader));
+        assertEquals("token-4", cache.get(ACCOUNT, "access", loader));
+        assertEquals(4, loader.loads.get());
+    }
+
+    @Test
+    public void forgetOnlyDropsThatAccount() throws Exception {
+        CountingLoader loader = new CountingLoader(0);
+
+        cache.get(ACCOUNT, TYPE, loader);
+        cache.get(OTHER_ACCOUNT, TYPE, loader);
+
+        cache.forget(OTHER_ACCOUNT);
+
+        assertEquals("token-1", cache.get(ACCOUNT, TYPE, loader));
+        assertEquals("token-3", cache.get(OTHER_ACCOUNT, TYPE, loader));
+    }
+
+    @Test
+    public void clearDropsEverything() throws Exception {
+        CountingLoader loader = new CountingLoader(0);
+
+        cache.get(ACCOUNT, TYPE, loader);
+        cache.get(OTHER_ACCOUNT, TYPE, loader);
+
+        cache.clear();
+
+        assertEquals("token-3", cache.get(ACCOUNT, TYPE, loader));
+        assertEquals("token-4", cache.get(OTHER_ACCOUNT, TYPE, loader));
+    }
+
+    @Test
+    public void expiringTokenIsLoadedAgain() throws Exception {
+        // Still valid, but within the margin
+        CountingLoader loader = new CountingLoader(System.currentTimeMillis()
+                + GenerationalTokenCache.EXPIRY_MARGIN_MILLIS - 1000);
+
+        assertEquals("token-1", cache.get(ACCOUNT, TYPE, loader));
+        assertEquals("token-2", cache.get(ACCOUNT, TYPE, loader));
+    }
+
+    @Test
+    public void validTokenIsCached() throws Exception {
+        CountingLoader loader = new CountingLoader(System.currentTimeMillis() + 60 * 60 * 1000);
+
+        assertEquals("token-1", cache.get(ACCOUNT, TYPE, loader));
+        assertEquals("token-1", cache.get(ACCOUNT, TYPE, loader));
+    }
+
+    @Test
+    public void missingTokenIsNotCached() throws Exception {
+        SharedTokenCache.Loader loader = new SharedTokenCache.Loader() {
+            @Override
+            public String load() {
+                return null;
+            }
+
+            @Override
+            public long getExpiresAt(String token) {
+                throw new AssertionError("Asked for the expiry of a missing token");
+            }
+        };
+
+        assertNull(cache.get(ACCOUNT, TYPE, loader));
+        assertEquals("token-1", cache.get(ACCOUNT, TYPE, new CountingLoader(0)));
+    }
+
+    /**
+     * A token that was loaded while the account's tokens were replaced may be the old one.
+     */
+    @Test
+    public void forgottenDuringLoadIsNotCached() throws Exception {
+        SharedTokenCache.Loader loader = new CountingLoader(0) {
+            @Override
+            public String load() throws IOException {
+                String token = super.load();
+
+                if (loads.get() == 1) {
+                    cache.forget(ACCOUNT);
+                }
+
+                return token;
+            }
+        };
+
+        assertEquals("token-1", cache.get(ACCOUNT, TYPE, loader));
+        assertEquals("token-2", cache.get(ACCOUNT, TYPE, loader));
+        assertEquals("token-2", cache.get(ACCOUNT, TYPE, loader));
+    }
+
+    @Test
+    public void concurrentMissesLoadOnce() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountingLoader loader = new CountingLoader(0) {
+            @Override
+            public String load() throws IOException {
+                try {
+                    // Loading takes a while, so the other callers pile up in the meantime
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+
+                return super.load();
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<String>> results = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        start.await();
+                        return cache.get(ACCOUNT, TYPE, loader);
+                    }
+                }));
+            }
+
+            start.countDown();
+
+            for (Future<String> result : results) {
+                assertEquals("token-1", result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, loader.loads.get());
+    }
+
+    private static class CountingLoader implements SharedTokenCache.Loader {
+
+        final AtomicInteger loads = new AtomicInteger();
+        private final long expiresAt;
+
+        CountingLoader(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+
+        @Override
+        public String load() throws IOException {
+            return "token-" + loads.incrementAndGet();
+        }
+
+        @Override
+        public long getExpiresAt(String token) {
+            return expiresAt;
+        }
+
+    }
+
+}
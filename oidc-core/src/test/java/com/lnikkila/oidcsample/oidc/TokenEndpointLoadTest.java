@@ -0,0 +1,128 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.github.kevinsawicki.http.HttpRequest;
+import com.google.api.client.auth.openidconnect.IdTokenResponse;
+import com.lnikkila.oidcsample.oidc.mock.LoadHarness;
+import com.lnikkila.oidcsample.oidc.mock.MockProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Load tests for the token paths against the embedded MockProvider. These mainly exist to catch
+ * scaling regressions, so they only assert that nothing failed and print the numbers.
+ */
+public class TokenEndpointLoadTest {
+
+    private static final String[] SCOPES = {"openid", "profile", "offline_access"};
+
+    private MockProvider provider;
+    private LoadHarness harness;
+
+    @Before
+    public void setUp() throws IOException {
+        provider = new MockProvider().start();
+        provider.setLatency(2, 8);
+
+        harness = LoadHarness.fromSystemProperties(32, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        provider.stop();
+    }
+
+    @Test
+    public void requestTokens() throws Exception {
+        LoadHarness.Report report = harness.run("requestTokens", new LoadHarness.Call() {
+            @Override
+            public void run(int worker) throws Exception {
+                OIDCUtils.requestTokens(provider.getTokenServerUrl(), MockProvider.REDIRECT_URL,
+                        MockProvider.CLIENT_ID, MockProvider.CLIENT_SECRET,
+                        provider.issueCode(SCOPES));
+            }
+        });
+
+        assertNoErrors(report);
+    }
+
+    @Test
+    public void refreshTokens() throws Exception {
+        final String refreshToken = provider.issueRefreshToken(SCOPES);
+
+        LoadHarness.Report report = harness.run("refreshTokens", new LoadHarness.Call() {
+            @Override
+            public void run(int worker) throws Exception {
+                OIDCUtils.refreshTokens(provider.getTokenServerUrl(), MockProvider.CLIENT_ID,
+                        MockProvider.CLIENT_SECRET, SCOPES, refreshToken);
+            }
+        });
+
+        assertNoErrors(report);
+    }
+
+    @Test
+    public void refreshTokensWithRotation() throws Exception {
+        provider.setRefreshTokenRotation(true);
+
+        // Every worker follows its own chain of Refresh Tokens, like separate devices would
+        final String[] refreshTokens = new String[harness.concurrency()];
+        for (int i = 0; i < refreshTokens.length; i++) {
+            refreshTokens[i] = provider.issueRefreshToken(SCOPES);
+        }
+
+        LoadHarness.Report report = harness.run("refreshTokens (rotating)",
+                new LoadHarness.Call() {
+                    @Override
+                    public void run(int worker) throws Exception {
+                        IdTokenResponse response = OIDCUtils.refreshTokens(
+                                provider.getTokenServerUrl(), MockProvider.CLIENT_ID,
+                                MockProvider.CLIENT_SECRET, SCOPES, refreshTokens[worker]);
+
+                        refreshTokens[worker] = response.getRefreshToken();
+                    }
+                });
+
+        assertNoErrors(report);
+    }
+
+    @Test
+    public void apiRequests() throws Exception {
+        final String idToken = OIDCUtils.refreshTokens(provider.getTokenServerUrl(),
+                MockProvider.CLIENT_ID, MockProvider.CLIENT_SECRET, SCOPES,
+                provider.issueRefreshToken(SCOPES)).getIdToken();
+
+        // The same kind of request APIUtility makes
+        LoadHarness.Report report = harness.run("API requests", new LoadHarness.Call() {
+            @Override
+            public void run(int worker) throws Exception {
+                HttpRequest request = new HttpRequest(provider.getUserInfoUrl(),
+                        HttpRequest.METHOD_GET);
+                request = OIDCUtils.prepareApiRequest(request, idToken);
+
+                if (!request.ok()) {
+                    throw new IOException(request.code() + " " + request.message());
+                }
+                request.body();
+            }
+        });
+
+        assertNoErrors(report);
+    }
+
+    private static void assertNoErrors(LoadHarness.Report report) {
+        System.out.println(report);
+
+        if (report.firstError != null) {
+            report.firstError.printStackTrace();
+        }
+
+        assertEquals(report.name + " had errors", 0, report.errors);
+    }
+
+}
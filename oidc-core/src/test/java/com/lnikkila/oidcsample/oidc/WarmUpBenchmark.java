@@ -0,0 +1,140 @@
+package com.lnikkila.oidcsample.oidc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures how long the first Authorization Code exchange in a fresh JVM takes, with and without
+ * {@link OIDCWarmUp} having run beforehand. Every sample runs in its own JVM so that class loading
+ * is really cold.
+ *
+ * Run with `java -cp <test classpath> com.lnikkila.oidcsample.oidc.WarmUpBenchmark [runs]`.
+ *
+ * The token server here is a canned response on purpose: the MockProvider would load most of the
+ * google-oauth-client classes itself and make the "cold" case warm.
+ */
+public class WarmUpBenchmark {
+
+    // Header {"alg":"RS256","typ":"JWT"}, payload with aud "bench", iat in 2017 and exp in 2100.
+    // Only the audience and times are verified, so the signature is a dummy.
+    private static final String ID_TOKEN = "eyJhbGciOiJSUzI1NiIsInR5cCI6IkpXVCJ9."
+            + "eyJpc3MiOiJodHRwOi8vMTI3LjAuMC4xIiwic3ViIjoiMSIsImF1ZCI6ImJlbmNoIiwiaWF0IjoxNT"
+            + "AwMDAwMDAwLCJleHAiOjQxMDI0NDQ4MDB9.c2ln";
+
+    private static final String TOKEN_RESPONSE = "{\"access_token\":\"a\",\"token_type\":"
+            + "\"Bearer\",\"expires_in\":3600,\"refresh_token\":\"r\",\"id_token\":\""
+            + ID_TOKEN + "\"}";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && (args[0].equals("cold") || args[0].equals("warm"))) {
+            runSample(args[0].equals("warm"));
+            return;
+        }
+
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+
+        List<Long> cold = new ArrayList<>();
+        List<Long> warm = new ArrayList<>();
+        List<Long> warmUp = new ArrayList<>();
+
+        for (int i = 0; i < runs; i++) {
+            cold.add(forkSample("cold")[0]);
+
+            long[] sample = forkSample("warm");
+            warm.add(sample[0]);
+            warmUp.add(sample[1]);
+        }
+
+        System.out.println(String.format(Locale.US,
+                "First requestTokens(), median of %d JVMs: cold %d ms, after warm-up %d ms "
+                        + "(warm-up itself took %d ms in the background)",
+                runs, median(cold), median(warm), median(warmUp)));
+    }
+
+    private static void runSample(boolean warmUpFirst) throws Exception {
+        HttpServer server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/token", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream input = exchange.getRequestBody();
+                while (input.read() != -1) {
+                    // Drain the request
+                }
+
+                byte[] body = TOKEN_RESPONSE.getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+
+                OutputStream output = exchange.getResponseBody();
+                output.write(body);
+                output.close();
+            }
+        });
+        server.start();
+
+        long warmUpMillis = 0;
+        if (warmUpFirst) {
+            // In the app this happens on a background thread long before the user logs in
+            warmUpMillis = OIDCWarmUp.warmUp(null);
+        }
+
+        String tokenUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/token";
+
+        long start = System.nanoTime();
+        OIDCUtils.requestTokens(tokenUrl, "app://bench", "bench", "secret", "code");
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        server.stop(0);
+
+        System.out.println(elapsedMillis + " " + warmUpMillis);
+    }
+
+    private static long[] forkSample(String mode) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+                + "java";
+
+        Process process = new ProcessBuilder(Arrays.asList(java, "-cp",
+                System.getProperty("java.class.path"), WarmUpBenchmark.class.getName(), mode))
+                .redirectErrorStream(true)
+                .start();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                process.getInputStream(), "UTF-8"));
+        String line;
+        String last = null;
+
+        while ((line = reader.readLine()) != null) {
+            last = line;
+        }
+
+        if (process.waitFor() != 0 || last == null) {
+            throw new IOException("Sample failed: " + last);
+        }
+
+        String[] parts = last.trim().split(" ");
+        return new long[] {Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.lnikkila.oidcsample.oidc.mock;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Drives a call concurrently from a fixed number of workers and reports latency percentiles and
+ * throughput. Every worker gets its own index, so calls that need per-caller state (like a chain
+ * of rotated Refresh Tokens) can keep it without synchronisation.
+ */
+public class LoadHarness {
+
+    public interface Call {
+        void run(int worker) throws Exception;
+    }
+
+    private final int concurrency;
+    private final int totalCalls;
+
+    public LoadHarness(int concurrency, int totalCalls) {
+        this.concurrency = concurrency;
+        this.totalCalls = totalCalls;
+    }
+
+    /**
+     * Reads the load from system properties so it can be scaled up on the command line, e.g.
+     * `./gradlew :oidc-core:test -Doidc.load.concurrency=2000 -Doidc.load.calls=20000`.
+     */
+    public static LoadHarness fromSystemProperties(int defaultConcurrency, int defaultCalls) {
+        return new LoadHarness(Integer.getInteger("oidc.load.concurrency", defaultConcurrency),
+                Integer.getInteger("oidc.load.calls", defaultCalls));
+    }
+
+    public int concurrency() {
+        return concurrency;
+    }
+
+    public Report run(String name, final Call call) throws InterruptedException {
+        final long[] latencies = new long[totalCalls];
+        final AtomicInteger nextCall = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicReference<Throwable> firstError = new AtomicReference<>();
+
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final CountDownLatch doneSignal = new CountDownLatch(concurrency);
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+
+        for (int i = 0; i < concurrency; i++) {
+            final int worker = i;
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startSignal.await();
+
+                        int index;
+                        while ((index = nextCall.getAndIncrement()) < totalCalls) {
+                            long start = System.nanoTime();
+
+                            try {
+                                call.run(worker);
+                            } catch (Throwable e) {
+                                errors.incrementAndGet();
+                                firstError.compareAndSet(null, e);
+                            }
+
+                            latencies[index] = System.nanoTime() - start;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        doneSignal.countDown();
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        startSignal.countDown();
+        doneSignal.await();
+        long elapsed = System.nanoTime() - start;
+
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        return new Report(name, concurrency, latencies, elapsed, errors.get(), firstError.get());
+    }
+
+    public static class Report {
+
+        public final String name;
+        public final int concurrency;
+        public final int calls;
+        public final int errors;
+        public final Throwable firstError;
+        public final double p50Millis;
+        public final double p99Millis;
+        public final double maxMillis;
+        public final double callsPerSecond;
+
+        Report(String name, int concurrency, long[] latencies, long elapsedNanos, int errors,
+               Throwable firstError) {
+
+            long[] sorted = latencies.clone();
+            Arrays.sort(sorted);
+
+            this.name = name;
+            this.concurrency = concurrency;
+            this.calls = sorted.length;
+            this.errors = errors;
+            this.firstError = firstError;
+            this.p50Millis = percentile(sorted, 0.50) / 1e6;
+            this.p99Millis = percentile(sorted, 0.99) / 1e6;
+            this.maxMillis = sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6;
+            this.callsPerSecond = calls / (elapsedNanos / 1e9);
+        }
+
+        private static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%s: %d calls, %d workers, %d errors, p50 %.2f ms, p99 %.2f ms, max %.2f ms, "
+                            + "%.0f calls/s",
+                    name, calls, concurrency, errors, p50Millis, p99Millis, maxMillis,
+                    callsPerSecond);
+        }
+
+    }
+
+}
@@ -0,0 +1,668 @@
+package com.lnikkila.oidcsample.oidc.mock;
+
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.api.client.util.Base64;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An embedded OpenID Connect provider for tests. Serves the Authorization, Token, UserInfo and
+ * JWKS endpoints and the discovery document on the loopback interface.
+ *
+ * The Authorization Endpoint doesn't show any UI: it authorises the configured subject straight
+ * away and redirects back with a code (and an ID Token in the fragment if one was requested).
+ * Tokens are signed with RS256 using a key pair that is generated on start.
+ *
+ * Latency, error rate and Refresh Token rotation can be changed while the provider is running, so
+ * that a single load test can go through several scenarios.
+ */
+public class MockProvider {
+
+    public static final String CLIENT_ID = "mock-client";
+    public static final String CLIENT_SECRET = "mock-secret";
+    public static final String REDIRECT_URL = "app://oidcsample.lnikkila.com";
+    public static final String SUBJECT = "248289761001";
+    public static final String PREFERRED_USERNAME = "janedoe";
+
+    private static final String KEY_ID = "mock-key";
+    private static final long TOKEN_LIFETIME_SECONDS = 3600;
+
+    private final JsonFactory jsonFactory = new GsonFactory();
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final Random random = new Random();
+
+    private final KeyPair keyPair;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final Map<String, Grant> codes = new ConcurrentHashMap<>();
+    private final Map<String, Grant> refreshTokens = new ConcurrentHashMap<>();
+    private final Map<String, Queue<String>> deviceCodes = new ConcurrentHashMap<>();
+    private final Set<String> bearerTokens = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+
+    private final AtomicInteger tokenRequestCount = new AtomicInteger();
+    private final AtomicInteger userInfoRequestCount = new AtomicInteger();
+
+    private volatile long latencyMillis;
+    private volatile long latencyJitterMillis;
+    private volatile double errorRate;
+    private volatile boolean rotateRefreshTokens;
+
+    public MockProvider() throws IOException {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            keyPair = generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not generate a signing key.", e);
+        }
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+
+        // Requests may sleep to simulate latency, so don't let a fixed pool become the bottleneck
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+
+        server.createContext("/.well-known/openid-configuration", new Handler() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> params) throws IOException {
+                handleDiscovery(exchange);
+            }
+        });
+        server.createContext("/authorize", new Handler() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> params) throws IOException {
+                handleAuthorization(exchange, params);
+            }
+        });
+        server.createContext("/token", new Handler() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> params) throws IOException {
+                handleToken(exchange, params);
+            }
+        });
+        server.createContext("/userinfo", new Handler() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> params) throws IOException {
+                handleUserInfo(exchange);
+            }
+        });
+        server.createContext("/jwks", new Handler() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> params) throws IOException {
+                handleJwks(exchange);
+            }
+        });
+    }
+
+    public MockProvider start() {
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getIssuer() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public String getAuthorizationServerUrl() {
+        return getIssuer() + "/authorize";
+    }
+
+    public String getTokenServerUrl() {
+        return getIssuer() + "/token";
+    }
+
+    public String getUserInfoUrl() {
+        return getIssuer() + "/userinfo";
+    }
+
+    public String getJwksUrl() {
+        return getIssuer() + "/jwks";
+    }
+
+    public KeyPair getKeyPair() {
+        return keyPair;
+    }
+
+    /**
+     * Adds a fixed delay plus a uniformly distributed jitter to every response.
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = jitterMillis;
+    }
+
+    /**
+     * The fraction of Token and UserInfo requests that fail with `temporarily_unavailable`.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * When enabled, every refresh issues a new Refresh Token and the old one stops working.
+     */
+    public void setRefreshTokenRotation(boolean rotateRefreshTokens) {
+        this.rotateRefreshTokens = rotateRefreshTokens;
+    }
+
+    public int getTokenRequestCount() {
+        return tokenRequestCount.get();
+    }
+
+    public int getUserInfoRequestCount() {
+        return userInfoRequestCount.get();
+    }
+
+    /**
+     * Issues an Authorization Code without going through the Authorization Endpoint, which is what
+     * tests exchanging codes in bulk usually want.
+     */
+    public String issueCode(String... scopes) {
+        String code = newOpaqueToken();
+        codes.put(code, new Grant(SUBJECT, Arrays.asList(scopes), null));
+        return code;
+    }
+
+    /**
+     * Issues a Refresh Token directly, skipping the Authorization Code exchange.
+     */
+    public String issueRefreshToken(String... scopes) {
+        String refreshToken = newOpaqueToken();
+        refreshTokens.put(refreshToken, new Grant(SUBJECT, Arrays.asList(scopes), null));
+        return refreshToken;
+    }
+
+    /**
+     * Issues a device code directly, skipping the Device Authorization Endpoint. Polling the Token
+     * Endpoint with it gets the given errors in order, e.g. `authorization_pending` or `slow_down`,
+     * and then the tokens.
+     */
+    public String issueDeviceCode(String... errors) {
+        String deviceCode = newOpaqueToken();
+        deviceCodes.put(deviceCode, new ConcurrentLinkedQueue<>(Arrays.asList(errors)));
+        return deviceCode;
+    }
+
+    /**
+     * Signs an ID Token for the given subject. Extra claims are added to the payload as is.
+     */
+    public String signIdToken(String subject, Map<String, Object> extraClaims) throws IOException {
+        long now = System.currentTimeMillis() / 1000;
+
+        IdToken.Payload payload = new IdToken.Payload();
+        payload.setIssuer(getIssuer());
+        payload.setSubject(subject);
+        payload.setAudience(CLIENT_ID);
+        payload.setIssuedAtTimeSeconds(now);
+        payload.setExpirationTimeSeconds(now + TOKEN_LIFETIME_SECONDS);
+
+        if (extraClaims != null) {
+            payload.putAll(extraClaims);
+        }
+
+        JsonWebSignature.Header header = new JsonWebSignature.Header();
+        header.setAlgorithm("RS256");
+        header.setType("JWT");
+        header.setKeyId(KEY_ID);
+
+        try {
+            return JsonWebSignature.signUsingRsaSha256(keyPair.getPrivate(), jsonFactory, header,
+                    payload);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not sign ID token.", e);
+        }
+    }
+
+    private void handleDiscovery(HttpExchange exchange) throws IOException {
+        Map<String, Object> document = new LinkedHashMap<>();
+        document.put("issuer", getIssuer());
+        document.put("authorization_endpoint", getAuthorizationServerUrl());
+        document.put("token_endpoint", getTokenServerUrl());
+        document.put("userinfo_endpoint", getUserInfoUrl());
+        document.put("jwks_uri", getJwksUrl());
+        document.put("response_types_supported",
+                Arrays.asList("code", "code id_token", "id_token token"));
+        document.put("id_token_signing_alg_values_supported", Arrays.asList("RS256"));
+
+        sendJson(exchange, 200, document);
+    }
+
+    private void handleAuthorization(HttpExchange exchange, Map<String, String> params)
+            throws IOException {
+
+        String redirectUri = params.get("redirect_uri");
+        String responseType = params.get("response_type");
+
+        if (!CLIENT_ID.equals(params.get("client_id")) || redirectUri == null
+                || responseType == null) {
+            sendError(exchange, 400, "invalid_request");
+            return;
+        }
+
+        List<String> responseTypes = Arrays.asList(responseType.split(" "));
+        List<String> scopes = params.containsKey("scope")
+                ? Arrays.asList(params.get("scope").split(" "))
+                : Collections.<String>emptyList();
+
+        Map<String, String> response = new LinkedHashMap<>();
+
+        if (responseTypes.contains("code")) {
+            String code = newOpaqueToken();
+            codes.put(code, new Grant(SUBJECT, scopes, params.get("nonce")));
+            response.put("code", code);
+        }
+        if (responseTypes.contains("token")) {
+            String accessToken = newOpaqueToken();
+            bearerTokens.add(accessToken);
+            response.put("access_token", accessToken);
+            response.put("token_type", "Bearer");
+            response.put("expires_in", String.valueOf(TOKEN_LIFETIME_SECONDS));
+        }
+        if (responseTypes.contains("id_token")) {
+            Map<String, Object> claims = new HashMap<>();
+            if (params.containsKey("nonce")) {
+                claims.put("nonce", params.get("nonce"));
+            }
+            if (response.containsKey("code")) {
+                claims.put("c_hash", leftHalfHash(response.get("code")));
+            }
+            String idToken = signIdToken(SUBJECT, claims);
+            bearerTokens.add(idToken);
+            response.put("id_token", idToken);
+        }
+        if (params.containsKey("state")) {
+            response.put("state", params.get("state"));
+        }
+
+        // The pure code flow returns its parameters in the query, everything else in the fragment
+        String separator = responseTypes.size() == 1 && responseTypes.contains("code") ? "?" : "#";
+
+        exchange.getResponseHeaders().set("Location", redirectUri + separator
+                + encodeForm(response));
+        exchange.sendResponseHeaders(302, -1);
+        exchange.close();
+    }
+
+    private void handleToken(HttpExchange exchange, Map<String, String> params)
+            throws IOException {
+
+        tokenRequestCount.incrementAndGet();
+
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendError(exchange, 405, "invalid_request");
+            return;
+        }
+        if (!isClientAuthenticated(exchange.getRequestHeaders(), params)) {
+            sendError(exchange, 401, "invalid_client");
+            return;
+        }
+        if (shouldFail()) {
+            sendError(exchange, 503, "temporarily_unavailable");
+            return;
+        }
+
+        String grantType = params.get("grant_type");
+        Grant grant;
+        String refreshToken;
+
+        if ("authorization_code".equals(grantType)) {
+            // Codes are single use
+            grant = codes.remove(params.get("code"));
+            refreshToken = grant == null ? null : newOpaqueToken();
+
+            if (grant != null) {
+                refreshTokens.put(refreshToken, grant);
+            }
+        } else if ("refresh_token".equals(grantType)) {
+            String presented = params.get("refresh_token");
+
+            if (rotateRefreshTokens) {
+                grant = presented == null ? null : refreshTokens.remove(presented);
+                refreshToken = grant == null ? null : newOpaqueToken();
+
+                if (grant != null) {
+                    refreshTokens.put(refreshToken, grant);
+                }
+            } else {
+                grant = presented == null ? null : refreshTokens.get(presented);
+                refreshToken = presented;
+            }
+        } else if ("urn:ietf:params:oauth:grant-type:device_code".equals(grantType)) {
+            String deviceCode = params.get("device_code");
+            Queue<String> errors = deviceCode == null ? null : deviceCodes.get(deviceCode);
+            String error = errors == null ? null : errors.poll();
+
+            if (error != null) {
+                sendError(exchange, 400, error);
+                return;
+            }
+
+            // Device codes are single use too
+            grant = deviceCode == null || deviceCodes.remove(deviceCode) == null
+                    ? null
+                    : new Grant(SUBJECT, Collections.<String>emptyList(), null);
+            refreshToken = grant == null ? null : newOpaqueToken();
+
+            if (grant != null) {
+                refreshTokens.put(refreshToken, grant);
+            }
+        } else {
+            sendError(exchange, 400, "unsupported_grant_type");
+            return;
+        }
+
+        if (grant == null) {
+            sendError(exchange, 400, "invalid_grant");
+            return;
+        }
+
+        Map<String, Object> claims = new HashMap<>();
+        if (grant.nonce != null) {
+            claims.put("nonce", grant.nonce);
+        }
+
+        String idToken = signIdToken(grant.subject, claims);
+        String accessToken = newOpaqueToken();
+        bearerTokens.add(idToken);
+        bearerTokens.add(accessToken);
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("access_token", accessToken);
+        response.put("token_type", "Bearer");
+        response.put("expires_in", TOKEN_LIFETIME_SECONDS);
+        response.put("refresh_token", refreshToken);
+        response.put("id_token", idToken);
+
+        String scope = params.containsKey("scope") ? params.get("scope") : join(grant.scopes);
+        if (!scope.isEmpty()) {
+            response.put("scope", scope);
+        }
+
+        sendJson(exchange, 200, response);
+    }
+
+    private void handleUserInfo(HttpExchange exchange) throws IOException {
+        userInfoRequestCount.incrementAndGet();
+
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        String token = authorization != null && authorization.startsWith("Bearer ")
+                ? authorization.substring("Bearer ".length())
+                : null;
+
+        if (token == null || !bearerTokens.contains(token)) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer error=\"invalid_token\"");
+            sendError(exchange, 401, "invalid_token");
+            return;
+        }
+        if (shouldFail()) {
+            sendError(exchange, 503, "temporarily_unavailable");
+            return;
+        }
+
+        Map<String, Object> userInfo = new LinkedHashMap<>();
+        userInfo.put("sub", SUBJECT);
+        userInfo.put("preferred_username", PREFERRED_USERNAME);
+
+        sendJson(exchange, 200, userInfo);
+    }
+
+    private void handleJwks(HttpExchange exchange) throws IOException {
+        RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+
+        Map<String, Object> key = new LinkedHashMap<>();
+        key.put("kty", "RSA");
+        key.put("use", "sig");
+        key.put("alg", "RS256");
+        key.put("kid", KEY_ID);
+        key.put("n", encodeUnsigned(publicKey.getModulus()));
+        key.put("e", encodeUnsigned(publicKey.getPublicExponent()));
+
+        sendJson(exchange, 200, Collections.singletonMap("keys", Collections.singletonList(key)));
+    }
+
+    private boolean isClientAuthenticated(Headers headers, Map<String, String> params)
+            throws UnsupportedEncodingException {
+
+        String authorization = headers.getFirst("Authorization");
+
+        if (authorization != null && authorization.startsWith("Basic ")) {
+            String credentials = new String(Base64.decodeBase64(
+                    authorization.substring("Basic ".length())), "UTF-8");
+            return credentials.equals(CLIENT_ID + ":" + CLIENT_SECRET);
+        }
+
+        // Public clients only identify themselves
+        return CLIENT_ID.equals(params.get("client_id"));
+    }
+
+    private boolean shouldFail() {
+        double rate = errorRate;
+        if (rate <= 0) {
+            return false;
+        }
+
+        synchronized (random) {
+            return random.nextDouble() < rate;
+        }
+    }
+
+    private void simulateLatency() {
+        long delay = latencyMillis;
+        long jitter = latencyJitterMillis;
+
+        if (jitter > 0) {
+            synchronized (random) {
+                delay += (long) (random.nextDouble() * jitter);
+            }
+        }
+
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void sendError(HttpExchange exchange, int status, String error) throws IOException {
+        sendJson(exchange, status, Collections.singletonMap("error", error));
+    }
+
+    private void sendJson(HttpExchange exchange, int status, Object content) throws IOException {
+        byte[] body = jsonFactory.toByteArray(content);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(status, body.length);
+
+        OutputStream output = exchange.getResponseBody();
+        try {
+            output.write(body);
+        } finally {
+            output.close();
+        }
+    }
+
+    private String newOpaqueToken() {
+        byte[] bytes = new byte[24];
+        secureRandom.nextBytes(bytes);
+        return Base64.encodeBase64URLSafeString(bytes);
+    }
+
+    /**
+     * The `c_hash` of a code for RS256 tokens.
+     */
+    public static String leftHalfHash(String value) throws IOException {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes("US-ASCII"));
+            return Base64.encodeBase64URLSafeString(Arrays.copyOf(digest, digest.length / 2));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String encodeUnsigned(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+
+        // BigInteger adds a sign byte that JWK doesn't want
+        if (bytes.length > 1 && bytes[0] == 0) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+
+        return Base64.encodeBase64URLSafeString(bytes);
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder builder = new StringBuilder();
+
+        for (String value : values) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(value);
+        }
+
+        return builder.toString();
+    }
+
+    private static String encodeForm(Map<String, String> params)
+            throws UnsupportedEncodingException {
+
+        StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append('&');
+            }
+            builder.append(URLEncoder.encode(param.getKey(), "UTF-8"))
+                    .append('=')
+                    .append(URLEncoder.encode(param.getValue(), "UTF-8"));
+        }
+
+        return builder.toString();
+    }
+
+    private static Map<String, String> decodeForm(String form)
+            throws UnsupportedEncodingException {
+
+        Map<String, String> params = new HashMap<>();
+
+        if (form == null || form.isEmpty()) {
+            return params;
+        }
+
+        for (String pair : form.split("&")) {
+            int separator = pair.indexOf('=');
+
+            if (separator < 0) {
+                params.put(URLDecoder.decode(pair, "UTF-8"), "");
+            } else {
+                params.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+            }
+        }
+
+        return params;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        InputStream input = exchange.getRequestBody();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+
+        try {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+
+        return output.toString("UTF-8");
+    }
+
+    /**
+     * Parses query and form parameters and applies the simulated latency before handing over.
+     */
+    private abstract class Handler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                Map<String, String> params = decodeForm(exchange.getRequestURI().getRawQuery());
+                params.putAll(decodeForm(readBody(exchange)));
+
+                simulateLatency();
+                handle(exchange, params);
+            } catch (RuntimeException e) {
+                sendError(exchange, 500, "server_error");
+            } finally {
+                exchange.close();
+            }
+        }
+
+        abstract void handle(HttpExchange exchange, Map<String, String> params)
+                throws IOException;
+
+    }
+
+    private static class Grant {
+
+        final String subject;
+        final List<String> scopes;
+        final String nonce;
+
+        Grant(String subject, List<String> scopes, String nonce) {
+            this.subject = subject;
+            this.scopes = scopes;
+            this.nonce = nonce;
+        }
+
+    }
+
+}